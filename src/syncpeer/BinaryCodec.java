@@ -0,0 +1,288 @@
+package syncpeer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
+
+/**
+ * A compact length-prefixed wire format, used once both {@link Peer}s agreed on
+ * {@link SyncProcess#PROTOCOL_BINARY} during {@link SyncProcess#TYPE_HELLO}.<br>
+ * <br>
+ * A message is written as one opcode byte for its type, the file name as a varint
+ * byte count followed by UTF-8 bytes, and the length field as a varint holding
+ * the length plus one ({@code 0} stands for {@link SyncProcess#NIL}).
+ * A file name list is written as {@link BinaryCodec#OP_LIST}, a varint count and
+ * the names encoded like the message names. A manifest is written as
+ * {@link BinaryCodec#OP_MANIFEST}, a varint count and for each entry the name,
+ * varint size and modification time and the digest as a varint byte count and
+ * its bytes. File data is written as is.
+ * @author Wenhao
+ *
+ */
+class BinaryCodec extends WireCodec {
+
+	/*
+	 * Message types in opcode order. New types must be appended.
+	 */
+	private static final String[] OPCODES = {
+		null,
+		SyncProcess.TYPE_REQUEST,
+		SyncProcess.TYPE_PUSH,
+		SyncProcess.TYPE_SYNC,
+		SyncProcess.TYPE_ACK,
+		SyncProcess.TYPE_PUSH_RAW,
+		SyncProcess.TYPE_HELLO,
+		SyncProcess.TYPE_PIPE_REQUEST,
+		SyncProcess.TYPE_PIPE_PUSH,
+		SyncProcess.TYPE_NAK,
+		SyncProcess.TYPE_BATCH,
+		SyncProcess.TYPE_FETCH,
+		SyncProcess.TYPE_SIGNATURE,
+		SyncProcess.TYPE_DELTA,
+		SyncProcess.TYPE_DELTA_PUSH,
+		SyncProcess.TYPE_RANGE,
+		SyncProcess.TYPE_RANGE_PUSH,
+		SyncProcess.TYPE_RESUME,
+		SyncProcess.TYPE_RESUME_PUSH,
+		SyncProcess.TYPE_APPEND,
+		SyncProcess.TYPE_CHUNK_FETCH,
+		SyncProcess.TYPE_CHUNKS,
+		SyncProcess.TYPE_CHUNK_WANT,
+		SyncProcess.TYPE_LISTEN,
+		SyncProcess.TYPE_NOTIFY
+	};
+	private static final Map<String, Integer> TYPES;
+	static{
+		TYPES = new HashMap<String, Integer>();
+		for (int i = 1; i < OPCODES.length; ++i) {
+			TYPES.put(OPCODES[i], i);
+		}
+	}
+
+	public static final int OP_LIST = 0x40;
+	public static final int OP_MANIFEST = 0x41;
+	public static final int MAX_DIGEST_BYTES = 64;
+	public static final int MAX_NAME_BYTES = 1 << 16;
+
+	private DataOutputStream dos;
+	private DataInputStream dis;
+	private PeekableInputStream bis;
+
+	/**
+	 * @param out The socket output stream.
+	 * @param in The socket input stream.
+	 */
+	BinaryCodec(OutputStream out, InputStream in) {
+		dos = new DataOutputStream(new BufferedOutputStream(out, SyncProcess.BUFFER_SIZE));
+		bis = new PeekableInputStream(in);
+		dis = new DataInputStream(bis);
+	}
+
+	@Override
+	public void writeMessage(Vector<String> message) throws IOException {
+		String type = message.get(SyncProcess.MSG_TYPE_INDEX);
+		Integer opcode = type == null ? null : TYPES.get(type.toUpperCase());
+		if (opcode == null) {
+			throw new IOException("Message type " + type + " cannot be encoded!");
+		}
+		dos.writeByte(opcode);
+		writeName(message.get(SyncProcess.MSG_NAME_INDEX));
+		
+		String length = message.get(SyncProcess.MSG_LENGTH_INDEX);
+		if (length == null || length.equals(SyncProcess.NIL)) {
+			writeVarLong(0);
+		} else {
+			long value;
+			try {
+				value = Long.parseLong(length);
+			} catch (NumberFormatException e) {
+				value = -1;
+			}
+			if (value < 0) {
+				throw new IOException("Message length " + length + " cannot be encoded!");
+			}
+			writeVarLong(value + 1);
+		}
+	}
+
+	@Override
+	public Vector<String> readMessage() throws IOException {
+		int opcode = readUnsignedByte();
+		if (opcode <= 0 || opcode >= OPCODES.length) {
+			throw new StreamCorruptedException("Unknown opcode " + opcode);
+		}
+		Vector<String> message = new Vector<String>();
+		message.setSize(SyncProcess.MSG_SIZE);
+		message.set(SyncProcess.MSG_TYPE_INDEX, OPCODES[opcode]);
+		message.set(SyncProcess.MSG_NAME_INDEX, readName());
+		long length = readVarLong();
+		message.set(SyncProcess.MSG_LENGTH_INDEX, 
+				length == 0 ? SyncProcess.NIL : String.valueOf(length - 1));
+		return message;
+	}
+
+	@Override
+	public void writeList(Set<String> list) throws IOException {
+		dos.writeByte(OP_LIST);
+		writeVarLong(list.size());
+		for (String s : list) {
+			writeName(s);
+		}
+	}
+
+	@Override
+	public Set<String> readList() throws IOException {
+		int opcode = dis.readUnsignedByte();
+		if (opcode != OP_LIST) {
+			throw new StreamCorruptedException("Expected a file list but got opcode " + opcode);
+		}
+		long count = readVarLong();
+		Set<String> list = new HashSet<String>();
+		for (long i = 0; i < count; ++i) {
+			list.add(readName());
+		}
+		return list;
+	}
+
+	@Override
+	public void writeManifest(Collection<ManifestEntry> entries) throws IOException {
+		dos.writeByte(OP_MANIFEST);
+		writeVarLong(entries.size());
+		for (ManifestEntry entry : entries) {
+			writeName(entry.name);
+			writeVarLong(entry.size);
+			writeVarLong(Math.max(entry.mtime, 0));
+			writeVarLong(entry.digest.length);
+			dos.write(entry.digest);
+		}
+	}
+
+	@Override
+	public List<ManifestEntry> readManifest() throws IOException {
+		int opcode = dis.readUnsignedByte();
+		if (opcode != OP_MANIFEST) {
+			throw new StreamCorruptedException("Expected a manifest but got opcode " + opcode);
+		}
+		long count = readVarLong();
+		List<ManifestEntry> entries = new ArrayList<ManifestEntry>();
+		for (long i = 0; i < count; ++i) {
+			String name = readName();
+			long size = readVarLong();
+			long mtime = readVarLong();
+			long length = readVarLong();
+			if (length > MAX_DIGEST_BYTES) {
+				throw new StreamCorruptedException("Digest of " + length + " bytes is too long");
+			}
+			byte[] digest = new byte[(int) length];
+			dis.readFully(digest);
+			entries.add(new ManifestEntry(name, size, mtime, digest));
+		}
+		return entries;
+	}
+
+	@Override
+	public void write(byte[] buffer, int offset, int length) throws IOException {
+		dos.write(buffer, offset, length);
+	}
+
+	@Override
+	public void readFully(byte[] buffer, int offset, int length) throws IOException {
+		dis.readFully(buffer, offset, length);
+	}
+
+	@Override
+	public void writeByte(int value) throws IOException {
+		dos.writeByte(value);
+	}
+
+	@Override
+	public int readUnsignedByte() throws IOException {
+		return dis.readUnsignedByte();
+	}
+
+	@Override
+	public void writeInt(int value) throws IOException {
+		dos.writeInt(value);
+	}
+
+	@Override
+	public int readInt() throws IOException {
+		return dis.readInt();
+	}
+
+	@Override
+	public void awaitData() throws IOException {
+		bis.mark(1);
+		if (bis.read() < 0) {
+			throw new EOFException();
+		}
+		bis.reset();
+	}
+
+	@Override
+	public int buffered() {
+		return bis.buffered();
+	}
+
+	@Override
+	public void flush() throws IOException {
+		dos.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		dos.close();
+		dis.close();
+	}
+
+	/**
+	 * Write a string as a varint byte count and UTF-8 bytes.
+	 */
+	private void writeName(String name) throws IOException {
+		byte[] bytes = (name == null ? SyncProcess.NIL : name).getBytes(StandardCharsets.UTF_8);
+		writeVarLong(bytes.length);
+		dos.write(bytes);
+	}
+
+	/**
+	 * Read a string written by {@link BinaryCodec#writeName(String)}.
+	 */
+	private String readName() throws IOException {
+		long length = readVarLong();
+		if (length > MAX_NAME_BYTES) {
+			throw new StreamCorruptedException("Name of " + length + " bytes is too long");
+		}
+		byte[] bytes = new byte[(int) length];
+		dis.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * A {@link BufferedInputStream} that tells how many bytes it holds.
+	 */
+	private static class PeekableInputStream extends BufferedInputStream {
+
+		PeekableInputStream(InputStream in) {
+			super(in, SyncProcess.BUFFER_SIZE);
+		}
+
+		synchronized int buffered() {
+			return count - pos;
+		}
+	}
+}
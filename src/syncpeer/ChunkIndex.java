@@ -0,0 +1,226 @@
+package syncpeer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A persistent index of the chunks of the larger files in one sync folder, used
+ * to find local data for {@link SyncProcess#FEATURE_CHUNK}. Every file of at least
+ * {@link ChunkedTransfer#MAX_CHUNK} bytes is cut by {@link ChunkedTransfer#chunk(File)}
+ * once, and again only after its size or modification time changed.<br>
+ * <br>
+ * The index is stored as {@code .<folder>.syncchunks}, see {@link PersistentIndex},
+ * and rewritten as a whole when it changed.
+ * @author Wenhao
+ *
+ */
+class ChunkIndex extends PersistentIndex {
+
+	public static final String INDEX_SUFFIX = ".syncchunks";
+	public static final int INDEX_MAGIC = 0x53594E43;
+	public static final int INDEX_VERSION = 1;
+
+	private static final Registry<ChunkIndex> INDEXES = new Registry<ChunkIndex>() {
+		@Override
+		ChunkIndex create(File folder) {
+			return new ChunkIndex(folder);
+		}
+	};
+
+	/**
+	 * Where a chunk can be read from.
+	 */
+	static class Location {
+		final String name;
+		final long offset;
+		final int length;
+
+		Location(String name, long offset, int length) {
+			this.name = name;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	private final Map<String, Record> records = new HashMap<String, Record>();
+	private Map<ByteBuffer, Location> locations;
+	private boolean dirty;
+
+	/**
+	 * Give the chunk index of a sync folder, loading it from disk on first use.
+	 * @param folder The sync folder.
+	 * @return The shared {@link ChunkIndex} of the folder.
+	 */
+	public static ChunkIndex forFolder(File folder) {
+		return INDEXES.forFolder(folder);
+	}
+
+	private ChunkIndex(File folder) {
+		super(folder, INDEX_SUFFIX, INDEX_MAGIC, INDEX_VERSION);
+		load();
+	}
+
+	/**
+	 * Give the chunks of a file, cutting it only if it changed since it was indexed.
+	 * @param file The file in the sync folder.
+	 * @return The {@link ChunkedTransfer.ChunkList} of the file.
+	 * @throws IOException If the file cannot be read.
+	 */
+	public synchronized ChunkedTransfer.ChunkList chunks(File file) throws IOException {
+		String name = SyncProcess.relativeName(folder, file);
+		Record r = records.get(name);
+		if (r != null && !r.racy && r.size == file.length() && r.mtime == file.lastModified()) {
+			return r.chunks;
+		}
+		long size = file.length();
+		long mtime = file.lastModified();
+		ChunkedTransfer.ChunkList chunks = ChunkedTransfer.chunk(file);
+		if (chunks.length() == size && mtime == file.lastModified()) {
+			//A file changed too recently may change again unnoticed, so its chunks
+			//are only used to find local data, which is checked by digest anyway
+			r = new Record(name, size, mtime, chunks);
+			r.racy = mtime > System.currentTimeMillis() - FileIndex.RACY_WINDOW;
+			records.put(name, r);
+			locations = null;
+			dirty |= !r.racy;
+		}
+		return chunks;
+	}
+
+	/**
+	 * Bring the index up to date with the files of the folder and write it to disk
+	 * if it changed. Failures only cost chunking again later.
+	 * @param files The files currently in the sync folder.
+	 */
+	public synchronized void update(Collection<File> files) {
+		Set<String> names = new HashSet<String>();
+		for (File file : files) {
+			if (file.length() < ChunkedTransfer.MAX_CHUNK) {
+				continue;
+			}
+			names.add(SyncProcess.relativeName(folder, file));
+			try {
+				chunks(file);
+			} catch (IOException e) {
+				//Deleted or unreadable since it was listed
+			}
+		}
+		Iterator<String> it = records.keySet().iterator();
+		while (it.hasNext()) {
+			if (!names.contains(it.next())) {
+				it.remove();
+				locations = null;
+				dirty = true;
+			}
+		}
+		if (dirty) {
+			save();
+		}
+	}
+
+	/**
+	 * Find a local copy of a chunk.
+	 * @param digest The digest of the chunk.
+	 * @return The {@link Location} of the chunk, or {@code null} if no indexed file has it.
+	 */
+	public synchronized Location find(byte[] digest) {
+		if (locations == null) {
+			locations = new HashMap<ByteBuffer, Location>();
+			for (Record r : records.values()) {
+				long offset = 0;
+				for (int i = 0; i < r.chunks.size(); ++i) {
+					locations.put(ByteBuffer.wrap(r.chunks.digests[i]),
+							new Location(r.name, offset, r.chunks.lengths[i]));
+					offset += r.chunks.lengths[i];
+				}
+			}
+		}
+		return locations.get(ByteBuffer.wrap(digest));
+	}
+
+	/**
+	 * Replace the index file with the current records.
+	 */
+	private void save() {
+		try {
+			writeAll();
+			dirty = false;
+		} catch (IOException e) {
+			System.out.println("ChunkIndex: cannot write " + indexFile + " - " + e.getMessage());
+		}
+	}
+
+	@Override
+	protected void readRecord(DataInputStream in) throws IOException {
+		Record r = Record.read(in);
+		records.put(r.name, r);
+	}
+
+	@Override
+	protected void writeRecords(DataOutputStream out) throws IOException {
+		for (Record r : records.values()) {
+			if (!r.racy) {
+				r.write(out);
+			}
+		}
+	}
+
+	/**
+	 * The chunks of one file and the stat data they were computed for.
+	 */
+	private static class Record {
+		final String name;
+		final long size;
+		final long mtime;
+		final ChunkedTransfer.ChunkList chunks;
+		boolean racy;
+
+		Record(String name, long size, long mtime, ChunkedTransfer.ChunkList chunks) {
+			this.name = name;
+			this.size = size;
+			this.mtime = mtime;
+			this.chunks = chunks;
+		}
+
+		void write(DataOutputStream out) throws IOException {
+			out.writeUTF(name);
+			out.writeLong(size);
+			out.writeLong(mtime);
+			out.writeInt(chunks.size());
+			for (int i = 0; i < chunks.size(); ++i) {
+				out.writeInt(chunks.lengths[i]);
+				out.write(chunks.digests[i]);
+			}
+			out.writeByte(chunks.fileDigest.length);
+			out.write(chunks.fileDigest);
+		}
+
+		static Record read(DataInputStream in) throws IOException {
+			String name = in.readUTF();
+			long size = in.readLong();
+			long mtime = in.readLong();
+			int count = in.readInt();
+			if (count < 0 || count > ChunkedTransfer.MAX_CHUNKS) {
+				throw new IOException("invalid record of " + name);
+			}
+			int[] lengths = new int[count];
+			byte[][] digests = new byte[count][ChunkedTransfer.DIGEST_BYTES];
+			for (int i = 0; i < count; ++i) {
+				lengths[i] = in.readInt();
+				in.readFully(digests[i]);
+			}
+			byte[] fileDigest = new byte[in.readUnsignedByte()];
+			in.readFully(fileDigest);
+			return new Record(name, size, mtime, new ChunkedTransfer.ChunkList(lengths, digests, fileDigest));
+		}
+	}
+}
@@ -0,0 +1,217 @@
+package syncpeer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Content-defined chunking for {@link SyncProcess#FEATURE_CHUNK}.<br>
+ * <br>
+ * A file is cut into chunks where a gear hash of the last bytes matches a mask,
+ * so an insertion only changes the chunks around it and the same data in other
+ * files is cut into the same chunks. The cut points follow FastCDC: no cut before
+ * {@link ChunkedTransfer#MIN_CHUNK}, a stricter mask before and a looser mask after
+ * {@link ChunkedTransfer#AVG_CHUNK}, and a forced cut at {@link ChunkedTransfer#MAX_CHUNK}.
+ * Chunks are named by their {@link SyncProcess#DIGEST_ALGORITHM} digest.<br>
+ * <br>
+ * The sender writes a chunk list: the number of chunks, each chunk's varint length
+ * and digest, and the digest of the whole file. The receiver answers with the
+ * indexes of the chunks it finds neither in its {@link ChunkIndex} nor earlier in
+ * the list, and the sender writes the data of those chunks in list order.
+ * @author Wenhao
+ *
+ */
+class ChunkedTransfer {
+
+	public static final int MIN_CHUNK = 16 * 1024;
+	public static final int AVG_CHUNK = 64 * 1024;
+	public static final int MAX_CHUNK = 256 * 1024;
+	public static final int DIGEST_BYTES = 32;
+	public static final int MAX_CHUNKS = 1 << 24;
+
+	private static final int AVG_BITS = 16;
+	private static final long MASK_STRICT = mask(AVG_BITS + 2);
+	private static final long MASK_LOOSE = mask(AVG_BITS - 2);
+
+	/*
+	 * The gear table must be the same on every peer, so it is generated
+	 * from a fixed seed with SplitMix64.
+	 */
+	private static final long[] GEAR = new long[256];
+	static {
+		long seed = 0x5EED5EEDL;
+		for (int i = 0; i < GEAR.length; ++i) {
+			long z = (seed += 0x9E3779B97F4A7C15L);
+			z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+			z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+			GEAR[i] = z ^ (z >>> 31);
+		}
+	}
+
+	/**
+	 * The chunks of one file.
+	 */
+	static class ChunkList {
+		final int[] lengths;
+		final byte[][] digests;
+		final byte[] fileDigest;
+
+		ChunkList(int[] lengths, byte[][] digests, byte[] fileDigest) {
+			this.lengths = lengths;
+			this.digests = digests;
+			this.fileDigest = fileDigest;
+		}
+
+		int size() {
+			return lengths.length;
+		}
+
+		long length() {
+			long total = 0;
+			for (int length : lengths) {
+				total += length;
+			}
+			return total;
+		}
+	}
+
+	/**
+	 * A mask of the highest bits of the gear hash, which depend on the most bytes.
+	 */
+	private static long mask(int bits) {
+		return ((1L << bits) - 1) << (64 - bits);
+	}
+
+	/**
+	 * Cut a file into chunks and compute their digests and the digest of the file.
+	 * @param file The file to be chunked.
+	 * @return The {@link ChunkList} of the file.
+	 * @throws IOException If the file cannot be read.
+	 */
+	public static ChunkList chunk(File file) throws IOException {
+		List<Integer> lengths = new ArrayList<Integer>();
+		List<byte[]> digests = new ArrayList<byte[]>();
+		MessageDigest chunkDigest = SyncProcess.newDigest();
+		MessageDigest fileDigest = SyncProcess.newDigest();
+		byte[] buf = new byte[4 * MAX_CHUNK];
+		long hash = 0;
+		int length = 0;
+		try (InputStream in = new FileInputStream(file)) {
+			int count;
+			while ((count = in.read(buf)) > 0) {
+				fileDigest.update(buf, 0, count);
+				int start = 0;
+				for (int i = 0; i < count; ++i) {
+					hash = (hash << 1) + GEAR[buf[i] & 0xFF];
+					length++;
+					if (length < MIN_CHUNK) {
+						continue;
+					}
+					if ((hash & (length < AVG_CHUNK ? MASK_STRICT : MASK_LOOSE)) == 0 ||
+						length >= MAX_CHUNK) {
+						chunkDigest.update(buf, start, i + 1 - start);
+						lengths.add(length);
+						digests.add(chunkDigest.digest());
+						start = i + 1;
+						length = 0;
+						hash = 0;
+					}
+				}
+				chunkDigest.update(buf, start, count - start);
+			}
+		}
+		if (length > 0) {
+			lengths.add(length);
+			digests.add(chunkDigest.digest());
+		}
+
+		int[] lengthArray = new int[lengths.size()];
+		for (int i = 0; i < lengthArray.length; ++i) {
+			lengthArray[i] = lengths.get(i);
+		}
+		return new ChunkList(lengthArray, digests.toArray(new byte[digests.size()][]),
+				fileDigest.digest());
+	}
+
+	/**
+	 * Write a chunk list to the other {@link Peer}.
+	 */
+	public static void writeList(WireCodec codec, ChunkList list) throws IOException {
+		codec.writeVarLong(list.size());
+		for (int i = 0; i < list.size(); ++i) {
+			codec.writeVarLong(list.lengths[i]);
+			codec.write(list.digests[i], 0, DIGEST_BYTES);
+		}
+		codec.writeBytes(list.fileDigest);
+	}
+
+	/**
+	 * Read a chunk list written by {@link ChunkedTransfer#writeList(WireCodec, ChunkList)}.
+	 * @param size The file length from the message header, which the chunks must add up to.
+	 */
+	public static ChunkList readList(WireCodec codec, long size) throws IOException {
+		long count = codec.readVarLong();
+		if (count > MAX_CHUNKS || count > size / MIN_CHUNK + 1) {
+			throw new StreamCorruptedException("Invalid chunk list of " + count + " chunks");
+		}
+		int[] lengths = new int[(int) count];
+		byte[][] digests = new byte[(int) count][DIGEST_BYTES];
+		long total = 0;
+		for (int i = 0; i < count; ++i) {
+			long length = codec.readVarLong();
+			if (length < 1 || length > MAX_CHUNK) {
+				throw new StreamCorruptedException("Invalid chunk of " + length + " bytes");
+			}
+			lengths[i] = (int) length;
+			total += length;
+			codec.readFully(digests[i], 0, DIGEST_BYTES);
+		}
+		if (total != size) {
+			throw new StreamCorruptedException("Chunks do not add up to the file length");
+		}
+		return new ChunkList(lengths, digests, codec.readBytes(DeltaTransfer.MAX_DIGEST_BYTES));
+	}
+
+	/**
+	 * Write the indexes of the wanted chunks as gaps between them. The number of
+	 * wanted chunks travels in the message header and is not written here.
+	 */
+	public static void writeWanted(WireCodec codec, BitSet wanted) throws IOException {
+		int last = -1;
+		for (int i = wanted.nextSetBit(0); i >= 0; i = wanted.nextSetBit(i + 1)) {
+			codec.writeVarLong(i - last - 1);
+			last = i;
+		}
+	}
+
+	/**
+	 * Read chunk indexes written by {@link ChunkedTransfer#writeWanted(WireCodec, BitSet)}.
+	 * @param count The number of wanted chunks from the message header.
+	 * @param list The chunk list the indexes refer to.
+	 */
+	public static BitSet readWanted(WireCodec codec, long count, ChunkList list) throws IOException {
+		if (count < 0 || count > list.size()) {
+			throw new StreamCorruptedException("Invalid number of wanted chunks " + count);
+		}
+		BitSet wanted = new BitSet(list.size());
+		long index = -1;
+		for (long i = 0; i < count; ++i) {
+			long gap = codec.readVarLong();
+			if (gap >= list.size()) {
+				throw new StreamCorruptedException("Invalid chunk index gap " + gap);
+			}
+			index += gap + 1;
+			if (index >= list.size()) {
+				throw new StreamCorruptedException("Invalid chunk index " + index);
+			}
+			wanted.set((int) index);
+		}
+		return wanted;
+	}
+}
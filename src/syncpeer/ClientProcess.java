@@ -2,28 +2,73 @@ package syncpeer;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.Vector;
 
 class ClientProcess extends SyncProcess {
 
 	public static final String CLIENT_PROCESS_NAME = "ClientProcess";
+	public static final int BATCH_MAX_FILES = 256;
+	public static final long BATCH_MAX_BYTES = 4 * 1024 * 1024;
 
 	private Socket socket;
+	private Map<String, ManifestEntry> missingManifest = new HashMap<String, ManifestEntry>();
+	private Map<String, ManifestEntry> localManifest = new HashMap<String, ManifestEntry>();
+	private Map<String, StripedFile> stripedFiles = new HashMap<String, StripedFile>();
+	private boolean syncRequested;
+	private volatile Selector listening;
+	private TransferScheduler scheduler;
+	private int slot;
 
-	ClientProcess(File folder, int port, String ipAddr) {
+	ClientProcess(File folder, int port, String ipAddr, SyncOptions options) {
 		this.name = CLIENT_PROCESS_NAME;
+		this.options = options;
 		this.folder = folder;
 		this.port = port;
 		this.ipAddr = ipAddr;
 		this.isClosed = false;
 	}
 
+	/**
+	 * Create an additional data connection of a client, which takes its
+	 * transfers from a {@link TransferScheduler} when started.
+	 * @param client The client that compared the file lists.
+	 * @param scheduler The transfers of the round.
+	 * @param slot The index of this connection in the scheduler.
+	 */
+	private ClientProcess(ClientProcess client, TransferScheduler scheduler, int slot) {
+		this(client.folder, client.port, client.ipAddr, client.options);
+		this.name = CLIENT_PROCESS_NAME + "-" + slot;
+		this.missingManifest = client.missingManifest;
+		this.localManifest = client.localManifest;
+		this.stripedFiles = client.stripedFiles;
+		this.scheduler = scheduler;
+		this.slot = slot;
+	}
+
 	/**
 	 * Set the server IP for connection.
 	 * @param ipAddr The server IP address
@@ -32,22 +77,151 @@ class ClientProcess extends SyncProcess {
 		this.ipAddr = ipAddr;
 	}
 	
+	/**
+	 * Agree on the protocol version with the server. The client offers
+	 * {@link SyncOptions#protocol} and switches to {@link BinaryCodec} if the server
+	 * accepts {@link SyncProcess#PROTOCOL_BINARY}. The optional features enabled in
+	 * {@link SyncOptions} are offered as well and those the server accepts are kept. Any
+	 * answer other than an acknowledgement keeps the connection on {@link ObjectCodec}.
+	 * A legacy server ignores {@link SyncProcess#TYPE_HELLO} instead of answering it, so
+	 * the main connection stops waiting after a time out and leaves it to the caller to
+	 * connect again without it. An additional data connection is only opened to a server
+	 * that answered, so it keeps waiting for the answer.
+	 * @return {@code false} if the server did not answer, after which the connection
+	 * is out of step, or {@code true} otherwise.
+	 * @throws IOException If the communication cannot be completed.
+	 * @throws ClassNotFoundException If the received answer is corrupted.
+	 */
+	private boolean negotiate() throws IOException, ClassNotFoundException{
+		if(options.protocol < PROTOCOL_BINARY){
+			return true;
+		}
+		codec.writeMessage(makeMsg(TYPE_HELLO, joinFeatures(offeredFeatures()), 
+								   String.valueOf(options.protocol)));
+		codec.flush();
+
+		Vector<String> reply;
+		int timeout = socket.getSoTimeout();
+		if(scheduler == null){
+			//Give up before a legacy server times out waiting for the next command
+			socket.setSoTimeout(TIME_OUT*4);
+		}
+		try{
+			reply = codec.readMessage();
+		} catch (SocketTimeoutException e){
+			if(scheduler != null){
+				throw e;
+			}
+			return false;
+		} finally {
+			socket.setSoTimeout(timeout);
+		}
+		
+		int version = PROTOCOL_LEGACY;
+		if(reply != null && reply.size() == MSG_SIZE &&
+		   reply.get(MSG_TYPE_INDEX).equalsIgnoreCase(TYPE_ACK)){
+			try{
+				version = Integer.parseInt(reply.get(MSG_LENGTH_INDEX));
+			} catch (NumberFormatException e){
+				version = PROTOCOL_LEGACY;
+			}
+			features = splitFeatures(reply.get(MSG_NAME_INDEX));
+			features.retainAll(offeredFeatures());
+		}
+		if(version >= PROTOCOL_BINARY){
+			codec = new BinaryCodec(socket.getOutputStream(), socket.getInputStream());
+		}
+		System.out.println(name+": Using protocol version "+version+
+				(features.isEmpty() ? "" : " with "+joinFeatures(features)));
+		return true;
+	}
+	
+	/**
+	 * Optional protocol features this client wants to use, according to {@link SyncOptions}.
+	 * @return A set of feature names.
+	 */
+	private Set<String> offeredFeatures(){
+		Set<String> offered = new HashSet<String>();
+		if(options.pipelineWindow > 1){
+			offered.add(FEATURE_PIPELINE);
+		}
+		if(options.batchThreshold > 0){
+			offered.add(FEATURE_BATCH);
+		}
+		if(options.manifest){
+			offered.add(FEATURE_MANIFEST);
+			if(options.merkle){
+				offered.add(FEATURE_MERKLE);
+			}
+			if(options.reconcile){
+				offered.add(FEATURE_RECONCILE);
+			}
+		}
+		if(options.deltaThreshold > 0){
+			offered.add(FEATURE_DELTA);
+		}
+		if(options.connections > 1 && options.stripeSize > 0){
+			offered.add(FEATURE_RANGE);
+		}
+		if(options.resumeThreshold > 0){
+			offered.add(FEATURE_RESUME);
+		}
+		if(options.compressLevel > 0){
+			offered.add(FEATURE_COMPRESS);
+		}
+		if(options.manifest && options.dedup){
+			offered.add(FEATURE_DEDUP);
+		}
+		if(options.manifest && options.chunkThreshold > 0){
+			offered.add(FEATURE_CHUNK);
+		}
+		if(options.live > 0){
+			offered.add(FEATURE_LIVE);
+		}
+		if(options.recursive){
+			offered.add(FEATURE_TREE);
+		}
+		if(options.zeroCopy){
+			offered.add(FEATURE_RAW);
+		}
+		offered.add(FEATURE_PAGED);
+		return offered;
+	}
+	
 	/**
 	 * Synchronize the file name list with server. It sends client local
 	 * file name lists and receive lists from server indicating the client
-	 * missing files and server missing files.
-	 * @param fileList The set of local file name list.
+	 * missing files and server missing files.<br>
+	 * If {@link SyncProcess#FEATURE_MANIFEST} is agreed, the local manifest is
+	 * sent instead and only files that differ in content are listed. The local
+	 * manifest and the server entries of the client missing files are kept for the transfers.
 	 * @return Vector of client missing file list and server missing file list
 	 */
-	private Vector<Set<String>> syncFileList(Set<String> fileList){
+	private Vector<Set<String>> syncFileList(){
 		try{
+			if(hasFeature(FEATURE_MANIFEST)){
+				//Hash the local files before the server starts waiting for them
+				localManifest = getManifest();
+				SetReconciler reconciler = null;
+				if(hasFeature(FEATURE_RECONCILE)){
+					reconciler = new SetReconciler(localManifest.values());
+				}
+				if(!startRound())return null;
+				return syncManifest(reconciler);
+			}
+
 			//Send sync request to server
+			Set<File> fileList = getFileList();
 			boolean success = false;
-			success = sendMsg(TYPE_SYNC, NIL, NIL);
+			success = startRound();
 			if(!success)return null;
 
 			//Send the local file list to server
-			success = sendFileList(fileList);
+			if(hasFeature(FEATURE_PAGED)){
+				success = sendFileList(getSortedNames(fileList));
+			} else {
+				success = sendFileList(getFileNameList(fileList));
+			}
 			if(!success)return null;
 
 			//Receive the missing file lists from server
@@ -67,13 +241,133 @@ class ClientProcess extends SyncProcess {
 		}
 	}
 
+	/**
+	 * Send {@link SyncProcess#TYPE_SYNC} and wait for its acknowledgement. With
+	 * {@link SyncProcess#FEATURE_LIVE}, the server may have sent a {@link SyncProcess#TYPE_NOTIFY}
+	 * before it read the command, which is passed over since this round is running anyway.
+	 * @return A boolean value telling whether the server 
+	 * acknowledged ({@code true}) or not ({@code false}).
+	 * @throws IOException If the communication cannot be completed.
+	 * @throws ClassNotFoundException If the received acknowledgement is corrupted.
+	 */
+	private boolean startRound() throws IOException, ClassNotFoundException{
+		codec.writeMessage(makeMsg(TYPE_SYNC, NIL, NIL));
+		codec.flush();
+		Vector<String> response;
+		do {
+			response = codec.readMessage();
+		} while (response != null && response.size() == MSG_SIZE &&
+				 response.get(MSG_TYPE_INDEX).equalsIgnoreCase(TYPE_NOTIFY));
+		return response != null && response.size() == MSG_SIZE &&
+			   response.get(MSG_TYPE_INDEX).equalsIgnoreCase(TYPE_ACK);
+	}
+
+	/**
+	 * Exchange the local manifest with the server after {@link SyncProcess#TYPE_SYNC}
+	 * was acknowledged. If {@link SyncProcess#FEATURE_RECONCILE} is agreed, only
+	 * the entries found by the {@link SetReconciler} are sent. Otherwise, or if
+	 * the difference could not be decoded, and {@link SyncProcess#FEATURE_MERKLE}
+	 * is agreed, only the entries under the differing leaves of the {@link MerkleTree} are sent.
+	 * @param reconciler The reconciler of the local manifest, or {@code null}
+	 * if {@link SyncProcess#FEATURE_RECONCILE} is not agreed.
+	 * @return Vector of client missing file list and server missing file list
+	 * @throws IOException If the communication cannot be completed.
+	 */
+	private Vector<Set<String>> syncManifest(SetReconciler reconciler) throws IOException{
+		Collection<ManifestEntry> entries = localManifest.values();
+		List<ManifestEntry> reconciled = null;
+		if(reconciler != null){
+			reconciled = reconcileDiff(reconciler);
+		}
+		if(reconciled != null){
+			entries = reconciled;
+		} else if(hasFeature(FEATURE_MERKLE)){
+			entries = merkleDiff(entries);
+		}
+		if(!sendManifest(entries)) return null;
+		
+		Map<String, ManifestEntry> missing = receiveManifest();
+		if(missing == null) return null;
+		Set<String> extra = receiveFileList();
+		if(extra == null) return null;
+		
+		missingManifest = missing;
+		Vector<Set<String>> result = new Vector<Set<String>>();
+		result.add(new HashSet<String>(missing.keySet()));
+		result.add(extra);
+		return result;
+	}
+
+	/**
+	 * Find the differing entries with the server by {@link SetReconciler} in one
+	 * round trip. The keys of the differing server entries are sent back ahead of
+	 * the manifest and not flushed.
+	 * @param reconciler The reconciler of the local manifest.
+	 * @return The local entries the server does not have, or {@code null} if the
+	 * difference could not be decoded.
+	 * @throws IOException If the communication cannot be completed.
+	 */
+	private List<ManifestEntry> reconcileDiff(SetReconciler reconciler) throws IOException{
+		reconciler.writeStrata(codec);
+		codec.flush();
+		List<Long> remoteKeys = new ArrayList<Long>();
+		List<ManifestEntry> entries = reconciler.readTable(codec, remoteKeys);
+		reconciler.writeResult(codec, entries == null ? null : remoteKeys);
+		if(entries == null){
+			System.out.println(name+": manifest difference could not be decoded");
+		} else {
+			System.out.println(name+": "+entries.size()+" of "+reconciler.size()+
+					" manifest entries differ, "+remoteKeys.size()+" on the server");
+		}
+		return entries;
+	}
+
+	/**
+	 * Descend the {@link MerkleTree} of the local manifest together with the server,
+	 * one level per round trip, until every differing node is small enough.
+	 * @param manifest The entries of the local files.
+	 * @return The entries under the differing leaves.
+	 * @throws IOException If the communication cannot be completed.
+	 */
+	private List<ManifestEntry> merkleDiff(Collection<ManifestEntry> manifest) throws IOException{
+		MerkleTree tree = new MerkleTree(manifest);
+		Set<String> leaves = new HashSet<String>();
+		List<String> query = Collections.singletonList(MerkleTree.ROOT);
+		int rounds = 0;
+		while(!query.isEmpty()){
+			tree.writeQuery(codec, query);
+			codec.flush();
+			query = tree.readAnswer(codec, query, leaves);
+			rounds++;
+		}
+		List<ManifestEntry> entries = tree.entriesUnder(leaves);
+		System.out.println(name+": "+entries.size()+" of "+tree.size()+
+				" manifest entries differ after "+rounds+" rounds");
+		return entries;
+	}
+
+	/**
+	 * Give a file received from the server the modification time of the server
+	 * copy, as listed in the manifest, so both copies compare as equally old.
+	 * @param fileName The name of the received file.
+	 */
+	private void keepModifiedTime(String fileName){
+		ManifestEntry entry = missingManifest.get(fileName);
+		if(entry != null && entry.mtime > 0){
+			try {
+				localFile(fileName).setLastModified(entry.mtime);
+			} catch (IOException e) {
+				System.out.println(name + ": " + e.getMessage());
+			}
+		}
+	}
+
 	/**
 	 * Request a missing file from server.
 	 * @param fileName The client missing file name.
 	 * @return A boolean value telling whether the request is 
 	 * successful ({@code true}) or failed ({@code false}).
 	 */
-	@SuppressWarnings("unchecked")
 	private boolean requestFile(String fileName) {
 		try {
 			//Send the file request to server.
@@ -82,8 +376,10 @@ class ClientProcess extends SyncProcess {
 			if(!success) return false;
 
 			//Receive the file from server.
-			Vector<String> fileInfo = (Vector<String>) ois.readObject();
-			return receiveFile(fileInfo);
+			Vector<String> fileInfo = codec.readMessage();
+			if(!receiveFile(fileInfo)) return false;
+			keepModifiedTime(fileName);
+			return true;
 		} catch (IOException | ClassNotFoundException e) {
 			System.out.println(name + ": " + e.getMessage());
 			return false;
@@ -91,10 +387,894 @@ class ClientProcess extends SyncProcess {
 	}
 	
 	/**
-	 * Start the client and connect to the server for synchronization.
+	 * Request missing files from server with up to {@link SyncOptions#pipelineWindow}
+	 * requests outstanding. The server answers the requests in order, so the
+	 * next request is sent as soon as one file has been received instead of
+	 * waiting a round trip per file. Only small requests travel towards the
+	 * server while files are received, so neither side can block the other.
+	 * @param fileNames The client missing file names.
+	 * @throws IOException If the communication cannot be completed.
+	 * @throws ClassNotFoundException If a received message is corrupted.
+	 */
+	private void pipelineRequests(Set<String> fileNames) throws IOException, ClassNotFoundException{
+		Iterator<String> it = fileNames.iterator();
+		Queue<String> pending = new ArrayDeque<String>();
+		while(it.hasNext() || !pending.isEmpty()){
+			//Fill the window
+			while(it.hasNext() && pending.size() < options.pipelineWindow){
+				String s = it.next();
+				System.out.println(name+": request file "+s);
+				codec.writeMessage(makeMsg(TYPE_PIPE_REQUEST, s, NIL));
+				pending.add(s);
+			}
+			codec.flush();
+			
+			//Receive the reply to the oldest request
+			String expected = pending.remove();
+			Vector<String> reply = codec.readMessage();
+			if(reply == null || reply.size() != MSG_SIZE ||
+			   !expected.equals(reply.get(MSG_NAME_INDEX))){
+				throw new IOException("Unexpected reply while requesting "+expected);
+			}
+			if(reply.get(MSG_TYPE_INDEX).equalsIgnoreCase(TYPE_PUSH)){
+				if(receivePipelinedFile(reply)){
+					keepModifiedTime(expected);
+				}
+			} else {
+				System.out.println(name+": server cannot send file "+expected);
+			}
+		}
+	}
+	
+	/**
+	 * Push server missing files with up to {@link SyncOptions#pipelineWindow}
+	 * files not yet acknowledged. Only acknowledgements travel back while files
+	 * are sent, so neither side can block the other.
+	 * @param fileNames The server missing file names.
+	 * @throws IOException If the communication cannot be completed.
+	 * @throws ClassNotFoundException If a received message is corrupted.
+	 */
+	private void pipelinePushes(Set<String> fileNames) throws IOException, ClassNotFoundException{
+		Iterator<String> it = fileNames.iterator();
+		Queue<String> pending = new ArrayDeque<String>();
+		while(it.hasNext() || !pending.isEmpty()){
+			//Fill the window
+			while(it.hasNext() && pending.size() < options.pipelineWindow){
+				String s = it.next();
+				if(!localFile(s).isFile()){
+					System.out.println(name+": file "+s+" not found");
+					continue;
+				}
+				System.out.println(name+": push file "+s);
+				if(sendPipelinedFile(TYPE_PIPE_PUSH, s)){
+					pending.add(s);
+				}
+			}
+			codec.flush();
+			if(pending.isEmpty()) continue;
+			
+			//Collect the acknowledgement of the oldest push
+			String expected = pending.remove();
+			Vector<String> reply = codec.readMessage();
+			if(reply == null || reply.size() != MSG_SIZE ||
+			   !expected.equals(reply.get(MSG_NAME_INDEX))){
+				throw new IOException("Unexpected reply while pushing "+expected);
+			}
+			if(!reply.get(MSG_TYPE_INDEX).equalsIgnoreCase(TYPE_ACK)){
+				System.out.println(name+": server failed to receive file "+expected);
+			}
+		}
+	}
+	
+	/**
+	 * Request client missing files from server in bundles. The names are sent in
+	 * groups of up to {@link ClientProcess#BATCH_MAX_FILES} and the server answers
+	 * each group with one bundle of those files not larger than
+	 * {@link SyncOptions#batchThreshold}.
+	 * @param fileNames The client missing file names.
+	 * @return The names of the files that were not received in a bundle.
+	 * @throws IOException If the communication cannot be completed.
+	 * @throws ClassNotFoundException If a received message is corrupted.
+	 */
+	private Set<String> fetchBatches(Set<String> fileNames) throws IOException, ClassNotFoundException{
+		Set<String> remaining = new HashSet<String>(fileNames);
+		Iterator<String> it = fileNames.iterator();
+		while(it.hasNext()){
+			Set<String> group = new HashSet<String>();
+			while(it.hasNext() && group.size() < BATCH_MAX_FILES){
+				group.add(it.next());
+			}
+			codec.writeMessage(makeMsg(TYPE_FETCH, NIL, String.valueOf(options.batchThreshold)));
+			codec.writeList(group);
+			codec.flush();
+			
+			Vector<String> header = codec.readMessage();
+			if(header == null || header.size() != MSG_SIZE ||
+			   !header.get(MSG_TYPE_INDEX).equalsIgnoreCase(TYPE_BATCH)){
+				throw new IOException("Unexpected reply to a bundle request");
+			}
+			Set<String> received = receiveBatch(header);
+			for(String s : received){
+				keepModifiedTime(s);
+			}
+			remaining.removeAll(received);
+			sendAck();
+		}
+		return remaining;
+	}
+	
+	/**
+	 * Push server missing files not larger than {@link SyncOptions#batchThreshold}
+	 * in bundles of up to {@link ClientProcess#BATCH_MAX_FILES} files or
+	 * {@link ClientProcess#BATCH_MAX_BYTES} bytes, each acknowledged once.
+	 * @param fileNames The server missing file names.
+	 * @return The names of the files that were not sent in a bundle.
+	 * @throws IOException If the communication cannot be completed.
+	 * @throws ClassNotFoundException If a received message is corrupted.
+	 */
+	private Set<String> pushBatches(Set<String> fileNames) throws IOException, ClassNotFoundException{
+		Set<String> remaining = new HashSet<String>();
+		List<String> bundle = new ArrayList<String>();
+		long bundleBytes = 0;
+		for(String s : fileNames){
+			File f = localFile(s);
+			if(!f.isFile() || f.length() > options.batchThreshold){
+				remaining.add(s);
+				continue;
+			}
+			System.out.println(name+": push file "+s);
+			bundle.add(s);
+			bundleBytes += f.length();
+			if(bundle.size() >= BATCH_MAX_FILES || bundleBytes >= BATCH_MAX_BYTES){
+				pushBatch(bundle);
+				bundle.clear();
+				bundleBytes = 0;
+			}
+		}
+		if(!bundle.isEmpty()){
+			pushBatch(bundle);
+		}
+		return remaining;
+	}
+	
+	/**
+	 * Request the changes to client missing files of which an older copy of at least
+	 * {@link SyncOptions#deltaThreshold} bytes exists locally. The signature of the
+	 * local copy is sent and the server answers with a {@link SyncProcess#TYPE_DELTA}
+	 * that only carries the parts the local copy does not have.
+	 * @param fileNames The client missing file names.
+	 * @return The names of the files that were not received as a delta.
+	 * @throws IOException If the communication cannot be completed.
+	 * @throws ClassNotFoundException If a received message is corrupted.
+	 */
+	private Set<String> deltaRequests(Set<String> fileNames) throws IOException, ClassNotFoundException{
+		Set<String> remaining = new HashSet<String>(fileNames);
+		for(String s : fileNames){
+			File local = localFile(s);
+			if(!local.isFile() || local.length() < options.deltaThreshold){
+				continue;
+			}
+			System.out.println(name+": request changes to file "+s);
+			int blockSize = sendSignature(s);
+			
+			Vector<String> reply = codec.readMessage();
+			if(reply == null || reply.size() != MSG_SIZE ||
+			   !s.equals(reply.get(MSG_NAME_INDEX))){
+				throw new IOException("Unexpected reply while requesting changes to "+s);
+			}
+			if(reply.get(MSG_TYPE_INDEX).equalsIgnoreCase(TYPE_DELTA) &&
+			   receiveDelta(s, blockSize)){
+				keepModifiedTime(s);
+				remaining.remove(s);
+			}
+		}
+		return remaining;
+	}
+	
+	/**
+	 * Push the changes to server missing files of at least {@link SyncOptions#deltaThreshold}
+	 * bytes. The server sends the signature of its older copy, or a {@link SyncProcess#TYPE_NAK}
+	 * if it has none, and receives a {@link SyncProcess#TYPE_DELTA} against it, or a
+	 * {@link SyncProcess#TYPE_NAK} if the local file cannot be read.
+	 * @param fileNames The server missing file names.
+	 * @return The names of the files that were not sent as a delta.
+	 * @throws IOException If the communication cannot be completed.
+	 * @throws ClassNotFoundException If a received message is corrupted.
+	 */
+	private Set<String> deltaPushes(Set<String> fileNames) throws IOException, ClassNotFoundException{
+		Set<String> remaining = new HashSet<String>(fileNames);
+		for(String s : fileNames){
+			File local = localFile(s);
+			if(!local.isFile() || local.length() < options.deltaThreshold){
+				continue;
+			}
+			codec.writeMessage(makeMsg(TYPE_DELTA_PUSH, s, String.valueOf(local.length())));
+			codec.flush();
+			
+			Vector<String> reply = codec.readMessage();
+			if(reply == null || reply.size() != MSG_SIZE ||
+			   !s.equals(reply.get(MSG_NAME_INDEX))){
+				throw new IOException("Unexpected reply while pushing changes to "+s);
+			}
+			if(!reply.get(MSG_TYPE_INDEX).equalsIgnoreCase(TYPE_SIGNATURE)){
+				continue;
+			}
+			System.out.println(name+": push changes to file "+s);
+			if(!sendDelta(s, receiveSignature(reply))){
+				//The server is told and the file is pushed in full instead
+				codec.writeMessage(makeMsg(TYPE_NAK, s, NIL));
+				codec.flush();
+				continue;
+			}
+			
+			Vector<String> ack = codec.readMessage();
+			if(ack == null || ack.size() != MSG_SIZE ||
+			   !s.equals(ack.get(MSG_NAME_INDEX))){
+				throw new IOException("Unexpected reply while pushing changes to "+s);
+			}
+			if(ack.get(MSG_TYPE_INDEX).equalsIgnoreCase(TYPE_ACK)){
+				remaining.remove(s);
+			} else {
+				System.out.println(name+": server failed to apply changes to file "+s);
+			}
+		}
+		return remaining;
+	}
+	
+	/**
+	 * Create client missing files from local files with the same content digest,
+	 * such as the old name of a renamed file, instead of requesting them.
+	 * @param fileNames The client missing file names.
+	 * @return The names of the files that must still be requested.
+	 */
+	private Set<String> copyLocalFiles(Set<String> fileNames){
+		Map<ByteBuffer, ManifestEntry> index = digestIndex(localManifest.values(), fileNames);
+		Set<String> remaining = new HashSet<String>(fileNames);
+		for(String s : fileNames){
+			ManifestEntry entry = missingManifest.get(s);
+			if(entry != null && copyLocal(entry, index)){
+				remaining.remove(s);
+			}
+		}
+		return remaining;
+	}
+	
+	/**
+	 * Request the rest of client missing files of which a partial copy was kept
+	 * from a broken transfer. The server checks the part against its copy and
+	 * sends only the bytes after it, or the whole file if the part does not match.
+	 * @param fileNames The client missing file names.
+	 * @return The names of the files that were not received.
+	 * @throws IOException If the communication cannot be completed.
+	 * @throws ClassNotFoundException If a received message is corrupted.
+	 */
+	private Set<String> resumeRequests(Set<String> fileNames) throws IOException, ClassNotFoundException{
+		Set<String> remaining = new HashSet<String>(fileNames);
+		for(String s : fileNames){
+			File part = partFile(s);
+			if(!part.isFile() || part.length() == 0){
+				continue;
+			}
+			System.out.println(name+": resume file "+s+" from byte "+part.length());
+			sendResume(s);
+			
+			Vector<String> reply = codec.readMessage();
+			if(reply == null || reply.size() != MSG_SIZE ||
+			   !s.equals(reply.get(MSG_NAME_INDEX))){
+				throw new IOException("Unexpected reply while resuming "+s);
+			}
+			if(reply.get(MSG_TYPE_INDEX).equalsIgnoreCase(TYPE_APPEND) && receiveAppend(reply)){
+				keepModifiedTime(s);
+				remaining.remove(s);
+			}
+		}
+		return remaining;
+	}
+	
+	/**
+	 * Ask the server for the partial copies it kept of server missing files of at
+	 * least {@link SyncOptions#resumeThreshold} bytes, and push the rest of each file
+	 * whose part matches the beginning of the local copy.
+	 * @param fileNames The server missing file names.
+	 * @return The names of the files that were not resumed.
+	 * @throws IOException If the communication cannot be completed.
+	 * @throws ClassNotFoundException If a received message is corrupted.
+	 */
+	private Set<String> resumePushes(Set<String> fileNames) throws IOException, ClassNotFoundException{
+		Set<String> remaining = new HashSet<String>(fileNames);
+		for(String s : fileNames){
+			File local = localFile(s);
+			if(!local.isFile() || local.length() < options.resumeThreshold){
+				continue;
+			}
+			codec.writeMessage(makeMsg(TYPE_RESUME_PUSH, s, NIL));
+			codec.flush();
+			
+			Vector<String> reply = codec.readMessage();
+			if(reply == null || reply.size() != MSG_SIZE ||
+			   !reply.get(MSG_TYPE_INDEX).equalsIgnoreCase(TYPE_RESUME) ||
+			   !s.equals(reply.get(MSG_NAME_INDEX))){
+				throw new IOException("Unexpected reply while resuming "+s);
+			}
+			long offset = receiveResume(reply);
+			if(offset == 0){
+				continue;
+			}
+			System.out.println(name+": push file "+s+" from byte "+offset);
+			sendAppend(s, offset);
+			
+			Vector<String> ack = codec.readMessage();
+			if(ack == null || ack.size() != MSG_SIZE ||
+			   !s.equals(ack.get(MSG_NAME_INDEX))){
+				throw new IOException("Unexpected reply while resuming "+s);
+			}
+			if(ack.get(MSG_TYPE_INDEX).equalsIgnoreCase(TYPE_ACK)){
+				remaining.remove(s);
+			} else {
+				System.out.println(name+": server failed to receive file "+s);
+			}
+		}
+		return remaining;
+	}
+	
+	/**
+	 * Request client missing files of at least {@link SyncOptions#chunkThreshold} bytes
+	 * by their chunks. The server sends the chunk list of its copy and only the chunks
+	 * that are not found in the local {@link ChunkIndex} are asked for. The index is
+	 * brought up to date before the first request.
+	 * @param fileNames The client missing file names.
+	 * @return The names of the files that were not received by chunks.
+	 * @throws IOException If the communication cannot be completed.
+	 * @throws ClassNotFoundException If a received message is corrupted.
+	 */
+	private Set<String> chunkedRequests(Set<String> fileNames) throws IOException, ClassNotFoundException{
+		Set<String> remaining = new HashSet<String>(fileNames);
+		for(String s : fileNames){
+			ManifestEntry entry = missingManifest.get(s);
+			if(entry == null || entry.size < options.chunkThreshold){
+				continue;
+			}
+			//Chunk the local files before the server waits for the wanted chunks
+			chunkIndex();
+			codec.writeMessage(makeMsg(TYPE_CHUNK_FETCH, s, NIL));
+			codec.flush();
+			
+			Vector<String> reply = codec.readMessage();
+			if(reply == null || reply.size() != MSG_SIZE ||
+			   !s.equals(reply.get(MSG_NAME_INDEX))){
+				throw new IOException("Unexpected reply while requesting chunks of "+s);
+			}
+			if(!reply.get(MSG_TYPE_INDEX).equalsIgnoreCase(TYPE_CHUNKS)){
+				continue;
+			}
+			ChunkedTransfer.ChunkList list = receiveChunkList(reply);
+			BitSet wanted = sendWanted(s, list);
+			System.out.println(name+": request "+wanted.cardinality()+" of "+list.size()+
+					" chunks of file "+s);
+			if(receiveChunks(s, list, wanted)){
+				keepModifiedTime(s);
+				remaining.remove(s);
+			}
+		}
+		return remaining;
+	}
+	
+	/**
+	 * Push server missing files of at least {@link SyncOptions#chunkThreshold} bytes
+	 * by their chunks. The server answers the chunk list with the chunks it does not
+	 * find locally, and only those are sent.
+	 * @param fileNames The server missing file names.
+	 * @return The names of the files that were not sent by chunks.
+	 * @throws IOException If the communication cannot be completed.
+	 * @throws ClassNotFoundException If a received message is corrupted.
+	 */
+	private Set<String> chunkedPushes(Set<String> fileNames) throws IOException, ClassNotFoundException{
+		Set<String> remaining = new HashSet<String>(fileNames);
+		for(String s : fileNames){
+			File local = localFile(s);
+			if(!local.isFile() || local.length() < options.chunkThreshold){
+				continue;
+			}
+			ChunkedTransfer.ChunkList list = sendChunkList(s);
+			
+			Vector<String> want = codec.readMessage();
+			if(want == null || want.size() != MSG_SIZE ||
+			   !want.get(MSG_TYPE_INDEX).equalsIgnoreCase(TYPE_CHUNK_WANT) ||
+			   !s.equals(want.get(MSG_NAME_INDEX))){
+				throw new IOException("Unexpected reply while pushing chunks of "+s);
+			}
+			BitSet wanted = receiveWanted(want, list);
+			System.out.println(name+": push "+wanted.cardinality()+" of "+list.size()+
+					" chunks of file "+s);
+			sendChunks(s, list, wanted);
+			
+			Vector<String> ack = codec.readMessage();
+			if(ack == null || ack.size() != MSG_SIZE ||
+			   !s.equals(ack.get(MSG_NAME_INDEX))){
+				throw new IOException("Unexpected reply while pushing chunks of "+s);
+			}
+			if(ack.get(MSG_TYPE_INDEX).equalsIgnoreCase(TYPE_ACK)){
+				remaining.remove(s);
+			} else {
+				System.out.println(name+": server failed to rebuild file "+s);
+			}
+		}
+		return remaining;
+	}
+	
+	/**
+	 * Send one bundle to the server and wait for its acknowledgement.
+	 * @param bundle The names of the files in the bundle.
+	 * @throws IOException If the communication cannot be completed.
+	 * @throws ClassNotFoundException If the received acknowledgement is corrupted.
+	 */
+	private void pushBatch(List<String> bundle) throws IOException, ClassNotFoundException{
+		sendBatch(bundle);
+		if(!recvAck()){
+			System.out.println(name+": server failed to receive a bundle of "+bundle.size()+" files");
+		}
+	}
+	
+	/**
+	 * Ask a kept-alive client for another synchronization round now instead
+	 * of at the end of its {@link SyncOptions#keepAlive} period.
+	 * To be called by {@link Peer}.
+	 */
+	public synchronized void requestSync() {
+		syncRequested = true;
+		notifyAll();
+		wakeListening();
+	}
+
+	/**
+	 * Inform the client to finish the current round and close the connection.
+	 */
+	@Override
+	public synchronized void close() {
+		super.close();
+		notifyAll();
+		wakeListening();
+	}
+
+	/**
+	 * Wake up a wait for a {@link SyncProcess#TYPE_NOTIFY}.
+	 */
+	private void wakeListening() {
+		Selector selector = listening;
+		if (selector != null) {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Wait until the next synchronization round is due, which is after
+	 * {@link SyncOptions#keepAlive} seconds or when {@link ClientProcess#requestSync()}
+	 * is called. With {@link SyncProcess#FEATURE_LIVE}, the server is asked with a
+	 * {@link SyncProcess#TYPE_LISTEN} to notify of its changes, which also starts a round.
+	 * The connection is then watched by a {@link Selector} without a read time out,
+	 * so no part of a message is ever dropped.
+	 * @return {@code true} if another round should run, or {@code false} if the client is closed.
+	 * @throws IOException If the communication cannot be completed.
+	 * @throws ClassNotFoundException If a received message is corrupted.
+	 */
+	private boolean awaitNextRound() throws IOException, ClassNotFoundException {
+		boolean live = hasFeature(FEATURE_LIVE);
+		if (live) {
+			codec.writeMessage(makeMsg(TYPE_LISTEN, NIL, NIL));
+			codec.flush();
+		}
+		long deadline = options.keepAlive > 0 ? 
+				System.currentTimeMillis() + options.keepAlive * 1000L : Long.MAX_VALUE;
+		boolean notified = false;
+		if (live) {
+			listening = Selector.open();
+			channel.configureBlocking(false);
+			channel.register(listening, SelectionKey.OP_READ);
+		}
+		try {
+			while (true) {
+				long remaining;
+				synchronized (this) {
+					remaining = deadline - System.currentTimeMillis();
+					if (isClosed() || syncRequested || remaining <= 0) {
+						syncRequested = false;
+						return !isClosed();
+					}
+					if (!live) {
+						try {
+							wait(remaining);
+						} catch (InterruptedException e) {
+							return false;
+						}
+						continue;
+					}
+				}
+				//A select time out of 0 waits without a limit
+				if (codec.buffered() > 0 ||
+					listening.select(options.keepAlive > 0 ? remaining : 0) > 0) {
+					notified = true;
+					break;
+				}
+			}
+		} finally {
+			if (live) {
+				//Closing the selector deregisters the channel, so it can block again
+				listening.close();
+				listening = null;
+				channel.configureBlocking(true);
+			}
+		}
+		if (notified) {
+			awaitNotify();
+		}
+		return !isClosed();
+	}
+
+	/**
+	 * Read the {@link SyncProcess#TYPE_NOTIFY} of the server once it started to arrive.
+	 * @throws IOException If the communication cannot be completed or the server sent something else.
+	 * @throws ClassNotFoundException If a received message is corrupted.
+	 */
+	private void awaitNotify() throws IOException, ClassNotFoundException {
+		Vector<String> msg = codec.readMessage();
+		if (msg == null || msg.size() != MSG_SIZE ||
+			!msg.get(MSG_TYPE_INDEX).equalsIgnoreCase(TYPE_NOTIFY)) {
+			throw new IOException("Unexpected message while waiting for changes");
+		}
+		System.out.println(name+": server folder changed");
+	}
+
+	/**
+	 * Run one synchronization round over the open connection.
 	 * It asks the server for the differences in file lists and request
 	 * client missing files from the server followed by pushing server 
 	 * missing files to the server.
+	 * @throws IOException If the communication cannot be completed.
+	 * @throws ClassNotFoundException If a received message is corrupted.
+	 */
+	private void syncRound() throws IOException, ClassNotFoundException{
+		forgetChunkIndex();
+
+		//Compare file lists with server
+		Vector<Set<String>> vLists = syncFileList();
+		
+		//Request and push files according to the differences in file lists.
+		if(vLists == null){
+			System.out.println("Unable to sync file lists.");
+			return;
+		}
+		Set<String> missingFileNameList = vLists.get(MISSING_FILE_LIST_INDEX);
+		Set<String> extraFileNameList = vLists.get(EXTRA_FILE_LIST_INDEX);
+		
+		//Take files whose content is already here from local copies
+		if(hasFeature(FEATURE_MANIFEST) && options.dedup){
+			missingFileNameList = copyLocalFiles(missingFileNameList);
+		}
+		
+		//Move small files in bundles first
+		if(hasFeature(FEATURE_BATCH)){
+			missingFileNameList = fetchBatches(missingFileNameList);
+			extraFileNameList = pushBatches(extraFileNameList);
+		}
+		
+		//Continue transfers that broke off in an earlier round
+		if(hasFeature(FEATURE_RESUME)){
+			missingFileNameList = resumeRequests(missingFileNameList);
+			extraFileNameList = resumePushes(extraFileNameList);
+		}
+		
+		//Send only the changes to large files both sides have
+		if(hasFeature(FEATURE_DELTA)){
+			missingFileNameList = deltaRequests(missingFileNameList);
+			extraFileNameList = deltaPushes(extraFileNameList);
+		}
+		
+		//Send new large files by the chunks the other side does not have
+		if(hasFeature(FEATURE_CHUNK)){
+			missingFileNameList = chunkedRequests(missingFileNameList);
+			extraFileNameList = chunkedPushes(extraFileNameList);
+		}
+		
+		if(options.connections > 1){
+			parallelTransfers(missingFileNameList, extraFileNameList);
+		} else if(hasFeature(FEATURE_PIPELINE)){
+			pipelineRequests(missingFileNameList);
+			pipelinePushes(extraFileNameList);
+		} else {
+			//Request client missing files
+			for (String s : missingFileNameList) {
+				System.out.println(name+": request file "+s);
+				requestFile(s);
+			}
+			
+			//Pushing server missing files (a.k.a. client extra files)
+			for (String s : extraFileNameList) {
+				System.out.println(name+": push file "+s);
+				pushFile(s);
+			}
+		}
+	}
+	
+	/**
+	 * Request and push files over {@link SyncOptions#connections} connections at
+	 * the same time. This connection is one of them and the others are opened
+	 * for the round. The files are spread by a {@link TransferScheduler}.<br>
+	 * If {@link SyncProcess#FEATURE_RANGE} is agreed, files larger than
+	 * {@link SyncOptions#stripeSize} whose length and digest are known from the
+	 * manifests are split into ranges of that size. A requested file is collected
+	 * in a {@link StripedFile}, which is removed if not all of its ranges arrived.
+	 * @param missing The client missing file names.
+	 * @param extra The server missing file names.
+	 * @throws IOException If the communication cannot be completed.
+	 * @throws ClassNotFoundException If a received message is corrupted.
+	 */
+	private void parallelTransfers(Set<String> missing, Set<String> extra) throws IOException, ClassNotFoundException{
+		List<TransferScheduler.Transfer> transfers = new ArrayList<TransferScheduler.Transfer>();
+		stripedFiles.clear();
+		for(String s : missing){
+			ManifestEntry entry = missingManifest.get(s);
+			if(striped(entry) && newStripedFile(entry)){
+				addRanges(transfers, entry, false);
+			} else {
+				transfers.add(new TransferScheduler.Transfer(s, entry != null ? entry.size : 0, false));
+			}
+		}
+		for(String s : extra){
+			ManifestEntry entry = localManifest.get(s);
+			if(striped(entry)){
+				addRanges(transfers, entry, true);
+			} else {
+				long size = localFile(s).length();
+				transfers.add(new TransferScheduler.Transfer(s, size, true));
+			}
+		}
+		if(transfers.isEmpty()) return;
+		
+		int slots = Math.min(options.connections, transfers.size());
+		TransferScheduler transferScheduler = new TransferScheduler(transfers, slots);
+		List<ClientProcess> connections = new ArrayList<ClientProcess>();
+		for(int i = 1; i < slots; ++i){
+			ClientProcess connection = new ClientProcess(this, transferScheduler, i);
+			connections.add(connection);
+			connection.start();
+		}
+		try{
+			try{
+				runTransfers(transferScheduler, 0);
+			} finally {
+				transferScheduler.finished();
+			}
+			for(ClientProcess connection : connections){
+				connection.join();
+			}
+		} catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+		} finally {
+			for(StripedFile striped : stripedFiles.values()){
+				striped.abort();
+			}
+		}
+	}
+	
+	/**
+	 * Check whether a file is to be moved in ranges.
+	 * @param entry The manifest entry of the file, or {@code null} if unknown.
+	 * @return {@code true} if the file is larger than {@link SyncOptions#stripeSize}.
+	 */
+	private boolean striped(ManifestEntry entry){
+		return hasFeature(FEATURE_RANGE) && entry != null && entry.digest != null &&
+			   options.stripeSize > 0 && entry.size > options.stripeSize;
+	}
+	
+	/**
+	 * Preallocate the {@link StripedFile} a requested file is collected in.
+	 * @param entry The server manifest entry of the file.
+	 * @return {@code true} if the file can be received in ranges.
+	 */
+	private boolean newStripedFile(ManifestEntry entry){
+		try{
+			stripedFiles.put(entry.name, new StripedFile(localFile(entry.name),
+					tempFile(entry.name), entry.size, entry.digest));
+			return true;
+		} catch (IOException e){
+			System.out.println(name + ": " + e.getMessage());
+			return false;
+		}
+	}
+	
+	/**
+	 * Split a file into transfers of {@link SyncOptions#stripeSize} bytes.
+	 * @param transfers The list the ranges are added to.
+	 * @param entry The manifest entry of the file.
+	 * @param push Whether the file is pushed to the server.
+	 */
+	private void addRanges(List<TransferScheduler.Transfer> transfers, ManifestEntry entry, boolean push){
+		for(long offset = 0; offset < entry.size; offset += options.stripeSize){
+			long length = Math.min(options.stripeSize, entry.size - offset);
+			transfers.add(new TransferScheduler.Transfer(entry.name, offset, length, push, true));
+		}
+	}
+	
+	/**
+	 * Request one range of a file and write it into its {@link StripedFile}. The
+	 * connection that receives the last range checks and moves the file.
+	 * @param transfer The range to be requested.
+	 * @throws IOException If the communication cannot be completed.
+	 * @throws ClassNotFoundException If a received message is corrupted.
+	 */
+	private void requestRange(TransferScheduler.Transfer transfer) throws IOException, ClassNotFoundException{
+		StripedFile striped = stripedFiles.get(transfer.name);
+		System.out.println(name+": request file "+transfer.name+" from byte "+transfer.offset);
+		codec.writeMessage(makeMsg(TYPE_RANGE, transfer.name, String.valueOf(transfer.size)));
+		codec.writeVarLong(transfer.offset);
+		codec.flush();
+		
+		Vector<String> reply = codec.readMessage();
+		if(reply == null || reply.size() != MSG_SIZE ||
+		   !transfer.name.equals(reply.get(MSG_NAME_INDEX))){
+			throw new IOException("Unexpected reply while requesting "+transfer.name);
+		}
+		if(!reply.get(MSG_TYPE_INDEX).equalsIgnoreCase(TYPE_RANGE)){
+			System.out.println(name+": server cannot send file "+transfer.name+" from byte "+transfer.offset);
+			return;
+		}
+		if(Long.parseLong(reply.get(MSG_LENGTH_INDEX)) != transfer.size){
+			throw new IOException("Unexpected range length of "+transfer.name);
+		}
+		if(striped.write(codec, transfer.offset, transfer.size) &&
+		   striped.rangeDone(transfer.offset, transfer.size) && striped.finish()){
+			keepModifiedTime(transfer.name);
+		}
+	}
+	
+	/**
+	 * Push one range of a file together with the length and digest of the whole
+	 * file, so the server can check the file once all ranges arrived.
+	 * @param transfer The range to be pushed.
+	 * @throws IOException If the communication cannot be completed.
+	 * @throws ClassNotFoundException If a received message is corrupted.
+	 */
+	private void pushRange(TransferScheduler.Transfer transfer) throws IOException, ClassNotFoundException{
+		ManifestEntry entry = localManifest.get(transfer.name);
+		File fin = localFile(transfer.name);
+		System.out.println(name+": push file "+transfer.name+" from byte "+transfer.offset);
+		codec.writeMessage(makeMsg(TYPE_RANGE_PUSH, transfer.name, String.valueOf(transfer.size)));
+		codec.writeVarLong(transfer.offset);
+		codec.writeVarLong(entry.size);
+		codec.writeBytes(entry.digest);
+		sendRangeData(fin, transfer.offset, transfer.size);
+		codec.flush();
+		
+		Vector<String> reply = codec.readMessage();
+		if(reply == null || reply.size() != MSG_SIZE ||
+		   !transfer.name.equals(reply.get(MSG_NAME_INDEX))){
+			throw new IOException("Unexpected reply while pushing "+transfer.name);
+		}
+		if(!reply.get(MSG_TYPE_INDEX).equalsIgnoreCase(TYPE_ACK)){
+			System.out.println(name+": server failed to receive file "+transfer.name+" from byte "+transfer.offset);
+		}
+	}
+	
+	/**
+	 * Take transfers from a scheduler until none is left. Every file or range is moved
+	 * in one round trip if {@link SyncProcess#FEATURE_PIPELINE} is agreed. Pulls
+	 * and pushes are not mixed within the pipeline window, as a file being pushed
+	 * while another one is received could block both sides.
+	 * @param transferScheduler The transfers of the round.
+	 * @param index The index of this connection in the scheduler.
+	 * @throws IOException If the communication cannot be completed.
+	 * @throws ClassNotFoundException If a received message is corrupted.
+	 */
+	private void runTransfers(TransferScheduler transferScheduler, int index) throws IOException, ClassNotFoundException{
+		TransferScheduler.Transfer transfer;
+		while(!isClosed() && (transfer = transferScheduler.take(index)) != null){
+			Set<String> one = Collections.singleton(transfer.name);
+			if(transfer.range){
+				if(transfer.push){
+					pushRange(transfer);
+				} else {
+					requestRange(transfer);
+				}
+			} else if(hasFeature(FEATURE_PIPELINE)){
+				if(transfer.push){
+					pipelinePushes(one);
+				} else {
+					pipelineRequests(one);
+				}
+			} else if(transfer.push){
+				System.out.println(name+": push file "+transfer.name);
+				pushFile(transfer.name);
+			} else {
+				System.out.println(name+": request file "+transfer.name);
+				requestFile(transfer.name);
+			}
+		}
+	}
+	
+	/**
+	 * Open the connection to the server and agree on the protocol. If the server
+	 * does not answer {@link SyncProcess#TYPE_HELLO}, the connection is replaced by
+	 * one that uses the legacy protocol from the start, so a late answer cannot be
+	 * taken for the reply to a later command. An additional data connection gives up
+	 * if the server does not start serving it within the time out, for example while
+	 * all its workers are taken, and leaves its transfers to the other connections.
+	 * @throws IOException If the connection cannot be established.
+	 * @throws ClassNotFoundException If the received answer is corrupted.
+	 */
+	private void connect() throws IOException, ClassNotFoundException{
+		System.out.println(name+": Establishing connection to "+this.ipAddr);
+		open();
+		System.out.println(name+": Connection established.");
+		
+		if (scheduler != null) {
+			socket.setSoTimeout(TIME_OUT*10);
+		}
+		if (!negotiate()) {
+			System.out.println(name+": The other peer only supports the legacy protocol.");
+			reconnect();
+		}
+		socket.setSoTimeout(0);
+	}
+	
+	/**
+	 * Replace the connection by a new one once the server ended the session
+	 * on the old one. A legacy server only listens again some time after that,
+	 * so the new connection is retried until it is accepted.
+	 * @throws IOException If the connection cannot be established.
+	 */
+	private void reconnect() throws IOException{
+		socket.setSoTimeout(TIME_OUT*4);
+		socket.shutdownOutput();
+		try {
+			InputStream in = socket.getInputStream();
+			while (in.read() >= 0) {
+				//Drop whatever the server still sends on the old connection
+			}
+		} catch (IOException e) {
+			//The old connection is given up anyway
+		}
+		socket.close();
+		
+		for (int attempt = 1; ; ++attempt) {
+			try {
+				Thread.sleep(TIME_OUT);
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted while reconnecting");
+			}
+			try {
+				open();
+				return;
+			} catch (SocketException e) {
+				//Refused or reset while the server is not listening yet
+				if (socket != null) socket.close();
+				if (attempt >= RECONNECT_ATTEMPTS) {
+					throw e;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Open a socket to the server, on which messages are exchanged with {@link ObjectCodec}.
+	 * @throws IOException If the connection cannot be established.
+	 */
+	private void open() throws IOException{
+		//Open through a channel so the socket supports zero-copy transfer
+		channel = SocketChannel.open(new InetSocketAddress(ipAddr, port));
+		socket = channel.socket();
+		//Every message is flushed on purpose, so do not hold small ones back
+		socket.setTcpNoDelay(true);
+		codec = new ObjectCodec(
+				socket.getOutputStream(),
+				socket.getInputStream());
+	}
+	
+	/**
+	 * Start the client and connect to the server for synchronization.
+	 * One round is run, after which the connection is closed unless
+	 * {@link SyncOptions#keepAlive} or {@link SyncOptions#live} is set. An additional data connection
+	 * only moves the files it takes from its {@link TransferScheduler}. A kept-alive connection runs
+	 * further rounds over the same streams until the client is closed.
 	 */
 	@Override
 	public void run() {
@@ -104,53 +1284,44 @@ class ClientProcess extends SyncProcess {
 				return;
 			}
 			
-			System.out.println(name+": Establishing connection to "+this.ipAddr);
-
-			socket = new Socket(ipAddr, port);
-			System.out.println(name+": Connection established.");
-			
-			oos = new ObjectOutputStream(
-					socket.getOutputStream());
-			ois = new ObjectInputStream(
-					socket.getInputStream());
-
-			
-			Set<File> fileList = getFileList();
-			Set<String> fileNameList = getFileNameList(fileList);
-
-			//Compare file lists with server
-			Vector<Set<String>> vLists = syncFileList(fileNameList);
-			
-			//Request and push files according to the differences in file lists.
-			if(vLists == null){
-				System.out.println("Unable to sync file lists.");
-			} else {
-				Set<String> missingFileNameList = vLists.get(MISSING_FILE_LIST_INDEX);
-				Set<String> extraFileNameList = vLists.get(EXTRA_FILE_LIST_INDEX);
-				
-				//Request client missing files
-				for (String s : missingFileNameList) {
-					System.out.println(name+": request file "+s);
-					requestFile(s);
-				}
-				
-				//Pushing server missing files (a.k.a. client extra files)
-				for (String s : extraFileNameList) {
-					System.out.println(name+": push file "+s);
-					pushFile(s);
+			//An additional data connection only moves files
+			if (scheduler != null) {
+				try {
+					connect();
+					runTransfers(scheduler, slot);
+				} finally {
+					scheduler.finished();
 				}
+				scheduler.awaitFinished();
+				codec.close();
+				socket.close();
+				return;
 			}
+			
+			connect();
+			
+			do {
+				syncRound();
+				System.out.println(name+": synchronization finished!");
+			} while ((options.keepAlive > 0 || options.live > 0) && awaitNextRound());
 
-			ois.close();
-			oos.close();
+			codec.close();
 			socket.close();
-			
-			System.out.println(name+": synchronization finished!");
-		}catch(UnknownHostException|SocketException e){
+		}catch(UnknownHostException|SocketException|UnresolvedAddressException e){
 			System.out.println(name + ": Failed to establish connection to "+this.ipAddr+". ");
 			System.out.println("Reason: "+e.getMessage());
+		} catch (SocketTimeoutException e) {
+			System.out.println(name + ": The server did not serve this connection, "+
+					"its files are moved by the other connections.");
 		} catch (Exception e) {
 			System.out.println(name + ": Something went wrong - "+e.getMessage()+". Please try again.");
+		} finally {
+			//A connection a failure left out of step must not stay open
+			try {
+				if (socket != null) socket.close();
+			} catch (IOException e) {
+				System.out.println(name + ": " + e.getMessage());
+			}
 		}
 	}
 }
\ No newline at end of file
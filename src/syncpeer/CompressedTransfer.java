@@ -0,0 +1,158 @@
+package syncpeer;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Per-file compression of file data for {@link SyncProcess#FEATURE_COMPRESS}.<br>
+ * <br>
+ * When the feature is agreed, the data of every file starts with a mode byte.
+ * {@link CompressedTransfer#MODE_STORED} is followed by the raw bytes as before.
+ * {@link CompressedTransfer#MODE_DEFLATED} is followed by chunks, each a varint
+ * length and the {@link Deflater} output for up to {@link CompressedTransfer#CHUNK_SIZE}
+ * bytes of the file, flushed with {@link Deflater#SYNC_FLUSH} so every chunk can
+ * be inflated as it arrives. The receiver knows the file length from the header
+ * and stops once it has inflated that many bytes.<br>
+ * <br>
+ * The sender deflates a sample from the beginning of the file first and sends
+ * the file stored if the sample does not shrink to {@link CompressedTransfer#MAX_RATIO}
+ * of its size, so media and archives cost no compression time.
+ * @author Wenhao
+ *
+ */
+class CompressedTransfer {
+
+	public static final int MODE_STORED = 0;
+	public static final int MODE_DEFLATED = 1;
+
+	public static final int CHUNK_SIZE = 64 * 1024;
+	public static final int SAMPLE_SIZE = 64 * 1024;
+	public static final int MIN_FILE_SIZE = 512;
+	public static final double MAX_RATIO = 0.9;
+	public static final int MAX_CHUNK_BYTES = 2 * CHUNK_SIZE + 1024;
+
+	/**
+	 * Check whether a file is worth compressing by deflating a sample of it.
+	 * @param file The file to be sent.
+	 * @param level The {@link Deflater} level.
+	 * @return {@code true} if the sample shrinks enough.
+	 * @throws IOException If the file cannot be read.
+	 */
+	public static boolean worthCompressing(File file, int level) throws IOException {
+		if (file.length() < MIN_FILE_SIZE) {
+			return false;
+		}
+		byte[] sample = new byte[(int) Math.min(SAMPLE_SIZE, file.length())];
+		int length = 0;
+		try (FileInputStream fis = new FileInputStream(file)) {
+			int count;
+			while (length < sample.length &&
+				   (count = fis.read(sample, length, sample.length - length)) > 0) {
+				length += count;
+			}
+		}
+		Deflater deflater = new Deflater(level, true);
+		try {
+			deflater.setInput(sample, 0, length);
+			deflater.finish();
+			byte[] out = new byte[SyncProcess.BUFFER_SIZE];
+			long compressed = 0;
+			while (!deflater.finished()) {
+				compressed += deflater.deflate(out);
+				if (compressed > length * MAX_RATIO) {
+					return false;
+				}
+			}
+			return true;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Write file data as deflated chunks. The mode byte is written by the caller.
+	 * @param codec The codec to write to.
+	 * @param in The file data.
+	 * @param size The number of bytes to be sent.
+	 * @param level The {@link Deflater} level.
+	 * @throws IOException If the communication or the file reading cannot be completed.
+	 */
+	public static void write(WireCodec codec, InputStream in, long size, int level) throws IOException {
+		Deflater deflater = new Deflater(level, true);
+		try {
+			byte[] chunk = new byte[CHUNK_SIZE];
+			byte[] out = new byte[MAX_CHUNK_BYTES];
+			long remaining = size;
+			while (remaining > 0) {
+				int length = 0;
+				int want = (int) Math.min(chunk.length, remaining);
+				while (length < want) {
+					int count = in.read(chunk, length, want - length);
+					if (count < 0) {
+						throw new EOFException("File was truncated while sending!");
+					}
+					length += count;
+				}
+				remaining -= length;
+
+				//A chunk never grows by more than a few bytes, so one flush fits the buffer
+				deflater.setInput(chunk, 0, length);
+				int compressed = deflater.deflate(out, 0, out.length, Deflater.SYNC_FLUSH);
+				if (compressed == out.length || !deflater.needsInput()) {
+					throw new IOException("Compressed chunk does not fit its buffer");
+				}
+				codec.writeVarLong(compressed);
+				codec.write(out, 0, compressed);
+			}
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Read deflated chunks written by {@link CompressedTransfer#write(WireCodec, InputStream, long, int)}.
+	 * @param codec The codec to read from.
+	 * @param out The stream the file data is written to.
+	 * @param size The number of bytes of file data.
+	 * @throws IOException If the communication cannot be completed or the data is corrupted.
+	 */
+	public static void read(WireCodec codec, OutputStream out, long size) throws IOException {
+		Inflater inflater = new Inflater(true);
+		try {
+			byte[] chunk = new byte[MAX_CHUNK_BYTES];
+			byte[] buffer = new byte[CHUNK_SIZE];
+			long remaining = size;
+			while (remaining > 0) {
+				long length = codec.readVarLong();
+				if (length <= 0 || length > chunk.length) {
+					throw new StreamCorruptedException("Invalid compressed chunk of " + length + " bytes");
+				}
+				codec.readFully(chunk, 0, (int) length);
+				inflater.setInput(chunk, 0, (int) length);
+				int count;
+				while ((count = inflater.inflate(buffer)) > 0) {
+					if (count > remaining) {
+						throw new StreamCorruptedException("Compressed data is longer than the file");
+					}
+					out.write(buffer, 0, count);
+					remaining -= count;
+				}
+				if (!inflater.needsInput()) {
+					throw new StreamCorruptedException("Invalid compressed data");
+				}
+			}
+		} catch (DataFormatException e) {
+			throw new StreamCorruptedException(e.getMessage());
+		} finally {
+			inflater.end();
+		}
+	}
+}
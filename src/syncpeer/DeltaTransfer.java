@@ -0,0 +1,420 @@
+package syncpeer;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.StreamCorruptedException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * rsync-style delta encoding for {@link SyncProcess#FEATURE_DELTA}.<br>
+ * <br>
+ * The {@link Peer} holding an old copy of a file describes it by a signature:
+ * for every full block of {@link DeltaTransfer.Signature#blockSize} bytes, a weak
+ * rolling checksum and a truncated MD5. The {@link Peer} holding the new copy
+ * slides a window over its file, and wherever the weak checksum and then the
+ * MD5 match a block, it sends a reference to that block instead of the data.
+ * All other bytes are sent as literals. The delta ends with the digest of the
+ * new file, which the receiver checks after rebuilding the file.<br>
+ * <br>
+ * A delta is a sequence of {@link DeltaTransfer#OP_LITERAL} (varint length and
+ * bytes) and {@link DeltaTransfer#OP_COPY} (varint first block and block count)
+ * operations closed by {@link DeltaTransfer#OP_END} and the digest.
+ * @author Wenhao
+ *
+ */
+class DeltaTransfer {
+
+	public static final int OP_END = 0;
+	public static final int OP_LITERAL = 1;
+	public static final int OP_COPY = 2;
+
+	public static final int MIN_BLOCK_SIZE = 2048;
+	public static final int MAX_BLOCK_SIZE = 128 * 1024;
+	public static final int STRONG_BYTES = 8;
+	public static final int MAX_LITERAL = 64 * 1024;
+	public static final int MAX_DIGEST_BYTES = 64;
+	public static final int MAX_BLOCKS = 1 << 22;
+
+	/*
+	 * A run of consecutive block references is sent and flushed once it covers
+	 * this many bytes, so the receiver keeps hearing from the sender while a long
+	 * unchanged stretch of a large file is read and checked.
+	 */
+	public static final long MAX_COPY_RUN = 64L * 1024 * 1024;
+
+	private static final String STRONG_ALGORITHM = "MD5";
+
+	/**
+	 * The block checksums of the old copy of a file.
+	 */
+	static class Signature {
+		final int blockSize;
+		final int[] weak;
+		final byte[][] strong;
+
+		Signature(int blockSize, int[] weak, byte[][] strong) {
+			this.blockSize = blockSize;
+			this.weak = weak;
+			this.strong = strong;
+		}
+	}
+
+	/**
+	 * Choose a block size of about the square root of the file size.
+	 * @param size The file length.
+	 * @return The block size in bytes.
+	 */
+	public static int blockSizeFor(long size) {
+		long root = (long) Math.sqrt((double) size);
+		return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, root & ~0x3FFL));
+	}
+
+	/**
+	 * Compute the signature of a file.
+	 * @param file The old copy of the file.
+	 * @param blockSize The block size to be used.
+	 * @return The {@link Signature} of every full block.
+	 * @throws IOException If the file cannot be read.
+	 */
+	public static Signature signature(File file, int blockSize) throws IOException {
+		int blocks = (int) (file.length() / blockSize);
+		int[] weak = new int[blocks];
+		byte[][] strong = new byte[blocks][];
+		MessageDigest md = strongDigest();
+		byte[] block = new byte[blockSize];
+		try (InputStream in = new FileInputStream(file)) {
+			for (int i = 0; i < blocks; ++i) {
+				readFully(in, block);
+				weak[i] = new RollingChecksum(block, 0, blockSize).value();
+				strong[i] = strong(md, block, 0, blockSize);
+			}
+		}
+		return new Signature(blockSize, weak, strong);
+	}
+
+	/**
+	 * Write a signature to the other {@link Peer}. The block size travels in the
+	 * message header and is not written here.
+	 */
+	public static void writeSignature(WireCodec codec, Signature sig) throws IOException {
+		codec.writeVarLong(sig.weak.length);
+		for (int i = 0; i < sig.weak.length; ++i) {
+			codec.writeInt(sig.weak[i]);
+			codec.write(sig.strong[i], 0, STRONG_BYTES);
+		}
+	}
+
+	/**
+	 * Read a signature written by {@link DeltaTransfer#writeSignature(WireCodec, Signature)}.
+	 * At most {@link DeltaTransfer#MAX_BLOCKS} blocks are accepted.
+	 * @param blockSize The block size from the message header.
+	 */
+	public static Signature readSignature(WireCodec codec, int blockSize) throws IOException {
+		long blocks = codec.readVarLong();
+		if (blockSize < 1 || blockSize > MAX_BLOCK_SIZE || blocks > MAX_BLOCKS) {
+			throw new StreamCorruptedException("Invalid signature of " + blocks + " blocks");
+		}
+		int[] weak = new int[(int) blocks];
+		byte[][] strong = new byte[(int) blocks][STRONG_BYTES];
+		for (int i = 0; i < blocks; ++i) {
+			weak[i] = codec.readInt();
+			codec.readFully(strong[i], 0, STRONG_BYTES);
+		}
+		return new Signature(blockSize, weak, strong);
+	}
+
+	/**
+	 * Send the delta turning the old copy described by a signature into a new file.
+	 * Memory use is bounded by a few block sizes, whatever the file size.
+	 * @param codec The connection to the other {@link Peer}.
+	 * @param in The new copy of the file, which the caller closes.
+	 * @param sig The signature of the old copy.
+	 * @throws IOException If the communication or the file reading cannot be completed.
+	 */
+	public static void writeDelta(WireCodec codec, InputStream in, Signature sig) throws IOException {
+		Map<Integer, List<Integer>> blocks = new HashMap<Integer, List<Integer>>();
+		for (int i = 0; i < sig.weak.length; ++i) {
+			List<Integer> list = blocks.get(sig.weak[i]);
+			if (list == null) {
+				list = new ArrayList<Integer>(1);
+				blocks.put(sig.weak[i], list);
+			}
+			list.add(i);
+		}
+		
+		int bs = sig.blockSize;
+		MessageDigest md = strongDigest();
+		MessageDigest whole = SyncProcess.newDigest();
+		DeltaWriter out = new DeltaWriter(codec, bs);
+		byte[] buf = new byte[Math.max(4 * bs, MAX_LITERAL + bs)];
+		int end = fill(in, buf, 0, whole);
+		int pos = 0;
+		int literal = 0;
+		RollingChecksum weak = null;
+		while (true) {
+			//Keep at least one block and one more byte ahead of the window
+			if (end - pos <= bs && end == buf.length) {
+				out.literal(buf, literal, pos - literal);
+				System.arraycopy(buf, pos, buf, 0, end - pos);
+				end -= pos;
+				pos = 0;
+				literal = 0;
+				end = fill(in, buf, end, whole);
+			}
+			if (end - pos < bs || blocks.isEmpty()) {
+				break;
+			}
+			
+			if (weak == null) {
+				weak = new RollingChecksum(buf, pos, bs);
+			}
+			int match = -1;
+			List<Integer> candidates = blocks.get(weak.value());
+			if (candidates != null) {
+				byte[] strong = strong(md, buf, pos, bs);
+				for (int i : candidates) {
+					if (Arrays.equals(strong, sig.strong[i])) {
+						match = i;
+						break;
+					}
+				}
+			}
+			
+			if (match >= 0) {
+				out.literal(buf, literal, pos - literal);
+				out.copy(match);
+				pos += bs;
+				literal = pos;
+				weak = null;
+			} else {
+				if (pos + bs < end) {
+					weak.roll(buf[pos], buf[pos + bs]);
+				} else {
+					weak = null;
+				}
+				pos++;
+				if (pos - literal >= MAX_LITERAL) {
+					out.literal(buf, literal, pos - literal);
+					literal = pos;
+				}
+			}
+		}
+		
+		//Everything after the last match is sent as literals
+		out.literal(buf, literal, end - literal);
+		byte[] tail = new byte[MAX_LITERAL];
+		int count;
+		while ((count = in.read(tail)) > 0) {
+			whole.update(tail, 0, count);
+			out.literal(tail, 0, count);
+		}
+		out.end(whole.digest());
+	}
+
+	/**
+	 * Read a delta and rebuild the new file from it and the old copy. If the old
+	 * copy cannot be read or the new file cannot be written, the rest of the
+	 * delta is still read, so the connection stays in step.
+	 * @param codec The connection to the other {@link Peer}.
+	 * @param base The old copy of the file.
+	 * @param blockSize The block size of the signature the delta was built for.
+	 * @param target The file to be written.
+	 * @return {@code true} if the file was rebuilt and matches the digest sent with the delta.
+	 * @throws IOException If the communication cannot be completed.
+	 */
+	public static boolean readDelta(WireCodec codec, File base, int blockSize, File target) throws IOException {
+		MessageDigest whole = SyncProcess.newDigest();
+		byte[] buffer = new byte[Math.max(blockSize, SyncProcess.BUFFER_SIZE)];
+		SyncProcess.FileSink out = new SyncProcess.FileSink(target);
+		RandomAccessFile old = null;
+		try {
+			try {
+				old = new RandomAccessFile(base, "r");
+			} catch (IOException e) {
+				out.fail(e);
+			}
+			while (true) {
+				int op = codec.readUnsignedByte();
+				if (op == OP_END) {
+					break;
+				} else if (op == OP_LITERAL) {
+					long remaining = codec.readVarLong();
+					while (remaining > 0) {
+						int count = (int) Math.min(buffer.length, remaining);
+						codec.readFully(buffer, 0, count);
+						whole.update(buffer, 0, count);
+						out.write(buffer, 0, count);
+						remaining -= count;
+					}
+				} else if (op == OP_COPY) {
+					long first = codec.readVarLong();
+					long count = codec.readVarLong();
+					if (old == null || out.failure() != null) {
+						continue;
+					}
+					try {
+						old.seek(first * blockSize);
+						for (long i = 0; i < count; ++i) {
+							old.readFully(buffer, 0, blockSize);
+							whole.update(buffer, 0, blockSize);
+							out.write(buffer, 0, blockSize);
+						}
+					} catch (IOException e) {
+						out.fail(e);
+					}
+				} else {
+					throw new StreamCorruptedException("Unknown delta operation " + op);
+				}
+			}
+		} finally {
+			out.close();
+			if (old != null) {
+				try {
+					old.close();
+				} catch (IOException e) {
+					//Only read from
+				}
+			}
+		}
+		byte[] expected = codec.readBytes(MAX_DIGEST_BYTES);
+		if (out.failure() != null) {
+			System.out.println(target.getName() + ": " + out.failure().getMessage());
+			return false;
+		}
+		return Arrays.equals(expected, whole.digest());
+	}
+
+	/**
+	 * Writes delta operations, merging references to consecutive blocks
+	 * up to {@link DeltaTransfer#MAX_COPY_RUN} bytes.
+	 */
+	private static class DeltaWriter {
+		private final WireCodec codec;
+		private final int blockSize;
+		private long copyFirst = -1;
+		private long copyCount;
+
+		DeltaWriter(WireCodec codec, int blockSize) {
+			this.codec = codec;
+			this.blockSize = blockSize;
+		}
+
+		void literal(byte[] buf, int offset, int length) throws IOException {
+			if (length <= 0) return;
+			flushCopy();
+			codec.writeByte(OP_LITERAL);
+			codec.writeVarLong(length);
+			codec.write(buf, offset, length);
+		}
+
+		void copy(int block) throws IOException {
+			if (copyFirst >= 0 && copyFirst + copyCount == block) {
+				copyCount++;
+				if (copyCount * blockSize >= MAX_COPY_RUN) {
+					flushCopy();
+					codec.flush();
+				}
+				return;
+			}
+			flushCopy();
+			copyFirst = block;
+			copyCount = 1;
+		}
+
+		void end(byte[] digest) throws IOException {
+			flushCopy();
+			codec.writeByte(OP_END);
+			codec.writeBytes(digest);
+		}
+
+		private void flushCopy() throws IOException {
+			if (copyFirst < 0) return;
+			codec.writeByte(OP_COPY);
+			codec.writeVarLong(copyFirst);
+			codec.writeVarLong(copyCount);
+			copyFirst = -1;
+		}
+	}
+
+	/**
+	 * The weak checksum of rsync: two 16-bit sums over a window that can be 
+	 * moved by one byte in constant time.
+	 */
+	static class RollingChecksum {
+		private final int length;
+		private int a;
+		private int b;
+
+		RollingChecksum(byte[] buf, int offset, int length) {
+			this.length = length;
+			for (int i = 0; i < length; ++i) {
+				int x = buf[offset + i] & 0xFF;
+				a += x;
+				b += (length - i) * x;
+			}
+			a &= 0xFFFF;
+			b &= 0xFFFF;
+		}
+
+		/**
+		 * Move the window one byte forward.
+		 * @param out The byte leaving the window.
+		 * @param in The byte entering the window.
+		 */
+		void roll(byte out, byte in) {
+			int x = out & 0xFF;
+			a = (a - x + (in & 0xFF)) & 0xFFFF;
+			b = (b - length * x + a) & 0xFFFF;
+		}
+
+		int value() {
+			return a | (b << 16);
+		}
+	}
+
+	private static MessageDigest strongDigest() throws IOException {
+		try {
+			return MessageDigest.getInstance(STRONG_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private static byte[] strong(MessageDigest md, byte[] buf, int offset, int length) {
+		md.update(buf, offset, length);
+		return Arrays.copyOf(md.digest(), STRONG_BYTES);
+	}
+
+	/**
+	 * Read into a buffer until it is full or the stream ends, adding the bytes to a digest.
+	 * @return The new end of valid data in the buffer.
+	 */
+	private static int fill(InputStream in, byte[] buf, int end, MessageDigest whole) throws IOException {
+		while (end < buf.length) {
+			int count = in.read(buf, end, buf.length - end);
+			if (count < 0) break;
+			whole.update(buf, end, count);
+			end += count;
+		}
+		return end;
+	}
+
+	private static void readFully(InputStream in, byte[] buf) throws IOException {
+		int n = 0;
+		while (n < buf.length) {
+			int count = in.read(buf, n, buf.length - n);
+			if (count < 0) throw new EOFException();
+			n += count;
+		}
+	}
+}
@@ -0,0 +1,187 @@
+package syncpeer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A persistent cache of file digests for one sync folder, so that a rescan only
+ * hashes files whose size, modification time or file key (the inode on unix)
+ * changed since they were last hashed.<br>
+ * <br>
+ * The index is stored as {@code .<folder>.syncindex}, see {@link PersistentIndex}.
+ * New digests are appended as records; when a name is listed more than once
+ * the last record wins. The file is rewritten with only the live records once
+ * it holds more than twice as many records as files. A damaged tail is ignored,
+ * and the file is rewritten at the next save, since records appended after it
+ * could not be read back.
+ * @author Wenhao
+ *
+ */
+class FileIndex extends PersistentIndex {
+
+	public static final String INDEX_SUFFIX = ".syncindex";
+	public static final int INDEX_MAGIC = 0x53594E49;
+	public static final int INDEX_VERSION = 1;
+
+	/*
+	 * Files modified this recently are hashed but not cached, since another
+	 * write within the same timestamp would go unnoticed.
+	 */
+	public static final long RACY_WINDOW = 2000;
+
+	private static final Registry<FileIndex> INDEXES = new Registry<FileIndex>() {
+		@Override
+		FileIndex create(File folder) {
+			return new FileIndex(folder);
+		}
+	};
+
+	private final Map<String, Record> records = new HashMap<String, Record>();
+	private final List<Record> appended = new ArrayList<Record>();
+	private int recordCount;
+	private boolean damaged;
+
+	/**
+	 * Give the index of a sync folder, loading it from disk on first use.
+	 * @param folder The sync folder.
+	 * @return The shared {@link FileIndex} of the folder.
+	 */
+	public static FileIndex forFolder(File folder) {
+		return INDEXES.forFolder(folder);
+	}
+
+	private FileIndex(File folder) {
+		super(folder, INDEX_SUFFIX, INDEX_MAGIC, INDEX_VERSION);
+		damaged = !load();
+	}
+
+	/**
+	 * Give the cached digest of a file if its stat data did not change.
+	 * @param name The file name relative to the sync folder.
+	 * @param size The current file length.
+	 * @param mtime The current modification time in milliseconds.
+	 * @param fileKey The current file key, or {@link SyncProcess#NIL} if unknown.
+	 * @return The cached digest, or {@code null} if the file must be hashed.
+	 */
+	public synchronized byte[] lookup(String name, long size, long mtime, String fileKey) {
+		Record r = records.get(name);
+		if (r == null || r.size != size || r.mtime != mtime || !r.fileKey.equals(fileKey)) {
+			return null;
+		}
+		return r.digest;
+	}
+
+	/**
+	 * Remember the digest of a file. The record is written by {@link FileIndex#save()}.
+	 * @param name The file name relative to the sync folder.
+	 * @param size The file length when it was hashed.
+	 * @param mtime The modification time when it was hashed.
+	 * @param fileKey The file key when it was hashed.
+	 * @param digest The content digest.
+	 */
+	public synchronized void put(String name, long size, long mtime, String fileKey, byte[] digest) {
+		if (mtime > System.currentTimeMillis() - RACY_WINDOW) {
+			return;
+		}
+		Record r = new Record(name, size, mtime, fileKey, digest);
+		records.put(name, r);
+		appended.add(r);
+	}
+
+	/**
+	 * Forget the files that are no longer in the sync folder.
+	 * @param names The names of all files currently in the folder.
+	 */
+	public synchronized void retainAll(Set<String> names) {
+		Iterator<String> it = records.keySet().iterator();
+		while (it.hasNext()) {
+			if (!names.contains(it.next())) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Write the new records to disk, or rewrite the whole index if it 
+	 * holds too many outdated records. Failures only cost a rehash later.
+	 */
+	public synchronized void save() {
+		try {
+			if (damaged || recordCount + appended.size() > 2 * records.size() + 16) {
+				writeAll();
+				recordCount = records.size();
+				damaged = false;
+			} else if (!appended.isEmpty()) {
+				try (DataOutputStream out = openAppend()) {
+					for (Record r : appended) {
+						r.write(out);
+					}
+				}
+				recordCount += appended.size();
+			}
+		} catch (IOException e) {
+			System.out.println("FileIndex: cannot write " + indexFile + " - " + e.getMessage());
+		}
+		appended.clear();
+	}
+
+	@Override
+	protected void readRecord(DataInputStream in) throws IOException {
+		Record r = Record.read(in);
+		records.put(r.name, r);
+		recordCount++;
+	}
+
+	@Override
+	protected void writeRecords(DataOutputStream out) throws IOException {
+		for (Record r : records.values()) {
+			r.write(out);
+		}
+	}
+
+	/**
+	 * One cached digest and the stat data it was computed for.
+	 */
+	private static class Record {
+		final String name;
+		final long size;
+		final long mtime;
+		final String fileKey;
+		final byte[] digest;
+
+		Record(String name, long size, long mtime, String fileKey, byte[] digest) {
+			this.name = name;
+			this.size = size;
+			this.mtime = mtime;
+			this.fileKey = fileKey;
+			this.digest = digest;
+		}
+
+		void write(DataOutputStream out) throws IOException {
+			out.writeUTF(name);
+			out.writeLong(size);
+			out.writeLong(mtime);
+			out.writeUTF(fileKey);
+			out.writeByte(digest.length);
+			out.write(digest);
+		}
+
+		static Record read(DataInputStream in) throws IOException {
+			String name = in.readUTF();
+			long size = in.readLong();
+			long mtime = in.readLong();
+			String fileKey = in.readUTF();
+			byte[] digest = new byte[in.readUnsignedByte()];
+			in.readFully(digest);
+			return new Record(name, size, mtime, fileKey, digest);
+		}
+	}
+}
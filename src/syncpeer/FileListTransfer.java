@@ -0,0 +1,150 @@
+package syncpeer;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Paged file name lists for {@link SyncProcess#FEATURE_PAGED}.<br>
+ * <br>
+ * The names are sent in ascending {@link String#compareTo(String)} order, in pages
+ * of at most {@link FileListTransfer#PAGE_NAMES} names. A page is a varint count
+ * followed by its names, each front-coded against the name before it in the page:
+ * the varint number of leading UTF-8 bytes shared with it, the varint number of
+ * the remaining bytes and those bytes. A page with no names ends the list. Every
+ * page is flushed as soon as it is written, so the other {@link Peer} merges it
+ * while the next one is encoded.<br>
+ * <br>
+ * Since both lists are sorted, the differences are found by one merge pass
+ * with a {@link FileListTransfer.Reader}, and the list of the other {@link Peer}
+ * is never held in memory as a whole.
+ * @author Wenhao
+ *
+ */
+class FileListTransfer {
+
+	public static final int PAGE_NAMES = 1024;
+
+	/**
+	 * Sort file names for sending.
+	 * @param names The names in any order.
+	 * @return A new array of the names in ascending order.
+	 */
+	public static String[] sorted(Collection<String> names) {
+		String[] array = names.toArray(new String[names.size()]);
+		Arrays.sort(array);
+		return array;
+	}
+
+	/**
+	 * Write a sorted list of names in front-coded pages.
+	 * @param codec The codec to write to.
+	 * @param names The names in ascending order.
+	 * @throws IOException If the communication cannot be completed.
+	 */
+	public static void write(WireCodec codec, String[] names) throws IOException {
+		write(codec, Arrays.asList(names));
+	}
+
+	/**
+	 * Write a sorted list of names in front-coded pages.
+	 * @param codec The codec to write to.
+	 * @param names The names in ascending order.
+	 * @throws IOException If the communication cannot be completed.
+	 */
+	public static void write(WireCodec codec, List<String> names) throws IOException {
+		for (int from = 0; from < names.size(); from += PAGE_NAMES) {
+			int to = Math.min(names.size(), from + PAGE_NAMES);
+			codec.writeVarLong(to - from);
+			byte[] previous = new byte[0];
+			for (int i = from; i < to; ++i) {
+				byte[] bytes = names.get(i).getBytes(StandardCharsets.UTF_8);
+				int shared = 0;
+				int max = Math.min(previous.length, bytes.length);
+				while (shared < max && previous[shared] == bytes[shared]) {
+					shared++;
+				}
+				codec.writeVarLong(shared);
+				codec.writeVarLong(bytes.length - shared);
+				codec.write(bytes, shared, bytes.length - shared);
+				previous = bytes;
+			}
+			codec.flush();
+		}
+		codec.writeVarLong(0);
+	}
+
+	/**
+	 * Read a whole list written by {@link FileListTransfer#write(WireCodec, List)}.
+	 * @param codec The codec to read from.
+	 * @return The names, in ascending order.
+	 * @throws IOException If the communication cannot be completed or the list is corrupted.
+	 */
+	public static Set<String> read(WireCodec codec) throws IOException {
+		Set<String> names = new LinkedHashSet<String>();
+		Reader reader = new Reader(codec);
+		String name;
+		while ((name = reader.next()) != null) {
+			names.add(name);
+		}
+		return names;
+	}
+
+	/**
+	 * Reads a list written by {@link FileListTransfer#write(WireCodec, List)}
+	 * one name at a time, checking that the names ascend.
+	 */
+	static class Reader {
+		private final WireCodec codec;
+		private byte[] previous = new byte[0];
+		private String last;
+		private long remaining;
+		private boolean done;
+
+		Reader(WireCodec codec) {
+			this.codec = codec;
+		}
+
+		/**
+		 * Give the next name of the list.
+		 * @return The name, or {@code null} at the end of the list.
+		 * @throws IOException If the communication cannot be completed or the list is corrupted.
+		 */
+		String next() throws IOException {
+			if (done) {
+				return null;
+			}
+			if (remaining == 0) {
+				remaining = codec.readVarLong();
+				if (remaining == 0) {
+					done = true;
+					return null;
+				}
+				if (remaining > PAGE_NAMES) {
+					throw new StreamCorruptedException("Invalid page of " + remaining + " names");
+				}
+				previous = new byte[0];
+			}
+			long shared = codec.readVarLong();
+			long rest = codec.readVarLong();
+			if (shared > previous.length || rest > BinaryCodec.MAX_NAME_BYTES - shared) {
+				throw new StreamCorruptedException("Invalid name in file list");
+			}
+			byte[] bytes = Arrays.copyOf(previous, (int) (shared + rest));
+			codec.readFully(bytes, (int) shared, (int) rest);
+			String name = new String(bytes, StandardCharsets.UTF_8);
+			if (last != null && last.compareTo(name) >= 0) {
+				throw new StreamCorruptedException("File list is not sorted at " + name);
+			}
+			previous = bytes;
+			last = name;
+			remaining--;
+			return name;
+		}
+	}
+}
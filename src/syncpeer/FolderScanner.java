@@ -0,0 +1,407 @@
+package syncpeer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lists and describes the files of a sync folder on a {@link ForkJoinPool}, so
+ * that file stats and digests are computed concurrently. The files of each batch
+ * are split into ranges of at most {@link FolderScanner#SPLIT_THRESHOLD} files which
+ * idle workers steal from each other. A manifest of the folder describes the files
+ * as the walk finds them. Digests come from the {@link FileIndex} of the folder
+ * when possible.<br>
+ * <br>
+ * If {@link SyncOptions#recursive} is on, the subdirectories are listed too.
+ * Every directory is read as a {@link DirectoryStream}, never as one array, and its
+ * entries are handed to the workers in batches of {@link FolderScanner#WALK_BATCH},
+ * so subtrees are walked in parallel. A directory stream stops to wait for its oldest
+ * batch once {@link FolderScanner#MAX_PENDING_BATCHES} are pending, so a huge directory
+ * does not pile up in memory faster than it is visited. Symbolic links to directories
+ * are not followed, which keeps the walk inside the folder and free of cycles.
+ * @author Wenhao
+ *
+ */
+class FolderScanner {
+
+	public static final int SPLIT_THRESHOLD = 16;
+	public static final int WALK_BATCH = 256;
+	public static final int MAX_PENDING_BATCHES = 4;
+
+	private static final Map<Integer, ForkJoinPool> POOLS = new HashMap<Integer, ForkJoinPool>();
+
+	private final File folder;
+	private final FileIndex index;
+	private final ForkJoinPool pool;
+	private final boolean recursive;
+
+	private long lastScanMillis;
+	private int lastHashed;
+
+	/**
+	 * @param folder The sync folder.
+	 * @param index The digest cache, or {@code null} to hash every file.
+	 * @param parallelism The number of worker threads.
+	 * @param recursive Whether the subdirectories are listed too.
+	 */
+	FolderScanner(File folder, FileIndex index, int parallelism, boolean recursive) {
+		this.folder = folder;
+		this.index = index;
+		this.pool = pool(Math.max(1, parallelism));
+		this.recursive = recursive;
+	}
+
+	/**
+	 * Give the shared pool for a parallelism level.
+	 */
+	private static synchronized ForkJoinPool pool(int parallelism) {
+		ForkJoinPool pool = POOLS.get(parallelism);
+		if (pool == null) {
+			pool = new ForkJoinPool(parallelism);
+			POOLS.put(parallelism, pool);
+		}
+		return pool;
+	}
+
+	/**
+	 * Get the regular files of the folder and, unless the scanner is not recursive,
+	 * of its subdirectories. Temporary files of transfers in progress are left out.
+	 * @return A {@link Set} of {@link File}.
+	 */
+	public Set<File> listFiles() {
+		final Set<File> files = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+		walk(folder, new TreeVisitor() {
+			@Override
+			public void visitDirectory(File dir) {
+			}
+
+			@Override
+			public void visitFile(File file) {
+				files.add(file);
+			}
+		});
+		return new HashSet<File>(files);
+	}
+
+	/**
+	 * Check whether the subdirectories of the folder are listed.
+	 * @return {@code true} if the whole tree is synced.
+	 */
+	public boolean isRecursive() {
+		return recursive;
+	}
+
+	/**
+	 * Walk a directory of the folder in parallel, see {@link FolderScanner}. The
+	 * visitor is called from the worker threads, and for a directory before
+	 * any of its entries.
+	 * @param dir The folder or one of its subdirectories.
+	 * @param visitor The {@link TreeVisitor} told about every directory and regular file.
+	 */
+	public void walk(File dir, TreeVisitor visitor) {
+		pool.invoke(new WalkAction(dir, visitor));
+	}
+
+	/**
+	 * Describe the files of the folder by name, size, modification time and content
+	 * digest. The files are described as the walk finds them, batch by batch, so they
+	 * are never held in one list. Files that disappear during the scan or cannot be
+	 * read are left out.
+	 * @param tree Whether files in subdirectories are described too.
+	 * @return A {@link Map} from file name to {@link ManifestEntry}.
+	 */
+	public Map<String, ManifestEntry> manifest(final boolean tree) {
+		long start = System.nanoTime();
+		final Describer describer = new Describer();
+		walk(folder, new TreeVisitor() {
+			@Override
+			public void visitDirectory(File dir) {
+			}
+
+			@Override
+			public void visitFile(File file) {
+				if (tree || !SyncProcess.relativeName(folder, file).contains(SyncProcess.PATH_SEPARATOR)) {
+					describer.visitFile(file);
+				}
+			}
+		});
+		return finish(describer, describer.manifest.keySet(), start);
+	}
+
+	/**
+	 * Describe some of the files of the folder, such as those a {@link FolderWatcher}
+	 * saw change, by name, size, modification time and content digest. The files are
+	 * handed to the workers in batches of {@link FolderScanner#WALK_BATCH}, like the
+	 * entries of a directory. Files that disappear during the scan or cannot be read
+	 * are left out.
+	 * @param files The files to be described.
+	 * @param live The names of all files currently in the folder, which the
+	 * {@link FileIndex} keeps its digests of.
+	 * @return A {@link Map} from file name to {@link ManifestEntry}.
+	 */
+	public Map<String, ManifestEntry> manifest(Set<File> files, Set<String> live) {
+		long start = System.nanoTime();
+		Describer describer = new Describer();
+		pool.invoke(new ListAction(files, describer));
+		return finish(describer, live, start);
+	}
+
+	/**
+	 * Save the digests of the live files to the index and keep the statistics of a scan.
+	 */
+	private Map<String, ManifestEntry> finish(Describer describer, Set<String> live, long start) {
+		if (index != null) {
+			index.retainAll(live);
+			index.save();
+		}
+		lastScanMillis = (System.nanoTime() - start) / 1000000;
+		lastHashed = describer.hashed.get();
+		return new HashMap<String, ManifestEntry>(describer.manifest);
+	}
+
+	/**
+	 * Time taken by the last call of {@link FolderScanner#manifest(boolean)}.
+	 * @return The time to manifest in milliseconds.
+	 */
+	public long getLastScanMillis() {
+		return lastScanMillis;
+	}
+
+	/**
+	 * Number of files that were hashed by the last call of {@link FolderScanner#manifest(boolean)}.
+	 * @return The number of files not found in the {@link FileIndex}.
+	 */
+	public int getLastHashed() {
+		return lastHashed;
+	}
+
+	/**
+	 * Stat one file and take its digest from the index or compute it.
+	 */
+	private ManifestEntry describe(File f, AtomicInteger hashed) throws IOException {
+		BasicFileAttributes attrs = Files.readAttributes(f.toPath(), BasicFileAttributes.class);
+		long size = attrs.size();
+		long mtime = attrs.lastModifiedTime().toMillis();
+		String fileKey = attrs.fileKey() == null ? SyncProcess.NIL : attrs.fileKey().toString();
+		String name = SyncProcess.relativeName(folder, f);
+		
+		byte[] digest = index == null ? null : index.lookup(name, size, mtime, fileKey);
+		if (digest == null) {
+			digest = SyncProcess.digest(f);
+			hashed.incrementAndGet();
+			if (index != null) index.put(name, size, mtime, fileKey, digest);
+		}
+		return new ManifestEntry(name, size, mtime, digest);
+	}
+
+	/**
+	 * Told about the entries found by {@link FolderScanner#walk(File, TreeVisitor)}.
+	 * The methods are called from several threads at once.
+	 */
+	interface TreeVisitor {
+		void visitDirectory(File dir);
+		void visitFile(File file);
+	}
+
+	/**
+	 * Reads one directory as a stream and visits its entries in batches.
+	 */
+	private class WalkAction extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final File dir;
+		private final TreeVisitor visitor;
+
+		WalkAction(File dir, TreeVisitor visitor) {
+			this.dir = dir;
+			this.visitor = visitor;
+		}
+
+		@Override
+		protected void compute() {
+			visitor.visitDirectory(dir);
+			Deque<ForkJoinTask<?>> pending = new ArrayDeque<ForkJoinTask<?>>();
+			List<Path> batch = new ArrayList<Path>();
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir.toPath())) {
+				for (Path entry : stream) {
+					batch.add(entry);
+					if (batch.size() < WALK_BATCH) {
+						continue;
+					}
+					if (pending.size() >= MAX_PENDING_BATCHES) {
+						pending.removeFirst().join();
+					}
+					pending.addLast(new BatchAction(batch, visitor).fork());
+					batch = new ArrayList<Path>();
+				}
+			} catch (NoSuchFileException e) {
+				//Deleted since it was listed
+			} catch (IOException e) {
+				System.out.println("FolderScanner: cannot list " + dir + " - " + e.getMessage());
+			}
+			new BatchAction(batch, visitor).compute();
+			while (!pending.isEmpty()) {
+				pending.removeFirst().join();
+			}
+		}
+	}
+
+	/**
+	 * Visits a batch of directory entries and walks the subdirectories among them.
+	 */
+	private class BatchAction extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final List<Path> entries;
+		private final TreeVisitor visitor;
+
+		BatchAction(List<Path> entries, TreeVisitor visitor) {
+			this.entries = entries;
+			this.visitor = visitor;
+		}
+
+		@Override
+		protected void compute() {
+			List<RecursiveAction> subdirs = new ArrayList<RecursiveAction>();
+			List<File> files = new ArrayList<File>();
+			for (Path entry : entries) {
+				File f = entry.toFile();
+				if (SyncProcess.isTempFile(f) || 
+					!SyncProcess.isValidName(SyncProcess.relativeName(folder, f))) {
+					continue;
+				}
+				BasicFileAttributes attrs;
+				try {
+					attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+				} catch (IOException e) {
+					//Deleted since it was listed
+					continue;
+				}
+				if (attrs.isRegularFile() || (attrs.isSymbolicLink() && Files.isRegularFile(entry))) {
+					files.add(f);
+				} else if (attrs.isDirectory() && recursive) {
+					subdirs.add(new WalkAction(f, visitor));
+				}
+			}
+			subdirs.add(new VisitAction(files, visitor, 0, files.size()));
+			invokeAll(subdirs);
+		}
+	}
+
+	/**
+	 * Visits files given up front in batches, like {@link WalkAction} visits the
+	 * entries of a directory.
+	 */
+	private class ListAction extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Iterable<File> files;
+		private final TreeVisitor visitor;
+
+		ListAction(Iterable<File> files, TreeVisitor visitor) {
+			this.files = files;
+			this.visitor = visitor;
+		}
+
+		@Override
+		protected void compute() {
+			Deque<ForkJoinTask<?>> pending = new ArrayDeque<ForkJoinTask<?>>();
+			List<File> batch = new ArrayList<File>();
+			for (File f : files) {
+				batch.add(f);
+				if (batch.size() < WALK_BATCH) {
+					continue;
+				}
+				if (pending.size() >= MAX_PENDING_BATCHES) {
+					pending.removeFirst().join();
+				}
+				pending.addLast(new VisitAction(batch, visitor, 0, batch.size()).fork());
+				batch = new ArrayList<File>();
+			}
+			new VisitAction(batch, visitor, 0, batch.size()).compute();
+			while (!pending.isEmpty()) {
+				pending.removeFirst().join();
+			}
+		}
+	}
+
+	/**
+	 * Describes the files it visits and collects their entries.
+	 */
+	private class Describer implements TreeVisitor {
+		final Map<String, ManifestEntry> manifest = new ConcurrentHashMap<String, ManifestEntry>();
+		final AtomicInteger hashed = new AtomicInteger();
+
+		@Override
+		public void visitDirectory(File dir) {
+		}
+
+		@Override
+		public void visitFile(File file) {
+			try {
+				ManifestEntry entry = describe(file, hashed);
+				manifest.put(entry.name, entry);
+			} catch (NoSuchFileException e) {
+				//Deleted since it was listed
+			} catch (IOException e) {
+				//Unreadable, such as a file without read permission
+				System.out.println("FolderScanner: cannot read " + file + " - " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Visits the files of a range of a list, splitting it in halves until it is
+	 * no larger than {@link FolderScanner#SPLIT_THRESHOLD}.
+	 */
+	private static class VisitAction extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final List<File> files;
+		private final TreeVisitor visitor;
+		private final int from;
+		private final int to;
+
+		VisitAction(List<File> files, TreeVisitor visitor, int from, int to) {
+			this.files = files;
+			this.visitor = visitor;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= SPLIT_THRESHOLD) {
+				for (int i = from; i < to; ++i) {
+					visitor.visitFile(files.get(i));
+				}
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new VisitAction(files, visitor, from, mid), new VisitAction(files, visitor, mid, to));
+		}
+	}
+}
@@ -0,0 +1,378 @@
+package syncpeer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Watches one sync folder with a {@link WatchService}, so a synchronization round
+ * only looks at the files that changed since the last one instead of listing and
+ * stat'ing the whole folder.<br>
+ * <br>
+ * A background thread records the name of every created, modified or deleted file
+ * in a change journal. A round applies the journal to the file list kept in memory
+ * and marks those names dirty, and only dirty files are described again by the
+ * {@link FolderScanner}. A file modified within {@link FileIndex#RACY_WINDOW} stays
+ * dirty, since another write within the same timestamp may still be on its way.<br>
+ * <br>
+ * If the watch service reports {@link StandardWatchEventKinds#OVERFLOW}, or the journal
+ * grows past {@link FolderWatcher#MAX_JOURNAL} names, events may have been lost and
+ * the next round lists and describes the whole folder again.<br>
+ * <br>
+ * Every subdirectory is watched as well, registered while the {@link FolderScanner}
+ * walks the tree. A directory that appears is walked at the next round and all its
+ * files are dirty; one that disappears takes all names under it out of the file list.
+ * If a subdirectory cannot be registered, for example because the system limit of
+ * watches is reached, every round lists the whole folder again.<br>
+ * <br>
+ * For {@link SyncOptions#live} sync, the watcher also counts local changes and lets
+ * a thread wait until a burst of them is over, see {@link FolderWatcher#awaitChange(long, long)}.
+ * Files written by the synchronization itself, announced by {@link FolderWatcher#expect(File)},
+ * are journaled but not counted, so a received file is not sent back as a change.<br>
+ * <br>
+ * There is one watcher per folder, shared by all processes of a {@link Peer}.
+ * @author Wenhao
+ *
+ */
+class FolderWatcher implements Runnable {
+
+	public static final int MAX_JOURNAL = 65536;
+	public static final long OWN_WRITE_WINDOW = 1000;
+	public static final int MAX_DEBOUNCES = 4;
+
+	private static final Map<File, FolderWatcher> WATCHERS = new HashMap<File, FolderWatcher>();
+	private static final Set<File> UNWATCHABLE = new HashSet<File>();
+
+	private final File folder;
+	private final WatchService service;
+	private final Map<WatchKey, String> dirs = new ConcurrentHashMap<WatchKey, String>();
+	private final SortedMap<String, File> files = new TreeMap<String, File>();
+	private final SortedMap<String, ManifestEntry> entries = new TreeMap<String, ManifestEntry>();
+	private final Set<String> journal = new LinkedHashSet<String>();
+	private final SortedSet<String> dirty = new TreeSet<String>();
+	private final Map<String, Long> ownWrites = new HashMap<String, Long>();
+	private boolean rescan = true;
+	private volatile boolean incomplete;
+	private long changes;
+	private long lastChange;
+
+	/**
+	 * Give the watcher of a sync folder, starting it on first use.
+	 * @param folder The sync folder.
+	 * @return The shared {@link FolderWatcher} of the folder, or {@code null}
+	 * if the folder cannot be watched and must be scanned instead.
+	 */
+	public static synchronized FolderWatcher forFolder(File folder) {
+		File key = folder.getAbsoluteFile();
+		FolderWatcher watcher = WATCHERS.get(key);
+		if (watcher == null && !UNWATCHABLE.contains(key)) {
+			try {
+				watcher = new FolderWatcher(key);
+				Thread thread = new Thread(watcher, "FolderWatcher-" + key.getName());
+				thread.setDaemon(true);
+				thread.start();
+				WATCHERS.put(key, watcher);
+			} catch (IOException | UnsupportedOperationException e) {
+				System.out.println("FolderWatcher: cannot watch " + key + " - " + e.getMessage());
+				UNWATCHABLE.add(key);
+			}
+		}
+		return watcher;
+	}
+
+	private FolderWatcher(File folder) throws IOException {
+		this.folder = folder;
+		Path path = folder.toPath();
+		this.service = path.getFileSystem().newWatchService();
+		try {
+			dirs.put(register(path), "");
+		} catch (IOException e) {
+			service.close();
+			throw e;
+		}
+	}
+
+	private WatchKey register(Path dir) throws IOException {
+		return dir.register(service,
+				StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_DELETE,
+				StandardWatchEventKinds.ENTRY_MODIFY);
+	}
+
+	/**
+	 * Watch a subdirectory found by the {@link FolderScanner}. Called from its
+	 * worker threads, so only the concurrent key map is touched.
+	 */
+	private void watchDirectory(File dir) {
+		if (dir.equals(folder) || incomplete) {
+			return;
+		}
+		try {
+			dirs.put(register(dir.toPath()), SyncProcess.relativeName(folder, dir));
+		} catch (IOException e) {
+			System.out.println("FolderWatcher: cannot watch " + dir + " - " + e.getMessage() + 
+					", rescanning " + folder + " every round");
+			incomplete = true;
+		}
+	}
+
+	/**
+	 * Record the changes reported by the watch service until it is closed.
+	 */
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				WatchKey key = service.take();
+				synchronized (this) {
+					record(key);
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			//The folder is no longer watched
+		}
+	}
+
+	/**
+	 * Announce that the synchronization is about to write a file, so its events
+	 * are not counted as a local change for {@link FolderWatcher#OWN_WRITE_WINDOW}.
+	 * @param target The file to be written.
+	 */
+	public static void expect(File target) {
+		FolderWatcher watcher = null;
+		synchronized (FolderWatcher.class) {
+			for (File dir = target.getAbsoluteFile().getParentFile(); 
+				 dir != null && watcher == null; dir = dir.getParentFile()) {
+				watcher = WATCHERS.get(dir);
+			}
+		}
+		if (watcher != null) {
+			synchronized (watcher) {
+				watcher.ownWrites.put(SyncProcess.relativeName(watcher.folder, target), 
+						System.currentTimeMillis() + OWN_WRITE_WINDOW);
+			}
+		}
+	}
+
+	/**
+	 * Add the events of a watch key to the journal and reset the key.
+	 */
+	private void record(WatchKey key) {
+		long now = System.currentTimeMillis();
+		boolean changed = false;
+		String dir = dirs.get(key);
+		if (dir == null) {
+			//Registered by a walk that is still running
+			dir = SyncProcess.relativeName(folder, ((Path) key.watchable()).toFile());
+		}
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW || journal.size() >= MAX_JOURNAL) {
+				rescan = true;
+				journal.clear();
+				changed = true;
+				continue;
+			}
+			String name = ((Path) event.context()).toString();
+			if (!dir.isEmpty()) {
+				name = dir + SyncProcess.PATH_SEPARATOR + name;
+			}
+			journal.add(name);
+			Long own = ownWrites.get(name);
+			if (own == null || own < now) {
+				changed |= !SyncProcess.isTempFile(new File(folder, name));
+			}
+		}
+		if (!key.reset()) {
+			dirs.remove(key);
+			if (dir.isEmpty()) {
+				//The folder itself was removed or replaced
+				rescan = true;
+			} else {
+				journal.add(dir);
+			}
+			changed = true;
+		}
+		Iterator<Long> it = ownWrites.values().iterator();
+		while (it.hasNext()) {
+			if (it.next() < now) {
+				it.remove();
+			}
+		}
+		if (changed) {
+			changes++;
+			lastChange = now;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Give the number of local changes seen so far. A change is counted once for
+	 * every batch of events the watch service reports.
+	 * @return The change count.
+	 */
+	public synchronized long changeCount() {
+		return changes;
+	}
+
+	/**
+	 * Wait for local changes after a given change count, and then until they are over:
+	 * no change for {@code debounce} milliseconds, or at most {@link FolderWatcher#MAX_DEBOUNCES}
+	 * times as long, so a file that is written without pause is still reported.
+	 * @param seen The change count already handled.
+	 * @param debounce The quiet time that ends a burst of changes, in milliseconds.
+	 * @return The change count at the end of the burst.
+	 * @throws InterruptedException If the waiting thread is interrupted.
+	 */
+	public synchronized long awaitChange(long seen, long debounce) throws InterruptedException {
+		while (changes == seen) {
+			wait();
+		}
+		long deadline = System.currentTimeMillis() + MAX_DEBOUNCES * debounce;
+		long now;
+		while ((now = System.currentTimeMillis()) < Math.min(lastChange + debounce, deadline)) {
+			wait(Math.min(lastChange + debounce, deadline) - now);
+		}
+		return changes;
+	}
+
+	/**
+	 * Bring the file list up to date with the changes reported so far. Pending
+	 * events are taken here too, so a change just before a round is not missed
+	 * for the background thread being slower.
+	 * @param scanner The scanner used if the whole folder must be listed again.
+	 */
+	private void refresh(final FolderScanner scanner) {
+		WatchKey key;
+		while ((key = service.poll()) != null) {
+			record(key);
+		}
+		if (rescan || incomplete) {
+			rescan = false;
+			journal.clear();
+			files.clear();
+			entries.clear();
+			dirty.clear();
+			for (File f : walk(folder, scanner)) {
+				files.put(SyncProcess.relativeName(folder, f), f);
+			}
+			return;
+		}
+		for (String name : journal) {
+			File f = new File(folder, name);
+			if (f.isFile() && !SyncProcess.isTempFile(f)) {
+				files.put(name, f);
+				dirty.add(name);
+				continue;
+			}
+			//A directory or file was removed, or a directory took its place
+			String under = name + SyncProcess.PATH_SEPARATOR;
+			String after = name + (char) (SyncProcess.PATH_SEPARATOR.charAt(0) + 1);
+			files.remove(name);
+			entries.remove(name);
+			dirty.remove(name);
+			files.subMap(under, after).clear();
+			entries.subMap(under, after).clear();
+			dirty.subSet(under, after).clear();
+			if (scanner.isRecursive() && f.isDirectory() && !Files.isSymbolicLink(f.toPath())) {
+				for (File g : walk(f, scanner)) {
+					String added = SyncProcess.relativeName(folder, g);
+					files.put(added, g);
+					dirty.add(added);
+				}
+			}
+		}
+		journal.clear();
+	}
+
+	/**
+	 * List and watch a directory and its subdirectories.
+	 */
+	private Set<File> walk(File dir, FolderScanner scanner) {
+		final Set<File> found = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+		scanner.walk(dir, new FolderScanner.TreeVisitor() {
+			@Override
+			public void visitDirectory(File dir) {
+				watchDirectory(dir);
+			}
+
+			@Override
+			public void visitFile(File file) {
+				found.add(file);
+			}
+		});
+		return found;
+	}
+
+	/**
+	 * Get the regular files of the folder and its subdirectories. Temporary files
+	 * of transfers in progress are left out. The files are in ascending order of
+	 * their relative names, so a sorted file list costs no sorting.
+	 * @param scanner The scanner used if the whole folder must be listed again.
+	 * @return A {@link Set} of {@link File}.
+	 */
+	public synchronized Set<File> listFiles(FolderScanner scanner) {
+		refresh(scanner);
+		return new LinkedHashSet<File>(files.values());
+	}
+
+	/**
+	 * Describe files by name, size, modification time and content digest. Only
+	 * files that are dirty or not described before are looked at on disk.
+	 * Files that disappear during the scan are left out.
+	 * @param list The files to be described, as listed by {@link FolderWatcher#listFiles(FolderScanner)}.
+	 * @param scanner The scanner that describes the dirty files.
+	 * @return A {@link Map} from file name to {@link ManifestEntry}.
+	 */
+	public synchronized Map<String, ManifestEntry> manifest(Set<File> list, FolderScanner scanner) {
+		refresh(scanner);
+		Set<File> changed = new HashSet<File>();
+		for (File f : list) {
+			String name = SyncProcess.relativeName(folder, f);
+			if (dirty.contains(name) || !entries.containsKey(name)) {
+				changed.add(f);
+			}
+		}
+		Map<String, ManifestEntry> described = scanner.manifest(changed, files.keySet());
+		long settled = System.currentTimeMillis() - FileIndex.RACY_WINDOW;
+		for (File f : changed) {
+			ManifestEntry entry = described.get(SyncProcess.relativeName(folder, f));
+			if (entry == null) {
+				entries.remove(SyncProcess.relativeName(folder, f));
+				continue;
+			}
+			entries.put(entry.name, entry);
+			if (entry.mtime <= settled) {
+				dirty.remove(entry.name);
+			} else {
+				dirty.add(entry.name);
+			}
+		}
+
+		Map<String, ManifestEntry> manifest = new HashMap<String, ManifestEntry>();
+		for (File f : list) {
+			ManifestEntry entry = entries.get(SyncProcess.relativeName(folder, f));
+			if (entry != null) {
+				manifest.put(entry.name, entry);
+			}
+		}
+		return manifest;
+	}
+}
@@ -0,0 +1,49 @@
+package syncpeer;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * The description of one file in the sync folder that is exchanged during
+ * {@link SyncProcess#TYPE_SYNC} when both {@link Peer}s support
+ * {@link SyncProcess#FEATURE_MANIFEST}. Two entries with the same name
+ * describe the same file only if their size and content digest match.
+ * @author Wenhao
+ *
+ */
+class ManifestEntry implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public final String name;
+	public final long size;
+	public final long mtime;
+	public final byte[] digest;
+
+	/**
+	 * @param name The file name relative to the sync folder.
+	 * @param size The file length in bytes.
+	 * @param mtime The last modification time in milliseconds.
+	 * @param digest The content digest computed with {@link SyncProcess#DIGEST_ALGORITHM}.
+	 */
+	ManifestEntry(String name, long size, long mtime, byte[] digest) {
+		this.name = name;
+		this.size = size;
+		this.mtime = mtime;
+		this.digest = digest;
+	}
+
+	/**
+	 * Check whether another entry describes the same file content.
+	 * @param other The entry to compare with.
+	 * @return {@code true} if both size and digest are equal.
+	 */
+	public boolean sameContent(ManifestEntry other) {
+		return other != null && size == other.size && Arrays.equals(digest, other.digest);
+	}
+
+	@Override
+	public String toString() {
+		return name + " (" + size + " bytes)";
+	}
+}
@@ -0,0 +1,332 @@
+package syncpeer;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A hash tree over a folder manifest for {@link SyncProcess#FEATURE_MERKLE}.<br>
+ * <br>
+ * Every {@link ManifestEntry} is keyed by a 64-bit hash of its name, written as
+ * {@link MerkleTree#MAX_DEPTH} hexadecimal digits, and the entries are sorted by
+ * key. A node is a key prefix and covers all entries whose key starts with it, so
+ * the tree has the same shape on both {@link Peer}s. The hash of a node combines
+ * a 128-bit hash of the name, size and content digest of every entry under it;
+ * equal nodes mean equal files. The client sends the hashes of a list of nodes,
+ * starting from the root, and the server answers for each node whether it is the
+ * same, should be split into its {@link MerkleTree#FANOUT} children, or is small
+ * enough to be compared entry by entry. Only the entries under the differing
+ * leaves are exchanged as manifests afterwards.<br>
+ * <br>
+ * The entry hashes are combined with XOR, which does not depend on the order of
+ * the entries, and running XORs over the sorted entries give the hash of any
+ * node in constant time.
+ * @author Wenhao
+ *
+ */
+class MerkleTree {
+
+	public static final String ROOT = "";
+	public static final int FANOUT = 16;
+	public static final int MAX_DEPTH = 16;
+	public static final int LEAF_ENTRIES = 64;
+	public static final int HASH_BYTES = 16;
+	public static final int MAX_QUERY = 1 << 20;
+
+	public static final int NODE_SAME = 0;
+	public static final int NODE_DESCEND = 1;
+	public static final int NODE_LEAF = 2;
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	/*
+	 * Keys have their sign bit flipped so signed comparison gives the unsigned order.
+	 */
+	private final long[] keys;
+	private final ManifestEntry[] entries;
+	private final long[] runningHigh;
+	private final long[] runningLow;
+
+	/**
+	 * Build the tree over a manifest.
+	 * @param manifest The entries of the local files.
+	 */
+	MerkleTree(Collection<ManifestEntry> manifest) {
+		int n = manifest.size();
+		Leaf[] leaves = new Leaf[n];
+		int i = 0;
+		for (ManifestEntry entry : manifest) {
+			leaves[i++] = new Leaf(entry);
+		}
+		Arrays.sort(leaves, new Comparator<Leaf>() {
+			@Override
+			public int compare(Leaf a, Leaf b) {
+				return a.key < b.key ? -1 : (a.key > b.key ? 1 : a.entry.name.compareTo(b.entry.name));
+			}
+		});
+		
+		keys = new long[n];
+		entries = new ManifestEntry[n];
+		runningHigh = new long[n + 1];
+		runningLow = new long[n + 1];
+		for (i = 0; i < n; ++i) {
+			keys[i] = leaves[i].key;
+			entries[i] = leaves[i].entry;
+			runningHigh[i + 1] = runningHigh[i] ^ leaves[i].high;
+			runningLow[i + 1] = runningLow[i] ^ leaves[i].low;
+		}
+	}
+
+	/**
+	 * The key and hash of one entry.
+	 */
+	private static class Leaf {
+		final ManifestEntry entry;
+		final long key;
+		final long high;
+		final long low;
+
+		Leaf(ManifestEntry entry) {
+			this.entry = entry;
+			long name = 0xcbf29ce484222325L;
+			for (int i = 0; i < entry.name.length(); ++i) {
+				name = (name ^ entry.name.charAt(i)) * 0x100000001b3L;
+			}
+			name = mix(name);
+			long d0 = 0;
+			long d1 = 0;
+			if (entry.digest != null) {
+				for (int i = 0; i < entry.digest.length; ++i) {
+					if (i < 8) {
+						d0 = (d0 << 8) | (entry.digest[i] & 0xFF);
+					} else if (i < 16) {
+						d1 = (d1 << 8) | (entry.digest[i] & 0xFF);
+					}
+				}
+			}
+			this.key = name ^ Long.MIN_VALUE;
+			this.high = mix(name ^ mix(entry.size ^ 0x9e3779b97f4a7c15L) ^ d0);
+			this.low = mix(Long.rotateLeft(name, 32) ^ mix(entry.size + 0xc2b2ae3d27d4eb4fL) ^ d1);
+		}
+	}
+
+	/**
+	 * The finalizer of MurmurHash3, which spreads every input bit over the result.
+	 */
+	static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * Get the index of the first entry whose key is not smaller than a flipped key.
+	 */
+	private int lowerBound(long key) {
+		int lo = 0;
+		int hi = keys.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (keys[mid] < key) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * Get the index of the first entry under a node.
+	 */
+	private int first(String prefix) {
+		if (prefix.isEmpty()) {
+			return 0;
+		}
+		return lowerBound((value(prefix) << (64 - 4 * prefix.length())) ^ Long.MIN_VALUE);
+	}
+
+	/**
+	 * Get the index after the last entry under a node.
+	 */
+	private int end(String prefix) {
+		int shift = 64 - 4 * prefix.length();
+		long next = prefix.isEmpty() ? 0 : value(prefix) + 1;
+		if (prefix.isEmpty() || (shift == 0 ? next == 0 : (next >>> (64 - shift)) != 0)) {
+			return keys.length;
+		}
+		return lowerBound((next << shift) ^ Long.MIN_VALUE);
+	}
+
+	/**
+	 * Get the value of a key prefix of up to {@link MerkleTree#MAX_DEPTH} hexadecimal digits.
+	 */
+	private static long value(String prefix) {
+		long value = 0;
+		for (int i = 0; i < prefix.length(); ++i) {
+			value = (value << 4) | Character.digit(prefix.charAt(i), 16);
+		}
+		return value;
+	}
+
+	/**
+	 * Get the number of entries under a node.
+	 * @param prefix The key prefix of the node.
+	 * @return The number of entries.
+	 */
+	public int count(String prefix) {
+		return end(prefix) - first(prefix);
+	}
+
+	/**
+	 * Get the hash of a node.
+	 * @param prefix The key prefix of the node.
+	 * @return {@link MerkleTree#HASH_BYTES} bytes.
+	 */
+	public byte[] hash(String prefix) {
+		int first = first(prefix);
+		int end = end(prefix);
+		long high = runningHigh[end] ^ runningHigh[first];
+		long low = runningLow[end] ^ runningLow[first];
+		byte[] hash = new byte[HASH_BYTES];
+		for (int i = 0; i < 8; ++i) {
+			hash[i] = (byte) (high >>> (56 - 8 * i));
+			hash[i + 8] = (byte) (low >>> (56 - 8 * i));
+		}
+		return hash;
+	}
+
+	/**
+	 * Get the entries under a set of nodes.
+	 * @param prefixes The key prefixes of the nodes.
+	 * @return The entries, sorted by key within each node.
+	 */
+	public List<ManifestEntry> entriesUnder(Collection<String> prefixes) {
+		List<ManifestEntry> list = new ArrayList<ManifestEntry>();
+		for (String prefix : prefixes) {
+			list.addAll(Arrays.asList(entries).subList(first(prefix), end(prefix)));
+		}
+		return list;
+	}
+
+	/**
+	 * Get the total number of entries in the tree.
+	 */
+	public int size() {
+		return entries.length;
+	}
+
+	/**
+	 * Get the children of a node.
+	 * @param prefix The key prefix of the node.
+	 * @return The {@link MerkleTree#FANOUT} prefixes one digit longer.
+	 */
+	public static List<String> children(String prefix) {
+		List<String> list = new ArrayList<String>(FANOUT);
+		for (int i = 0; i < FANOUT; ++i) {
+			list.add(prefix + HEX[i]);
+		}
+		return list;
+	}
+
+	/**
+	 * Send the hash and entry count of each node in a list to the server.
+	 * The query is not flushed.
+	 * @param codec The connection to the server.
+	 * @param prefixes The key prefixes of the nodes.
+	 * @throws IOException If the communication cannot be completed.
+	 */
+	public void writeQuery(WireCodec codec, List<String> prefixes) throws IOException {
+		codec.writeVarLong(prefixes.size());
+		for (String prefix : prefixes) {
+			codec.writeBytes(prefix.getBytes(ASCII));
+			codec.write(hash(prefix), 0, HASH_BYTES);
+			codec.writeVarLong(count(prefix));
+		}
+	}
+
+	/**
+	 * Read a query from the client and answer every node with 
+	 * {@link MerkleTree#NODE_SAME}, {@link MerkleTree#NODE_DESCEND} or
+	 * {@link MerkleTree#NODE_LEAF}. A node is split while both sides together
+	 * have more than {@link MerkleTree#LEAF_ENTRIES} entries under it.
+	 * The answer is not flushed.
+	 * @param codec The connection to the client.
+	 * @param leaves The set the differing leaves are added to.
+	 * @return The number of nodes to be split, after which the client sends the next query.
+	 * @throws IOException If the communication cannot be completed or the query is invalid.
+	 */
+	public int answerQuery(WireCodec codec, Set<String> leaves) throws IOException {
+		long n = codec.readVarLong();
+		if (n > MAX_QUERY) {
+			throw new StreamCorruptedException("Invalid query of " + n + " nodes");
+		}
+		int descend = 0;
+		byte[] hash = new byte[HASH_BYTES];
+		int[] answers = new int[(int) n];
+		for (int i = 0; i < n; ++i) {
+			String prefix = new String(codec.readBytes(MAX_DEPTH), ASCII);
+			codec.readFully(hash, 0, HASH_BYTES);
+			long count = codec.readVarLong();
+			if (!isPrefix(prefix)) {
+				throw new StreamCorruptedException("Invalid node " + prefix);
+			}
+			if (Arrays.equals(hash, hash(prefix))) {
+				answers[i] = NODE_SAME;
+			} else if (count + count(prefix) > LEAF_ENTRIES && prefix.length() < MAX_DEPTH) {
+				answers[i] = NODE_DESCEND;
+				descend++;
+			} else {
+				answers[i] = NODE_LEAF;
+				leaves.add(prefix);
+			}
+		}
+		for (int answer : answers) {
+			codec.writeByte(answer);
+		}
+		return descend;
+	}
+
+	/**
+	 * Read the answer to a query from the server.
+	 * @param codec The connection to the server.
+	 * @param prefixes The key prefixes of the nodes in the query.
+	 * @param leaves The set the differing leaves are added to.
+	 * @return The children of the nodes to be split, which form the next query.
+	 * @throws IOException If the communication cannot be completed or the answer is invalid.
+	 */
+	public List<String> readAnswer(WireCodec codec, List<String> prefixes, Set<String> leaves) throws IOException {
+		List<String> next = new ArrayList<String>();
+		for (String prefix : prefixes) {
+			int answer = codec.readUnsignedByte();
+			if (answer == NODE_DESCEND) {
+				next.addAll(children(prefix));
+			} else if (answer == NODE_LEAF) {
+				leaves.add(prefix);
+			} else if (answer != NODE_SAME) {
+				throw new StreamCorruptedException("Invalid answer " + answer);
+			}
+		}
+		return next;
+	}
+
+	private static boolean isPrefix(String prefix) {
+		for (int i = 0; i < prefix.length(); ++i) {
+			char c = prefix.charAt(i);
+			if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
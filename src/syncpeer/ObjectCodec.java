@@ -0,0 +1,141 @@
+package syncpeer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.Vector;
+
+/**
+ * The original wire format where every message and file name list is
+ * written as a serialized Java object. It is used when a connection is
+ * set up and stays in use if the other {@link Peer} does not support 
+ * {@link BinaryCodec}.
+ * @author Wenhao
+ *
+ */
+class ObjectCodec extends WireCodec {
+
+	private ObjectOutputStream oos;
+	private ObjectInputStream ois;
+	private PushbackInputStream pis;
+
+	/**
+	 * Exchange the object stream headers with the other {@link Peer}.
+	 * @param out The socket output stream.
+	 * @param in The socket input stream.
+	 * @throws IOException If the stream headers cannot be exchanged.
+	 */
+	ObjectCodec(OutputStream out, InputStream in) throws IOException {
+		pis = new PushbackInputStream(in);
+		oos = new ObjectOutputStream(out);
+		ois = new ObjectInputStream(pis);
+	}
+
+	@Override
+	public void writeMessage(Vector<String> message) throws IOException {
+		//Drop the back-reference table so it does not grow with the session.
+		//The reset goes first so nothing is left unread behind the message.
+		oos.reset();
+		oos.writeObject(message);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public Vector<String> readMessage() throws IOException, ClassNotFoundException {
+		awaitData();
+		return (Vector<String>) ois.readObject();
+	}
+
+	@Override
+	public void writeList(Set<String> list) throws IOException {
+		oos.reset();
+		oos.writeObject(list);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public Set<String> readList() throws IOException, ClassNotFoundException {
+		return (Set<String>) ois.readObject();
+	}
+
+	@Override
+	public void writeManifest(Collection<ManifestEntry> entries) throws IOException {
+		oos.reset();
+		oos.writeObject(new ArrayList<ManifestEntry>(entries));
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public List<ManifestEntry> readManifest() throws IOException, ClassNotFoundException {
+		return (List<ManifestEntry>) ois.readObject();
+	}
+
+	@Override
+	public void write(byte[] buffer, int offset, int length) throws IOException {
+		oos.write(buffer, offset, length);
+	}
+
+	@Override
+	public void readFully(byte[] buffer, int offset, int length) throws IOException {
+		ois.readFully(buffer, offset, length);
+	}
+
+	@Override
+	public void writeByte(int value) throws IOException {
+		oos.writeByte(value);
+	}
+
+	@Override
+	public int readUnsignedByte() throws IOException {
+		return ois.readUnsignedByte();
+	}
+
+	@Override
+	public void writeInt(int value) throws IOException {
+		oos.writeInt(value);
+	}
+
+	@Override
+	public int readInt() throws IOException {
+		return ois.readInt();
+	}
+
+	@Override
+	public int buffered() {
+		//Object streams never read beyond the end of a message.
+		return 0;
+	}
+
+	/**
+	 * A socket time out thrown from inside {@link ObjectInputStream#readObject()}
+	 * leaves the object stream out of block data mode, which corrupts every later
+	 * data read, so the time out has to happen here instead.
+	 */
+	@Override
+	public void awaitData() throws IOException {
+		int b = pis.read();
+		if (b < 0) {
+			throw new EOFException();
+		}
+		pis.unread(b);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		oos.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		oos.close();
+		ois.close();
+	}
+}
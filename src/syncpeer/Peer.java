@@ -20,13 +20,20 @@ public class Peer {
 	private ServerProcess server;
 	private String ipAddr;
 	private Scanner scanner;
+	private SyncOptions options;
+	private Thread liveSync;
 
-	Peer(File folder, int port, String ipAddr) {
+	Peer(File folder, int port, String ipAddr, SyncOptions options) {
 		this.port = port;
 		this.folder = folder;
 		this.ipAddr = ipAddr;
+		this.options = options;
 		client = null;
-		server = new ServerProcess(this.folder, this.port);
+		server = new ServerProcess(this.folder, this.port, this.options);
+		if (options.watch) {
+			//Start journaling changes before the first sync
+			FolderWatcher.forFolder(this.folder);
+		}
 		this.scanner = new Scanner(System.in);
 	}
 
@@ -38,6 +45,7 @@ public class Peer {
 	 */
 	public void start() {
 		server.start();
+		startLiveSync();
 		if(this.ipAddr != null &&
 		   !this.ipAddr.isEmpty() && 
 		   !this.ipAddr.equals("\n")){
@@ -64,11 +72,50 @@ public class Peer {
 		}
 	}
 	
+	/**
+	 * Start a thread that runs a synchronization round with the connected peer
+	 * after every burst of local changes, debounced by {@link SyncOptions#live}.
+	 * A client whose connection was lost is connected again.
+	 */
+	private void startLiveSync() {
+		if (options.live == 0) {
+			return;
+		}
+		final FolderWatcher watcher = options.watch ? FolderWatcher.forFolder(folder) : null;
+		if (watcher == null) {
+			System.out.println("Live sync needs the folder to be watched.");
+			return;
+		}
+		liveSync = new Thread("LiveSync") {
+			@Override
+			public void run() {
+				try {
+					long seen = watcher.changeCount();
+					while (true) {
+						seen = watcher.awaitChange(seen, options.live);
+						synchronized (Peer.this) {
+							if (client != null) {
+								connect();
+							}
+						}
+					}
+				} catch (InterruptedException e) {
+					//The peer exits
+				}
+			}
+		};
+		liveSync.setDaemon(true);
+		liveSync.start();
+	}
+
 	/**
 	 * Close server connection and stop client synchronization if any.<br>
 	 * Terminate server thread after connections are closed.
 	 */
 	private void exit(){
+		if(liveSync != null){
+			liveSync.interrupt();
+		}
 		if(server != null){
 			server.close();
 		}
@@ -102,9 +149,18 @@ public class Peer {
 	/**
 	 * Internal method that executes connection command to the IP address set at ({@link Peer#ipAddr}).
 	 * Call {@link Peer#connect(String[])} for setting IP address before connection.
+	 * If a kept-alive client is still connected to the same address, it runs
+	 * another synchronization round instead.
 	 */
-	private void connect() {
-		client = new ClientProcess(this.folder, this.port, this.ipAddr);
+	private synchronized void connect() {
+		if (client != null && client.isAlive()) {
+			if (this.ipAddr.equals(client.ipAddr)) {
+				client.requestSync();
+				return;
+			}
+			client.close();
+		}
+		client = new ClientProcess(this.folder, this.port, this.ipAddr, this.options);
 		client.start();
 	}
 }
@@ -0,0 +1,178 @@
+package syncpeer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The on-disk part of an index kept for one sync folder, such as the
+ * {@link FileIndex} and the {@link ChunkIndex}.<br>
+ * <br>
+ * The index is stored in the parent directory of the sync folder as
+ * {@code .<folder><suffix>}, so it is never synced itself. The file starts with
+ * a magic number and a version, followed by the records of the subclass. It is
+ * either appended to or replaced as a whole through a temporary file. A missing
+ * or damaged index only costs computing its records again.<br>
+ * <br>
+ * There is one index of each kind per folder, shared by all processes of a
+ * {@link Peer}, see {@link PersistentIndex.Registry}.
+ * @author Wenhao
+ *
+ */
+abstract class PersistentIndex {
+
+	/**
+	 * The indexes of one kind, created for a sync folder on first use.
+	 */
+	abstract static class Registry<T extends PersistentIndex> {
+		private final Map<File, T> indexes = new HashMap<File, T>();
+
+		/**
+		 * Give the index of a sync folder, loading it from disk on first use.
+		 * @param folder The sync folder.
+		 * @return The shared index of the folder.
+		 */
+		synchronized T forFolder(File folder) {
+			File key = folder.getAbsoluteFile();
+			T index = indexes.get(key);
+			if (index == null) {
+				index = create(key);
+				indexes.put(key, index);
+			}
+			return index;
+		}
+
+		/**
+		 * Create and load the index of a sync folder.
+		 * @param folder The absolute sync folder.
+		 */
+		abstract T create(File folder);
+	}
+
+	protected final File folder;
+	protected final File indexFile;
+	private final int magic;
+	private final int version;
+
+	/**
+	 * @param folder The absolute sync folder.
+	 * @param suffix The file name suffix of this kind of index.
+	 * @param magic The magic number of this kind of index.
+	 * @param version The version of the record format.
+	 */
+	protected PersistentIndex(File folder, String suffix, int magic, int version) {
+		File parent = folder.getParentFile();
+		this.folder = folder;
+		this.indexFile = new File(parent == null ? folder : parent,
+				"." + folder.getName() + suffix);
+		this.magic = magic;
+		this.version = version;
+	}
+
+	/**
+	 * Read one record and keep it.
+	 * @param in The index file, positioned at the record.
+	 * @throws IOException If the record is damaged.
+	 */
+	protected abstract void readRecord(DataInputStream in) throws IOException;
+
+	/**
+	 * Write all records that are to be kept.
+	 * @param out The new index file, positioned after the header.
+	 * @throws IOException If the records cannot be written.
+	 */
+	protected abstract void writeRecords(DataOutputStream out) throws IOException;
+
+	/**
+	 * Read all records from disk. A missing or unreadable index is treated as
+	 * empty. To be called by the constructor of the subclass once its fields are set.
+	 * @return {@code true} if the records reach the end of the file, {@code false}
+	 * if the header or a record is damaged, after which the file must be replaced
+	 * before anything is appended to it.
+	 */
+	protected final boolean load() {
+		if (!indexFile.isFile()) {
+			return true;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(indexFile)))) {
+			if (in.readInt() != magic || in.readInt() != version) {
+				return false;
+			}
+			while (!atEnd(in)) {
+				readRecord(in);
+			}
+			return true;
+		} catch (EOFException e) {
+			//A damaged last record
+		} catch (IOException e) {
+			System.out.println(getClass().getSimpleName() + ": cannot read " +
+					indexFile + " - " + e.getMessage());
+		}
+		return false;
+	}
+
+	/**
+	 * Open the index file to append records, writing the header first if the file is new.
+	 * @return The stream to write the records to, which the caller closes.
+	 * @throws IOException If the file cannot be opened.
+	 */
+	protected final DataOutputStream openAppend() throws IOException {
+		boolean fresh = !indexFile.exists() || indexFile.length() == 0;
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(indexFile, true)));
+		if (fresh) {
+			try {
+				writeHeader(out);
+			} catch (IOException e) {
+				out.close();
+				throw e;
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Replace the index file with one holding the records of
+	 * {@link PersistentIndex#writeRecords(DataOutputStream)}.
+	 * @throws IOException If the new file cannot be written or moved.
+	 */
+	protected final void writeAll() throws IOException {
+		File tmp = new File(indexFile.getPath() + ".tmp");
+		try {
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(tmp)))) {
+				writeHeader(out);
+				writeRecords(out);
+			}
+			SyncProcess.replaceFile(tmp, indexFile);
+		} finally {
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * Tell whether the index file ends before the next record.
+	 */
+	private static boolean atEnd(DataInputStream in) throws IOException {
+		in.mark(1);
+		if (in.read() < 0) {
+			return true;
+		}
+		in.reset();
+		return false;
+	}
+
+	private void writeHeader(DataOutputStream out) throws IOException {
+		out.writeInt(magic);
+		out.writeInt(version);
+	}
+}
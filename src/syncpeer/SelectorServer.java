@@ -0,0 +1,221 @@
+package syncpeer;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * The event-driven engine of a {@link ServerProcess}, used when
+ * {@link SyncOptions#selector} is set.<br>
+ * <br>
+ * A single {@link Selector} thread accepts connections and waits for client
+ * commands on all idle connections, without time outs. Each connection is in
+ * one of two states. While it is idle, it is registered with the selector in
+ * non-blocking mode and costs no thread. When command data arrives, it is
+ * removed from the selector, switched to blocking mode and handed to a worker,
+ * which runs the {@link ServerSession} handlers until no more command data has
+ * been read. The connection then returns to the selector. Thousands of idle or
+ * slow clients are therefore held by one thread, and the workers are only busy
+ * while commands are served. A {@link SyncProcess#TYPE_NOTIFY} for an idle
+ * connection is written by a worker the same way.
+ * @author Wenhao
+ *
+ */
+class SelectorServer {
+
+	private final ServerProcess server;
+	private final ServerSocketChannel listener;
+	private final ExecutorService workers;
+	private final Selector selector;
+	private final Queue<ServerSession> idle = new ConcurrentLinkedQueue<ServerSession>();
+	private final Queue<ServerSession> notified = new ConcurrentLinkedQueue<ServerSession>();
+
+	/**
+	 * @param server The server the sessions belong to.
+	 * @param listener The bound listening channel.
+	 * @param workers The threads serving commands.
+	 * @throws IOException If the selector cannot be opened.
+	 */
+	SelectorServer(ServerProcess server, ServerSocketChannel listener, ExecutorService workers) throws IOException {
+		this.server = server;
+		this.listener = listener;
+		this.workers = workers;
+		this.selector = Selector.open();
+	}
+
+	/**
+	 * Wake the selector thread up, for example to notice {@link ServerProcess#close()}.
+	 */
+	public void wakeup() {
+		selector.wakeup();
+	}
+
+	/**
+	 * Have a worker notify an idle client of local changes, see
+	 * {@link ServerSession#notifyChanged()}.
+	 * @param session The session of the client.
+	 */
+	public void notifyIdle(ServerSession session) {
+		notified.add(session);
+		selector.wakeup();
+	}
+
+	/**
+	 * Run the event loop on the calling thread until the server is closed.
+	 * @throws IOException If the selector or the listening channel fails.
+	 */
+	public void run() throws IOException {
+		try {
+			listener.configureBlocking(false);
+			listener.register(selector, SelectionKey.OP_ACCEPT);
+			
+			List<ServerSession> ready = new ArrayList<ServerSession>();
+			while (!server.isClosed()) {
+				if (selector.selectedKeys().isEmpty()) {
+					selector.select();
+				}
+				registerIdle();
+				takeNotified(ready);
+				
+				List<SelectionKey> keys = new ArrayList<SelectionKey>(selector.selectedKeys());
+				selector.selectedKeys().clear();
+				for (SelectionKey key : keys) {
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+					} else if (key.isReadable()) {
+						key.cancel();
+						ready.add((ServerSession) key.attachment());
+					}
+				}
+				
+				if (!ready.isEmpty()) {
+					//Deregister the cancelled keys before switching to blocking mode
+					selector.selectNow();
+					for (ServerSession session : ready) {
+						dispatch(session, notified.remove(session));
+					}
+					ready.clear();
+				}
+			}
+		} finally {
+			closeIdle();
+			selector.close();
+		}
+	}
+
+	/**
+	 * Accept all pending connections and register them as idle.
+	 */
+	private void accept() throws IOException {
+		SocketChannel channel;
+		while ((channel = listener.accept()) != null) {
+			System.out.println(server.name + ": connection established.");
+			channel.configureBlocking(false);
+			channel.register(selector, SelectionKey.OP_READ, server.newSession(channel.socket()));
+		}
+	}
+
+	/**
+	 * Take the idle connections to be notified off the selector. They are kept
+	 * in the notified queue, so {@link SelectorServer#dispatch(ServerSession, boolean)}
+	 * knows to notify them. Connections that are being served are left alone, since
+	 * their worker can write the notification itself.
+	 */
+	private void takeNotified(List<ServerSession> ready) {
+		for (ServerSession session : new ArrayList<ServerSession>(notified)) {
+			SelectionKey key = session.channel.keyFor(selector);
+			if (key == null || !key.isValid()) {
+				notified.remove(session);
+				continue;
+			}
+			key.cancel();
+			if (!ready.contains(session)) {
+				ready.add(session);
+			}
+		}
+	}
+
+	/**
+	 * Hand a connection with command data, or one to be notified, to a worker.
+	 * The connection returns to the selector once the worker is done.
+	 */
+	private void dispatch(final ServerSession session, final boolean notify) {
+		try {
+			synchronized (session) {
+				session.channel.configureBlocking(true);
+			}
+		} catch (IOException e) {
+			System.out.println(server.name + ": " + e.getMessage());
+			session.finish();
+			return;
+		}
+		workers.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (notify && !session.notifyChanged()) {
+					session.finish();
+					return;
+				}
+				if (!notify && !session.serve(false)) {
+					return;
+				}
+				if (server.isClosed()) {
+					session.finish();
+					return;
+				}
+				try {
+					synchronized (session) {
+						session.channel.configureBlocking(false);
+					}
+					idle.add(session);
+					selector.wakeup();
+				} catch (IOException e) {
+					System.out.println(session.name + ": " + e.getMessage());
+					session.finish();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Register the connections returned by the workers with the selector.
+	 */
+	private void registerIdle() {
+		ServerSession session;
+		while ((session = idle.poll()) != null) {
+			if (server.isClosed()) {
+				session.finish();
+				continue;
+			}
+			try {
+				session.channel.register(selector, SelectionKey.OP_READ, session);
+			} catch (ClosedChannelException e) {
+				session.finish();
+			}
+		}
+	}
+
+	/**
+	 * Close the idle connections when the server is closed. Connections that are
+	 * being served are closed by their workers.
+	 */
+	private void closeIdle() {
+		for (SelectionKey key : selector.keys()) {
+			if (key.attachment() instanceof ServerSession) {
+				((ServerSession) key.attachment()).finish();
+			}
+		}
+		registerIdle();
+	}
+}
@@ -1,22 +1,30 @@
 package syncpeer;
 
-import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.BindException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
-import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
- * A {@link Thread} class that listens to socket connections and handles 
- * remote client synchronization commands. It will close socket connection to a connected
- * peer once file synchronization is done and then return to waiting status.
+ * A {@link Thread} class that listens to socket connections and hands every
+ * connected client to a {@link ServerSession}, which handles the remote client 
+ * synchronization commands. Up to {@link SyncOptions#sessions} sessions are
+ * served at the same time by a pool of worker threads; further clients wait
+ * for a free worker. Unless {@link SyncOptions#selector} is off, idle
+ * connections are watched by a {@link SelectorServer} and hold no worker.
  * It keeps running once started and exits only when the {@link ServerProcess#close()} 
  * method is called or the thread is terminated.
  * @author Wenhao
@@ -26,240 +34,293 @@ class ServerProcess extends SyncProcess {
 
 	private static final String SERVER_PROCESS_NAME = "ServerProcess";
 
-	private ServerSocket socket;
+	private volatile ServerSocket socket;
+	private ExecutorService workers;
+	private volatile SelectorServer selectorServer;
+	private final Set<ServerSession> sessions = 
+			Collections.newSetFromMap(new ConcurrentHashMap<ServerSession, Boolean>());
+	private int sessionCount;
+	private final Map<String, StripedFile> stripedFiles = new HashMap<String, StripedFile>();
+	private final Map<StripedFile, Set<ServerSession>> stripedOwners = 
+			new HashMap<StripedFile, Set<ServerSession>>();
+	private volatile Thread liveNotifier;
 
-	ServerProcess(File folder, int port) {
+	ServerProcess(File folder, int port, SyncOptions options) {
 		this.folder = folder;
 		this.port = port;
+		this.options = options;
 		this.name = SERVER_PROCESS_NAME;
 		this.isClosed = false;
 	}
 
 	/**
-	 * Handle client file request. Will call {@link ServerProcess#pushFile(String)} to
-	 * send the requested file.
-	 * @param request The request command from client.
-	 * @return A boolean value telling whether the handling is 
-	 * successful ({@code true}) or failed ({@code false}).
+	 * Close the server and all running sessions.
 	 */
-	private boolean requestHandler(Vector<String> request){
-		try{
-			//Validate and acknowledge the received command.
-			String fileName = request.get(MSG_NAME_INDEX);
-			if(fileName == NIL) return false;
-			sendAck();
+	@Override
+	public void close() {
+		super.close();
+		for (ServerSession session : sessions) {
+			session.close();
+		}
+		if (selectorServer != null) {
+			selectorServer.wakeup();
+		}
+		Thread notifier = liveNotifier;
+		if (notifier != null) {
+			notifier.interrupt();
+		}
+		
+		//Wake up a blocking accept
+		ServerSocket listening = socket;
+		if (listening != null) {
+			try {
+				listening.close();
+			} catch (IOException e) {
+				System.out.println(name + ": " + e.getMessage());
+			}
+		}
+	}
 
-			System.out.println(name + ": send file "+fileName);
-			
-			return pushFile(fileName);
-		} catch(IOException e){
-			System.out.println(name + ": " + e.getMessage());
-			return false;			
+	/**
+	 * Have the {@link SelectorServer} notify a client whose connection is idle
+	 * in it. To be called by {@link ServerSession}.
+	 * @param session The session of the client.
+	 */
+	void notifyIdle(ServerSession session) {
+		SelectorServer selecting = selectorServer;
+		if (selecting != null) {
+			selecting.notifyIdle(session);
 		}
 	}
-	
+
 	/**
-	 * Handle client request of pushing file. Will call {@link ServerProcess#receiveFile(Vector)} to
-	 * receive the incoming file from client.
-	 * @param fileInfo The file information sent by the client.
-	 * @return A boolean value telling whether the handling is 
-	 * successful ({@code true}) or failed ({@code false}).
+	 * Forget a session that has finished. To be called by {@link ServerSession}.
+	 * @param session The finished session.
 	 */
-	private boolean pushHandler(Vector<String> fileInfo){
-		System.out.println(name + ": receive file "+fileInfo.get(MSG_NAME_INDEX));
-		return receiveFile(fileInfo);
+	void sessionFinished(ServerSession session) {
+		sessions.remove(session);
+		releaseStripedFiles(session);
 	}
-	
+
 	/**
-	 * Handle client request of synchronization of file name lists. It receives a file name list from
-	 * client and compares to its own file name lists. It sends back to the client two lists of file
-	 * names where the first list contains the file names the client is missing and the second contains
-	 * the file names the server is missing.
-	 * @return A boolean value telling whether the handling is 
-	 * successful ({@code true}) or failed ({@code false}).
+	 * Create a session for a connected client.
+	 * @param fromClientSocket The socket of the connected client.
+	 * @return The new session.
 	 */
-	private boolean syncHandler(){
-		try{
-			//Acknowledge the received command.
-			sendAck();
-			
-			//Construct file name lists in sync folder
-			Set<File> fileList = getFileList();
-			Set<String> fileNameList = getFileNameList(fileList);
+	ServerSession newSession(Socket fromClientSocket) {
+		ServerSession session = new ServerSession(this, fromClientSocket, ++sessionCount);
+		sessions.add(session);
+		if (isClosed()) {
+			session.close();
+		}
+		return session;
+	}
 
-			//Receive file name lists from client
-			Set<String> clientFileNameList = receiveFileList();
-			if(clientFileNameList == null) {
-				System.out.println("Unable to sync file lists.");
-				return false;
+	/**
+	 * Get the incomplete copy of a file whose ranges are pushed by clients over
+	 * several sessions. A new copy is started if there is none yet or if the
+	 * ranges belong to a different version of the file. The session owns the copy
+	 * until it finishes. To be called by {@link ServerSession}.
+	 * @param session The session that received the range.
+	 * @param fileName The name of the file.
+	 * @param size The length of the complete file.
+	 * @param digest The content digest of the complete file.
+	 * @return The copy the range is to be written to.
+	 * @throws IOException If the temporary file cannot be created.
+	 */
+	synchronized StripedFile stripedFile(ServerSession session, String fileName, 
+			long size, byte[] digest) throws IOException {
+		StripedFile striped = stripedFiles.get(fileName);
+		if (striped == null || !striped.matches(size, digest)) {
+			if (striped != null) {
+				striped.abort();
+				stripedOwners.remove(striped);
 			}
+			striped = new StripedFile(session.localFile(fileName), 
+					session.tempFile(fileName), size, digest);
+			stripedFiles.put(fileName, striped);
+			stripedOwners.put(striped, new HashSet<ServerSession>());
+		}
+		stripedOwners.get(striped).add(session);
+		return striped;
+	}
 
-			//Obtain the differences between local list and client list
-			Set<String> clientMissingFileNameList = difference(
-					fileNameList, clientFileNameList);
-			Set<String> clientExtraFileNameList = difference(
-					clientFileNameList, fileNameList);
-			
-			//Send difference results back to client.
-			boolean success;
-			success = sendFileList(clientMissingFileNameList);
-			if(!success) {
-				System.out.println("Unable to sync file lists.");
-				return false;
-			}
-			success = sendFileList(clientExtraFileNameList);
-			if(!success) {
-				System.out.println("Unable to sync file lists.");
-				return false;
-			}
-			
-			return true;
-			
-		} catch(IOException e){
-			System.out.println(name + ": " + e.getMessage());
-			return false;			
+	/**
+	 * Forget the copy of a file once all its ranges were received.
+	 * To be called by {@link ServerSession}.
+	 * @param fileName The name of the file.
+	 * @param striped The completed copy.
+	 */
+	synchronized void stripedFileFinished(String fileName, StripedFile striped) {
+		if (stripedFiles.get(fileName) == striped) {
+			stripedFiles.remove(fileName);
 		}
+		stripedOwners.remove(striped);
+	}
+
+	/**
+	 * Give up the copy of a file after one of its ranges could not be written,
+	 * since it can no longer be completed. To be called by {@link ServerSession}.
+	 * @param fileName The name of the file.
+	 * @param striped The failed copy.
+	 */
+	synchronized void stripedFileFailed(String fileName, StripedFile striped) {
+		striped.abort();
+		stripedFileFinished(fileName, striped);
 	}
-	
+
 	/**
-	 * Receive remote commands from client. A simple validity checking is performed.
-	 * @return The client command received if it is valid, or {@code null} if invalid.
-	 * @throws IOException If the socket connection failed.
+	 * Give up the incomplete copies that no unfinished session owns anymore,
+	 * such as those of a client that disconnected before pushing all ranges.
+	 * @param session The finished session.
 	 */
-	@SuppressWarnings("unchecked")
-	private Vector<String> readCommand() throws IOException{
-		try{
-			Vector<String> reading = (Vector<String>) ois.readObject();
-			if(reading != null &&
-			   reading.size() == MSG_SIZE){
-				return reading;
+	private synchronized void releaseStripedFiles(ServerSession session) {
+		Iterator<StripedFile> it = stripedFiles.values().iterator();
+		while (it.hasNext()) {
+			StripedFile striped = it.next();
+			Set<ServerSession> owners = stripedOwners.get(striped);
+			if (owners.remove(session) && owners.isEmpty()) {
+				striped.abort();
+				stripedOwners.remove(striped);
+				it.remove();
 			}
-			return null;
-		} catch (SocketTimeoutException e){
-			return null;
-		} catch (ClassNotFoundException e){
-			System.out.println(name + ": "+e.getMessage());
-			return null;
 		}
+	}
 
+	/**
+	 * Remove the temporary files of copies that were never completed.
+	 */
+	private synchronized void abortStripedFiles() {
+		for (StripedFile striped : stripedFiles.values()) {
+			striped.abort();
+		}
+		stripedFiles.clear();
+		stripedOwners.clear();
 	}
-	
+
 	/**
-	 * Dispatch the user command read from {@link ServerProcess#readCommand()}.
-	 * It will check type of the command and dispatch to its respective handler.
-	 * @param cmd The user command.
-	 * @return A boolean value telling whether the handling is 
-	 * successful ({@code true}) or failed ({@code false}).
+	 * Start a thread that waits for bursts of local changes, debounced by
+	 * {@link SyncOptions#live}, and notifies the clients waiting for them.
+	 * Nothing is started unless live sync is on and the folder is watched.
 	 */
-	private boolean dispatchCommand(Vector<String> cmd){
-		String type = cmd.get(MSG_TYPE_INDEX);
-		if(type == null ||
-		   type.isEmpty() ||
-		   type == "\n"){
-			return false;
+	private void startLiveNotifier() {
+		final FolderWatcher watcher = getWatcher();
+		if (options.live == 0 || watcher == null) {
+			return;
 		}
-		boolean success = false;
-		if(type.equalsIgnoreCase(TYPE_REQUEST)){
-			success = requestHandler(cmd);
-		} else if(type.equalsIgnoreCase(TYPE_PUSH)){
-			success = pushHandler(cmd);
-		} else if(type.equalsIgnoreCase(TYPE_SYNC)){
-			success = syncHandler();
+		liveNotifier = new Thread(name + "-live") {
+			@Override
+			public void run() {
+				try {
+					long seen = watcher.changeCount();
+					while (!ServerProcess.this.isClosed()) {
+						seen = watcher.awaitChange(seen, options.live);
+						for (ServerSession session : sessions) {
+							session.notifyChanged();
+						}
+					}
+				} catch (InterruptedException e) {
+					//The server is closed
+				}
+			}
+		};
+		liveNotifier.setDaemon(true);
+		liveNotifier.start();
+	}
+
+	/**
+	 * Stop accepting work and wait for the running sessions, which notice
+	 * {@link ServerSession#close()} while waiting for their next command.
+	 */
+	private void shutdownWorkers() {
+		workers.shutdown();
+		try {
+			if (!workers.awaitTermination(TIME_OUT*10, TimeUnit.MILLISECONDS)) {
+				System.out.println(name + ": " + sessions.size() + " sessions are still running.");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Bind the listening channel to the server port, retrying while the port is in use.
+	 * The channel stays bound for the life of the server, and connections accepted
+	 * from it support zero-copy transfer.
+	 * @return The bound channel, or {@code null} if the server was closed while waiting.
+	 * @throws IOException If the channel cannot be opened.
+	 */
+	private ServerSocketChannel bind() throws IOException {
+		while (!isClosed()) {
+			ServerSocketChannel listener = ServerSocketChannel.open();
+			try {
+				listener.socket().setReuseAddress(true);
+				listener.socket().bind(new InetSocketAddress(port));
+				return listener;
+			} catch (BindException e) {
+				listener.close();
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e1) {
+					e1.printStackTrace();
+				}
+			}
 		}
-		return success;	
+		return null;
 	}
-	
+
 	/**
 	 * Start the server thread and keeps waiting for socket connection.
-	 * It scans user inputs and dispatch to respective handlers.
+	 * Every connected client is handed to a new {@link ServerSession}.
 	 * It keeps running once started and exits only when the {@link ServerProcess#close()} 
 	 * method is called or the thread is terminated.
 	 */
 	@Override
 	public void run() {
-		//Looping for synchronization sessions
+		workers = Executors.newFixedThreadPool(options.sessions);
+		startLiveNotifier();
+		
+		//Looping until the server is closed
 		while (!isClosed()) {
 			try {
 				//Waiting until the port can be bind.
-				while (!isClosed()) {
-					try {
-						socket = new ServerSocket(port);
-						break;
-					} catch (BindException e) {
-						try {
-							Thread.sleep(100);
-						} catch (InterruptedException e1) {
-							e1.printStackTrace();
-						}
-						continue;
-					}
-				}
-
-				if (isClosed()) {
-					if(socket != null) socket.close();
-					return;
+				ServerSocketChannel listener = bind();
+				if (listener == null) {
+					break;
 				}
+				socket = listener.socket();
 				System.out.println(name + ": waiting for connection.");
 
-				socket.setSoTimeout(TIME_OUT);
-
-				Socket fromClientSocket = null;
-
-				//Waiting for client connections
-				while (!isClosed()) {
-					try {
-						fromClientSocket = socket.accept();
+				if (options.selector) {
+					selectorServer = new SelectorServer(this, listener, workers);
+					if (isClosed()) {
 						break;
-					} catch (SocketTimeoutException e) {
-						continue;
 					}
+					selectorServer.run();
+					continue;
 				}
-
-				if (isClosed()) {
-					if(fromClientSocket != null) fromClientSocket.close();
-					if(socket != null) socket.close();
-					return;
-				}
-				System.out.println(name + ": connection established.");
 				
-				//Establish connection socket streams
-				fromClientSocket.setSoTimeout(TIME_OUT*5);
-				oos = new ObjectOutputStream(
-						fromClientSocket.getOutputStream());
-				ois = new ObjectInputStream(
-						fromClientSocket.getInputStream());
-				
-				//Looping for user commands.
-				Vector<String> cmd;
-				while(!isClosed() && !fromClientSocket.isClosed()){
-					cmd = readCommand();
-					if(cmd == null) {
-						System.out.println(name+": Invalid command from the other peer!");
-						continue;
-					}
-					dispatchCommand(cmd);
+				//Accepting client connections until close() closes the listener
+				while (!isClosed()) {
+					Socket fromClientSocket = socket.accept();
+					System.out.println(name + ": connection established.");
+					workers.execute(newSession(fromClientSocket));
 				}
-
-				//Clean up connections and prepare for next synchronization session.
-				oos.close();
-				ois.close();
-				fromClientSocket.close();
-				socket.close();
-
-			} catch (SocketException | EOFException e){
+			} catch (IOException e) {
+				if (!isClosed()) {
+					System.out.println(name+": Something went wrong - "+e.getMessage()+
+										". Please try again.");
+				}
+			} finally {
 				try{
-					if(oos != null)oos.close();
-					if(ois != null)ois.close();
 					if(socket != null)socket.close();
-				} catch (Exception e1){
+				} catch (IOException e1){
 					System.out.println(name+": Something went wrong - "+e1.getMessage());
 				}
-				System.out.println(name+": connected was closed by the peer.");
-			} catch (IOException e) {
-				System.out.println(name+": Something went wrong - "+e.getMessage()+
-									". Please try again.");
 			}
 		}
+		shutdownWorkers();
+		abortStripedFiles();
 	}
 
 }
\ No newline at end of file
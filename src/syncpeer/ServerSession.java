@@ -0,0 +1,965 @@
+package syncpeer;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
+
+/**
+ * One synchronization session of a {@link ServerProcess} with a connected client.
+ * Every session has its own socket, codec and agreed features and runs on a
+ * worker thread of the {@link ServerProcess}, so clients are served side by side.
+ * It handles the remote client commands until the client closes the connection
+ * or {@link ServerSession#close()} is called.
+ * @author Wenhao
+ *
+ */
+class ServerSession extends SyncProcess {
+
+	private static final String SESSION_NAME = "ServerSession";
+	private static final String[] SUPPORTED_FEATURES = {
+		FEATURE_PIPELINE,
+		FEATURE_BATCH,
+		FEATURE_MANIFEST,
+		FEATURE_DELTA,
+		FEATURE_MERKLE,
+		FEATURE_RECONCILE,
+		FEATURE_RANGE,
+		FEATURE_RESUME,
+		FEATURE_COMPRESS,
+		FEATURE_DEDUP,
+		FEATURE_CHUNK,
+		FEATURE_LIVE,
+		FEATURE_TREE,
+		FEATURE_PAGED,
+		FEATURE_RAW
+	};
+
+	private final ServerProcess server;
+	private final Socket fromClientSocket;
+	private long syncedChanges;
+	private boolean listening;
+
+	ServerSession(ServerProcess server, Socket fromClientSocket, int id) {
+		this.server = server;
+		this.fromClientSocket = fromClientSocket;
+		this.channel = fromClientSocket.getChannel();
+		this.folder = server.folder;
+		this.options = server.options;
+		this.name = SESSION_NAME + "-" + id;
+		this.isClosed = false;
+	}
+
+	/**
+	 * Handle client file request. Will call {@link ServerSession#pushFile(String)} to
+	 * send the requested file.
+	 * @param request The request command from client.
+	 * @return A boolean value telling whether the handling is 
+	 * successful ({@code true}) or failed ({@code false}).
+	 */
+	private boolean requestHandler(Vector<String> request){
+		try{
+			//Validate and acknowledge the received command.
+			String fileName = request.get(MSG_NAME_INDEX);
+			if(fileName == NIL) return false;
+			sendAck();
+
+			System.out.println(name + ": send file "+fileName);
+			
+			return pushFile(fileName);
+		} catch(IOException e){
+			System.out.println(name + ": " + e.getMessage());
+			return false;			
+		}
+	}
+	
+	/**
+	 * Handle client request of pushing file. Will call {@link ServerSession#receiveFile(Vector)} to
+	 * receive the incoming file from client.
+	 * @param fileInfo The file information sent by the client.
+	 * @return A boolean value telling whether the handling is 
+	 * successful ({@code true}) or failed ({@code false}).
+	 */
+	private boolean pushHandler(Vector<String> fileInfo){
+		System.out.println(name + ": receive file "+fileInfo.get(MSG_NAME_INDEX));
+		return receiveFile(fileInfo);
+	}
+	
+	/**
+	 * Handle a pipelined client file request. The file header and data are
+	 * sent at once, or a {@link SyncProcess#TYPE_NAK} if the file cannot be opened.
+	 * The client may already have sent its next commands, which are read
+	 * after this reply. If the file cannot be sent in full after its header,
+	 * the connection is closed, since the client waits for the announced bytes.
+	 * @param request The request command from client.
+	 * @return A boolean value telling whether the handling is 
+	 * successful ({@code true}) or failed ({@code false}).
+	 */
+	private boolean pipeRequestHandler(Vector<String> request){
+		try{
+			String fileName = request.get(MSG_NAME_INDEX);
+			System.out.println(name + ": send file "+fileName);
+			boolean success = sendPipelinedFile(TYPE_PUSH, fileName);
+			codec.flush();
+			return success;
+		} catch(IOException e){
+			System.out.println(name + ": " + e.getMessage());
+			close();
+			return false;			
+		}
+	}
+	
+	/**
+	 * Handle a pipelined client push. The file data directly follows the command
+	 * and is answered with an acknowledgement, or a {@link SyncProcess#TYPE_NAK}
+	 * if the file could not be written. If the data cannot be read, the
+	 * connection is out of step and closed.
+	 * @param fileInfo The file information sent by the client.
+	 * @return A boolean value telling whether the handling is 
+	 * successful ({@code true}) or failed ({@code false}).
+	 */
+	private boolean pipePushHandler(Vector<String> fileInfo){
+		try{
+			String fileName = fileInfo.get(MSG_NAME_INDEX);
+			System.out.println(name + ": receive file "+fileName);
+			boolean success = receivePipelinedFile(fileInfo);
+			codec.writeMessage(makeMsg(success ? TYPE_ACK : TYPE_NAK, fileName, NIL));
+			codec.flush();
+			return success;
+		} catch(IOException e){
+			System.out.println(name + ": " + e.getMessage());
+			close();
+			return false;			
+		}
+	}
+	
+	/**
+	 * Handle a bundle of small files pushed by the client. All files in the
+	 * bundle are written before a single acknowledgement is sent. If the bundle
+	 * cannot be read, the connection is out of step and closed.
+	 * @param header The {@link SyncProcess#TYPE_BATCH} header sent by the client.
+	 * @return A boolean value telling whether the handling is 
+	 * successful ({@code true}) or failed ({@code false}).
+	 */
+	private boolean batchHandler(Vector<String> header){
+		try{
+			receiveBatch(header);
+			sendAck();
+			return true;
+		} catch(IOException | ClassNotFoundException e){
+			System.out.println(name + ": " + e.getMessage());
+			close();
+			return false;			
+		}
+	}
+	
+	/**
+	 * Handle a client request for a bundle of small files. The command carries the
+	 * size limit per file and is followed by a list of file names. The files within
+	 * the limit are sent back as one {@link SyncProcess#TYPE_BATCH} bundle; the 
+	 * client requests the others one by one. If a file cannot be sent in full
+	 * after its header, the connection is closed.
+	 * @param request The {@link SyncProcess#TYPE_FETCH} command sent by the client.
+	 * @return A boolean value telling whether the handling is 
+	 * successful ({@code true}) or failed ({@code false}).
+	 */
+	private boolean fetchHandler(Vector<String> request){
+		try{
+			long threshold = Long.parseLong(request.get(MSG_LENGTH_INDEX));
+			Set<String> requested = codec.readList();
+			
+			List<String> bundle = new ArrayList<String>();
+			for(String fileName : requested){
+				File f = isValidName(fileName) ? localFile(fileName) : null;
+				if(f != null && f.isFile() && f.length() <= threshold){
+					System.out.println(name + ": send file "+fileName);
+					bundle.add(fileName);
+				}
+			}
+			sendBatch(bundle);
+			return recvAck();
+		} catch(IOException | ClassNotFoundException | NumberFormatException e){
+			System.out.println(name + ": " + e.getMessage());
+			close();
+			return false;			
+		}
+	}
+	
+	/**
+	 * Handle a client request for the changes to a file. The command carries the
+	 * signature of the client copy, which is answered with a {@link SyncProcess#TYPE_DELTA}
+	 * against it, or a {@link SyncProcess#TYPE_NAK} if the file is missing or cannot be read.
+	 * @param request The {@link SyncProcess#TYPE_SIGNATURE} command sent by the client.
+	 * @return A boolean value telling whether the handling is 
+	 * successful ({@code true}) or failed ({@code false}).
+	 */
+	private boolean signatureHandler(Vector<String> request){
+		try{
+			String fileName = request.get(MSG_NAME_INDEX);
+			DeltaTransfer.Signature sig = receiveSignature(request);
+			if(!localFile(fileName).isFile()){
+				codec.writeMessage(makeMsg(TYPE_NAK, fileName, NIL));
+				codec.flush();
+				return false;
+			}
+			System.out.println(name + ": send changes to file "+fileName);
+			if(!sendDelta(fileName, sig)){
+				codec.writeMessage(makeMsg(TYPE_NAK, fileName, NIL));
+				codec.flush();
+				return false;
+			}
+			return true;
+		} catch(IOException e){
+			System.out.println(name + ": " + e.getMessage());
+			close();
+			return false;			
+		}
+	}
+	
+	/**
+	 * Handle a client push of the changes to a file. The signature of the local copy
+	 * is sent back, or a {@link SyncProcess#TYPE_NAK} if there is none, and the
+	 * {@link SyncProcess#TYPE_DELTA} from the client is answered with an acknowledgement,
+	 * or a {@link SyncProcess#TYPE_NAK} if the file cannot be rebuilt. The client answers
+	 * the signature with a {@link SyncProcess#TYPE_NAK} instead if it cannot read its copy.
+	 * @param request The {@link SyncProcess#TYPE_DELTA_PUSH} command sent by the client.
+	 * @return A boolean value telling whether the handling is 
+	 * successful ({@code true}) or failed ({@code false}).
+	 */
+	private boolean deltaPushHandler(Vector<String> request){
+		try{
+			String fileName = request.get(MSG_NAME_INDEX);
+			if(!localFile(fileName).isFile()){
+				codec.writeMessage(makeMsg(TYPE_NAK, fileName, NIL));
+				codec.flush();
+				return false;
+			}
+			int blockSize = sendSignature(fileName);
+			
+			Vector<String> delta = codec.readMessage();
+			if(delta == null || delta.size() != MSG_SIZE ||
+			   !fileName.equals(delta.get(MSG_NAME_INDEX))){
+				throw new IOException("Unexpected reply while receiving changes to "+fileName);
+			}
+			if(delta.get(MSG_TYPE_INDEX).equalsIgnoreCase(TYPE_NAK)){
+				return false;
+			}
+			if(!delta.get(MSG_TYPE_INDEX).equalsIgnoreCase(TYPE_DELTA)){
+				throw new IOException("Unexpected reply while receiving changes to "+fileName);
+			}
+			System.out.println(name + ": receive changes to file "+fileName);
+			boolean success = receiveDelta(fileName, blockSize);
+			codec.writeMessage(makeMsg(success ? TYPE_ACK : TYPE_NAK, fileName, NIL));
+			codec.flush();
+			return success;
+		} catch(IOException | ClassNotFoundException e){
+			System.out.println(name + ": " + e.getMessage());
+			close();
+			return false;			
+		}
+	}
+	
+	/**
+	 * Handle a client request for one byte range of a file. The command carries the
+	 * length of the range and is followed by its offset. The range is sent back as a
+	 * {@link SyncProcess#TYPE_RANGE}, or a {@link SyncProcess#TYPE_NAK} if the file
+	 * is missing or shorter.
+	 * @param request The {@link SyncProcess#TYPE_RANGE} command sent by the client.
+	 * @return A boolean value telling whether the handling is 
+	 * successful ({@code true}) or failed ({@code false}).
+	 */
+	private boolean rangeHandler(Vector<String> request){
+		try{
+			String fileName = request.get(MSG_NAME_INDEX);
+			long length = Long.parseLong(request.get(MSG_LENGTH_INDEX));
+			long offset = codec.readVarLong();
+			File fin = localFile(fileName);
+			if(!fin.isFile() || length < 0 || offset > fin.length() - length){
+				codec.writeMessage(makeMsg(TYPE_NAK, fileName, NIL));
+				codec.flush();
+				return false;
+			}
+			System.out.println(name + ": send file "+fileName+" from byte "+offset);
+			codec.writeMessage(makeMsg(TYPE_RANGE, fileName, String.valueOf(length)));
+			sendRangeData(fin, offset, length);
+			codec.flush();
+			return true;
+		} catch(IOException | NumberFormatException e){
+			System.out.println(name + ": " + e.getMessage());
+			close();
+			return false;			
+		}
+	}
+	
+	/**
+	 * Handle one byte range of a file pushed by the client. The command carries the
+	 * length of the range and is followed by its offset, the length and digest of
+	 * the whole file, and the range data. Ranges of the same file may arrive on
+	 * other sessions at the same time and are collected in a {@link StripedFile}
+	 * shared through the {@link ServerProcess}, which gives it up once no session
+	 * pushing its ranges is left. The range is answered with an acknowledgement, or a
+	 * {@link SyncProcess#TYPE_NAK} if it could not be written, which gives up the
+	 * file as well, or it completed a file that does not match its digest.
+	 * @param request The {@link SyncProcess#TYPE_RANGE_PUSH} command sent by the client.
+	 * @return A boolean value telling whether the handling is 
+	 * successful ({@code true}) or failed ({@code false}).
+	 */
+	private boolean rangePushHandler(Vector<String> request){
+		try{
+			String fileName = request.get(MSG_NAME_INDEX);
+			long length = Long.parseLong(request.get(MSG_LENGTH_INDEX));
+			if(length < 0){
+				throw new IOException("Invalid range length " + length);
+			}
+			long offset = codec.readVarLong();
+			long size = codec.readVarLong();
+			byte[] digest = codec.readBytes(BinaryCodec.MAX_DIGEST_BYTES);
+			
+			boolean success;
+			StripedFile striped;
+			try{
+				striped = server.stripedFile(this, fileName, size, digest);
+			} catch(IOException e){
+				System.out.println(name + ": " + e.getMessage());
+				striped = null;
+			}
+			if(striped == null){
+				skipData(length);
+				success = false;
+			} else {
+				System.out.println(name + ": receive file "+fileName+" from byte "+offset);
+				success = striped.write(codec, offset, length);
+				if(!success){
+					server.stripedFileFailed(fileName, striped);
+				} else if(striped.rangeDone(offset, length)){
+					server.stripedFileFinished(fileName, striped);
+					success = striped.finish();
+				}
+			}
+			codec.writeMessage(makeMsg(success ? TYPE_ACK : TYPE_NAK, fileName, NIL));
+			codec.flush();
+			return success;
+		} catch(IOException | NumberFormatException e){
+			System.out.println(name + ": " + e.getMessage());
+			close();
+			return false;			
+		}
+	}
+	
+	/**
+	 * Handle a client request for the rest of a file. The command carries the length
+	 * of the partial copy of the client and is followed by its digest. If the part
+	 * matches the beginning of the local copy, only the bytes after it are sent in a
+	 * {@link SyncProcess#TYPE_APPEND}, otherwise the whole file is, or a
+	 * {@link SyncProcess#TYPE_NAK} if the file is missing.
+	 * @param request The {@link SyncProcess#TYPE_RESUME} command sent by the client.
+	 * @return A boolean value telling whether the handling is 
+	 * successful ({@code true}) or failed ({@code false}).
+	 */
+	private boolean resumeHandler(Vector<String> request){
+		try{
+			String fileName = request.get(MSG_NAME_INDEX);
+			long offset = receiveResume(request);
+			if(!localFile(fileName).isFile()){
+				codec.writeMessage(makeMsg(TYPE_NAK, fileName, NIL));
+				codec.flush();
+				return false;
+			}
+			System.out.println(name + ": send file "+fileName+" from byte "+offset);
+			sendAppend(fileName, offset);
+			return true;
+		} catch(IOException e){
+			System.out.println(name + ": " + e.getMessage());
+			close();
+			return false;			
+		}
+	}
+	
+	/**
+	 * Handle a client question for the partial copy of a file it is about to push.
+	 * It is answered with a {@link SyncProcess#TYPE_RESUME} carrying the length and
+	 * digest of the part, which is 0 if there is none.
+	 * @param request The {@link SyncProcess#TYPE_RESUME_PUSH} command sent by the client.
+	 * @return A boolean value telling whether the handling is 
+	 * successful ({@code true}) or failed ({@code false}).
+	 */
+	private boolean resumePushHandler(Vector<String> request){
+		try{
+			sendResume(request.get(MSG_NAME_INDEX));
+			return true;
+		} catch(IOException e){
+			System.out.println(name + ": " + e.getMessage());
+			close();
+			return false;			
+		}
+	}
+	
+	/**
+	 * Handle the rest of a file pushed by the client after a partial copy, which
+	 * is answered with an acknowledgement, or a {@link SyncProcess#TYPE_NAK} if
+	 * it could not be written.
+	 * @param fileInfo The {@link SyncProcess#TYPE_APPEND} command sent by the client.
+	 * @return A boolean value telling whether the handling is 
+	 * successful ({@code true}) or failed ({@code false}).
+	 */
+	private boolean appendHandler(Vector<String> fileInfo){
+		try{
+			String fileName = fileInfo.get(MSG_NAME_INDEX);
+			System.out.println(name + ": receive rest of file "+fileName);
+			boolean success = receiveAppend(fileInfo);
+			codec.writeMessage(makeMsg(success ? TYPE_ACK : TYPE_NAK, fileName, NIL));
+			codec.flush();
+			return success;
+		} catch(IOException e){
+			System.out.println(name + ": " + e.getMessage());
+			close();
+			return false;			
+		}
+	}
+	
+	/**
+	 * Handle a client request for a file by its chunks. The chunk list of the file
+	 * is sent as a {@link SyncProcess#TYPE_CHUNKS}, or a {@link SyncProcess#TYPE_NAK}
+	 * if the file is missing, and the chunks the client answers for in a
+	 * {@link SyncProcess#TYPE_CHUNK_WANT} are sent after it.
+	 * @param request The {@link SyncProcess#TYPE_CHUNK_FETCH} command sent by the client.
+	 * @return A boolean value telling whether the handling is 
+	 * successful ({@code true}) or failed ({@code false}).
+	 */
+	private boolean chunkFetchHandler(Vector<String> request){
+		try{
+			String fileName = request.get(MSG_NAME_INDEX);
+			if(!localFile(fileName).isFile()){
+				codec.writeMessage(makeMsg(TYPE_NAK, fileName, NIL));
+				codec.flush();
+				return false;
+			}
+			ChunkedTransfer.ChunkList list = sendChunkList(fileName);
+			
+			Vector<String> want = codec.readMessage();
+			if(want == null || want.size() != MSG_SIZE ||
+			   !want.get(MSG_TYPE_INDEX).equalsIgnoreCase(TYPE_CHUNK_WANT) ||
+			   !fileName.equals(want.get(MSG_NAME_INDEX))){
+				throw new IOException("Unexpected reply while sending chunks of "+fileName);
+			}
+			BitSet wanted = receiveWanted(want, list);
+			System.out.println(name + ": send "+wanted.cardinality()+" of "+list.size()+
+					" chunks of file "+fileName);
+			sendChunks(fileName, list, wanted);
+			return true;
+		} catch(IOException | ClassNotFoundException e){
+			System.out.println(name + ": " + e.getMessage());
+			close();
+			return false;			
+		}
+	}
+	
+	/**
+	 * Handle a file pushed by its chunks. The chunk list follows the command and is
+	 * answered with a {@link SyncProcess#TYPE_CHUNK_WANT} for the chunks that are not
+	 * found locally. Once the file is rebuilt from those and the local chunks, it is
+	 * acknowledged, or answered with a {@link SyncProcess#TYPE_NAK} if it does not match.
+	 * @param fileInfo The {@link SyncProcess#TYPE_CHUNKS} command sent by the client.
+	 * @return A boolean value telling whether the handling is 
+	 * successful ({@code true}) or failed ({@code false}).
+	 */
+	private boolean chunksHandler(Vector<String> fileInfo){
+		try{
+			String fileName = fileInfo.get(MSG_NAME_INDEX);
+			ChunkedTransfer.ChunkList list = receiveChunkList(fileInfo);
+			BitSet wanted = sendWanted(fileName, list);
+			System.out.println(name + ": receive "+wanted.cardinality()+" of "+list.size()+
+					" chunks of file "+fileName);
+			boolean success = receiveChunks(fileName, list, wanted);
+			codec.writeMessage(makeMsg(success ? TYPE_ACK : TYPE_NAK, fileName, NIL));
+			codec.flush();
+			return success;
+		} catch(IOException e){
+			System.out.println(name + ": " + e.getMessage());
+			close();
+			return false;			
+		}
+	}
+	
+	/**
+	 * Handle a client that waits for changes after a round. A {@link SyncProcess#TYPE_NOTIFY}
+	 * is sent at once if the folder changed since the last {@link SyncProcess#TYPE_SYNC},
+	 * otherwise by {@link ServerSession#notifyChanged()} at the next change. There is
+	 * no other reply.
+	 * @return A boolean value telling whether the handling is 
+	 * successful ({@code true}) or failed ({@code false}).
+	 */
+	private boolean listenHandler(){
+		synchronized(this){
+			listening = true;
+		}
+		return notifyChanged();
+	}
+	
+	/**
+	 * Tell a listening client that the folder changed since its last round.
+	 * At most one {@link SyncProcess#TYPE_NOTIFY} is sent for every
+	 * {@link SyncProcess#TYPE_LISTEN}, and only while no command is handled.
+	 * A connection idle in the {@link SelectorServer} is handed to it to be written.
+	 * To be called by {@link ServerProcess} after a burst of local changes.
+	 * @return A boolean value telling whether the client is 
+	 * still reachable ({@code true}) or not ({@code false}).
+	 */
+	synchronized boolean notifyChanged(){
+		FolderWatcher watcher = getWatcher();
+		if(!listening || watcher == null || watcher.changeCount() == syncedChanges){
+			return true;
+		}
+		if(channel != null && !channel.isBlocking()){
+			server.notifyIdle(this);
+			return true;
+		}
+		try{
+			listening = false;
+			codec.writeMessage(makeMsg(TYPE_NOTIFY, NIL, NIL));
+			codec.flush();
+			return true;
+		} catch(IOException e){
+			System.out.println(name + ": " + e.getMessage());
+			return false;
+		}
+	}
+	
+	/**
+	 * Handle client request of synchronization of file name lists. It receives a file name list from
+	 * client and compares to its own file name lists. It sends back to the client two lists of file
+	 * names where the first list contains the file names the client is missing and the second contains
+	 * the file names the server is missing.<br>
+	 * If {@link SyncProcess#FEATURE_MANIFEST} is agreed, manifests are compared
+	 * instead; see {@link ServerSession#manifestSyncHandler()}. If {@link SyncProcess#FEATURE_PAGED}
+	 * is agreed, the lists are compared as they arrive; see {@link ServerSession#pagedSyncHandler()}.
+	 * @return A boolean value telling whether the handling is 
+	 * successful ({@code true}) or failed ({@code false}).
+	 */
+	private boolean syncHandler(){
+		try{
+			//Acknowledge the received command.
+			sendAck();
+			forgetChunkIndex();
+			FolderWatcher watcher = getWatcher();
+			if(watcher != null){
+				syncedChanges = watcher.changeCount();
+			}
+			
+			if(hasFeature(FEATURE_MANIFEST)){
+				return manifestSyncHandler();
+			}
+			if(hasFeature(FEATURE_PAGED)){
+				return pagedSyncHandler();
+			}
+			
+			//Construct file name lists in sync folder
+			Set<File> fileList = getFileList();
+			Set<String> fileNameList = getFileNameList(fileList);
+
+			//Receive file name lists from client
+			Set<String> clientFileNameList = receiveFileList();
+			if(clientFileNameList == null) {
+				System.out.println("Unable to sync file lists.");
+				return false;
+			}
+
+			//Obtain the differences between local list and client list
+			Set<String> clientMissingFileNameList = difference(
+					fileNameList, clientFileNameList);
+			Set<String> clientExtraFileNameList = difference(
+					clientFileNameList, fileNameList);
+			
+			//Send difference results back to client.
+			boolean success;
+			success = sendFileList(clientMissingFileNameList);
+			if(!success) {
+				System.out.println("Unable to sync file lists.");
+				return false;
+			}
+			success = sendFileList(clientExtraFileNameList);
+			if(!success) {
+				System.out.println("Unable to sync file lists.");
+				return false;
+			}
+			
+			return true;
+			
+		} catch(IOException e){
+			System.out.println(name + ": " + e.getMessage());
+			return false;			
+		}
+	}
+	
+	/**
+	 * Compare the sorted file name list of the client with the local one page by
+	 * page as it arrives, by one merge pass over both lists, and send back the
+	 * client missing and the server missing file names in the same order.
+	 * @return A boolean value telling whether the handling is 
+	 * successful ({@code true}) or failed ({@code false}).
+	 * @throws IOException If the communication cannot be completed.
+	 */
+	private boolean pagedSyncHandler() throws IOException{
+		String[] local = getSortedNames(getFileList());
+		List<String> clientMissing = new ArrayList<String>();
+		List<String> clientExtra = new ArrayList<String>();
+		
+		FileListTransfer.Reader client = new FileListTransfer.Reader(codec);
+		String remote = client.next();
+		int i = 0;
+		while(i < local.length || remote != null){
+			int order = remote == null ? -1 : i == local.length ? 1 : local[i].compareTo(remote);
+			if(order < 0){
+				clientMissing.add(local[i++]);
+			} else if(order > 0){
+				clientExtra.add(remote);
+				remote = client.next();
+			} else {
+				i++;
+				remote = client.next();
+			}
+		}
+		sendAck();
+		
+		if(!sendFileList(clientMissing.toArray(new String[clientMissing.size()])) ||
+		   !sendFileList(clientExtra.toArray(new String[clientExtra.size()]))){
+			System.out.println("Unable to sync file lists.");
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Handle client protocol negotiation. The client offers the highest protocol
+	 * version it supports and the server answers with an acknowledgement carrying
+	 * the version both will use from the next message on, together with the optional
+	 * features offered by the client that the server supports. Clients that never send
+	 * {@link SyncProcess#TYPE_HELLO} keep using {@link ObjectCodec}.
+	 * @param hello The negotiation command from client.
+	 * @return A boolean value telling whether the handling is 
+	 * successful ({@code true}) or failed ({@code false}).
+	 */
+	private boolean helloHandler(Vector<String> hello){
+		try{
+			int version;
+			try{
+				version = Math.min(Integer.parseInt(hello.get(MSG_LENGTH_INDEX)), options.protocol);
+			} catch (NumberFormatException e){
+				version = PROTOCOL_LEGACY;
+			}
+			version = Math.max(version, PROTOCOL_LEGACY);
+			
+			features = splitFeatures(hello.get(MSG_NAME_INDEX));
+			features.retainAll(Arrays.asList(SUPPORTED_FEATURES));
+			if(!options.recursive){
+				features.remove(FEATURE_TREE);
+			}
+			//Raw file data needs the binary codec and a socket channel on both sides
+			if(version < PROTOCOL_BINARY || channel == null){
+				features.remove(FEATURE_RAW);
+			}
+			
+			codec.writeMessage(makeMsg(TYPE_ACK, joinFeatures(features), String.valueOf(version)));
+			codec.flush();
+			
+			if(version >= PROTOCOL_BINARY){
+				codec = new BinaryCodec(fromClientSocket.getOutputStream(), 
+										fromClientSocket.getInputStream());
+			}
+			System.out.println(name + ": using protocol version " + version + 
+					(features.isEmpty() ? "" : " with " + joinFeatures(features)));
+			return true;
+		} catch(IOException e){
+			System.out.println(name + ": " + e.getMessage());
+			return false;			
+		}
+	}
+	
+	/**
+	 * Compare the client manifest with the local one. The client receives the
+	 * manifest entries of the files it should request, which are the files it 
+	 * does not have and those whose content differs and the server copy is newer
+	 * (or as new), followed by the names of the files it should push, which are the
+	 * files the server does not have and those whose client copy is newer.<br>
+	 * If {@link SyncProcess#FEATURE_MERKLE} is agreed, the client first descends
+	 * the {@link MerkleTree}s of both manifests and only the entries under the
+	 * differing leaves are compared.<br>
+	 * If {@link SyncProcess#FEATURE_RECONCILE} is agreed, the differing entries are
+	 * first decoded with a {@link SetReconciler} instead, falling back to the
+	 * {@link MerkleTree} descent or the whole manifest if decoding fails.<br>
+	 * If {@link SyncProcess#FEATURE_DEDUP} is agreed, a file the client would push
+	 * is copied from a local file with the same content instead, and left out of
+	 * the list.
+	 * @return A boolean value telling whether the handling is 
+	 * successful ({@code true}) or failed ({@code false}).
+	 * @throws IOException If a local file cannot be read.
+	 */
+	private boolean manifestSyncHandler() throws IOException{
+		Map<String, ManifestEntry> manifest = getManifest();
+		Collection<ManifestEntry> localEntries = manifest.values();
+		Map<String, ManifestEntry> reconciled = null;
+		if(hasFeature(FEATURE_RECONCILE)){
+			reconciled = reconcileDiff(manifest);
+		}
+		if(reconciled != null){
+			manifest = reconciled;
+		} else if(hasFeature(FEATURE_MERKLE)){
+			manifest = merkleDiff(manifest);
+		}
+
+		Map<String, ManifestEntry> clientManifest = receiveManifest();
+		if(clientManifest == null) {
+			System.out.println("Unable to sync manifests.");
+			return false;
+		}
+
+		List<ManifestEntry> clientMissing = newerEntries(manifest, clientManifest, true);
+		List<ManifestEntry> clientExtra = newerEntries(clientManifest, manifest, false);
+		Set<String> clientExtraFileNameList = new HashSet<String>();
+		for(ManifestEntry entry : clientExtra){
+			clientExtraFileNameList.add(entry.name);
+		}
+		if(hasFeature(FEATURE_DEDUP)){
+			Map<ByteBuffer, ManifestEntry> index = digestIndex(localEntries, clientExtraFileNameList);
+			for(ManifestEntry entry : clientExtra){
+				if(copyLocal(entry, index)){
+					clientExtraFileNameList.remove(entry.name);
+				}
+			}
+		}
+		
+		if(!sendManifest(clientMissing) || !sendFileList(clientExtraFileNameList)) {
+			System.out.println("Unable to sync manifests.");
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Answer the {@link SetReconciler} strata of the client with a table of the
+	 * local entries and read back which of them the client does not have.
+	 * @param manifest The entries of the local files.
+	 * @return The differing local entries, or {@code null} if the client could
+	 * not decode the difference.
+	 * @throws IOException If the communication cannot be completed.
+	 */
+	private Map<String, ManifestEntry> reconcileDiff(Map<String, ManifestEntry> manifest) throws IOException{
+		SetReconciler reconciler = new SetReconciler(manifest.values());
+		reconciler.answerStrata(codec);
+		codec.flush();
+		List<ManifestEntry> entries = reconciler.readResult(codec);
+		if(entries == null){
+			return null;
+		}
+		Map<String, ManifestEntry> differing = new HashMap<String, ManifestEntry>();
+		for(ManifestEntry entry : entries){
+			differing.put(entry.name, entry);
+		}
+		return differing;
+	}
+	
+	/**
+	 * Answer the {@link MerkleTree} queries of the client until no node is split
+	 * any more.
+	 * @param manifest The entries of the local files.
+	 * @return The entries under the differing leaves.
+	 * @throws IOException If the communication cannot be completed.
+	 */
+	private Map<String, ManifestEntry> merkleDiff(Map<String, ManifestEntry> manifest) throws IOException{
+		MerkleTree tree = new MerkleTree(manifest.values());
+		Set<String> leaves = new HashSet<String>();
+		int descend;
+		do{
+			descend = tree.answerQuery(codec, leaves);
+			codec.flush();
+		} while(descend > 0);
+		
+		Map<String, ManifestEntry> differing = new HashMap<String, ManifestEntry>();
+		for(ManifestEntry entry : tree.entriesUnder(leaves)){
+			differing.put(entry.name, entry);
+		}
+		return differing;
+	}
+	
+	/**
+	 * Wait for the next client command under the read time out, so an idle
+	 * connection still notices {@link ServerSession#close()}. The time out is
+	 * lifted once the command starts to arrive, since the client may compute
+	 * for a long time between the messages of one command.
+	 * @throws SocketTimeoutException If no command arrived within the time out.
+	 * @throws IOException If the socket connection failed.
+	 */
+	private void awaitCommand() throws IOException {
+		fromClientSocket.setSoTimeout(TIME_OUT*5);
+		codec.awaitData();
+		fromClientSocket.setSoTimeout(0);
+	}
+	
+	/**
+	 * Receive remote commands from client. A simple validity checking is performed.
+	 * @return The client command received if it is valid, or {@code null} if invalid.
+	 * @throws IOException If the socket connection failed.
+	 */
+	private Vector<String> readCommand() throws IOException{
+		try{
+			Vector<String> reading = codec.readMessage();
+			if(reading != null &&
+			   reading.size() == MSG_SIZE){
+				return reading;
+			}
+			return null;
+		} catch (ClassNotFoundException e){
+			System.out.println(name + ": "+e.getMessage());
+			return null;
+		}
+
+	}
+	
+	/**
+	 * Dispatch the user command read from {@link ServerSession#readCommand()}.
+	 * It will check type of the command and dispatch to its respective handler.
+	 * @param cmd The user command.
+	 * @return A boolean value telling whether the handling is 
+	 * successful ({@code true}) or failed ({@code false}).
+	 */
+	private boolean dispatchCommand(Vector<String> cmd){
+		String type = cmd.get(MSG_TYPE_INDEX);
+		if(type == null ||
+		   type.isEmpty() ||
+		   type == "\n"){
+			return false;
+		}
+		//A client that sends commands is no longer waiting for changes
+		synchronized(this){
+			listening = false;
+		}
+		boolean success = false;
+		if(type.equalsIgnoreCase(TYPE_REQUEST)){
+			success = requestHandler(cmd);
+		} else if(type.equalsIgnoreCase(TYPE_PUSH) ||
+				  type.equalsIgnoreCase(TYPE_PUSH_RAW)){
+			success = pushHandler(cmd);
+		} else if(type.equalsIgnoreCase(TYPE_SYNC)){
+			success = syncHandler();
+		} else if(type.equalsIgnoreCase(TYPE_HELLO)){
+			success = helloHandler(cmd);
+		} else if(type.equalsIgnoreCase(TYPE_PIPE_REQUEST)){
+			success = pipeRequestHandler(cmd);
+		} else if(type.equalsIgnoreCase(TYPE_PIPE_PUSH)){
+			success = pipePushHandler(cmd);
+		} else if(type.equalsIgnoreCase(TYPE_BATCH)){
+			success = batchHandler(cmd);
+		} else if(type.equalsIgnoreCase(TYPE_FETCH)){
+			success = fetchHandler(cmd);
+		} else if(type.equalsIgnoreCase(TYPE_SIGNATURE)){
+			success = signatureHandler(cmd);
+		} else if(type.equalsIgnoreCase(TYPE_DELTA_PUSH)){
+			success = deltaPushHandler(cmd);
+		} else if(type.equalsIgnoreCase(TYPE_RANGE)){
+			success = rangeHandler(cmd);
+		} else if(type.equalsIgnoreCase(TYPE_RANGE_PUSH)){
+			success = rangePushHandler(cmd);
+		} else if(type.equalsIgnoreCase(TYPE_RESUME)){
+			success = resumeHandler(cmd);
+		} else if(type.equalsIgnoreCase(TYPE_RESUME_PUSH)){
+			success = resumePushHandler(cmd);
+		} else if(type.equalsIgnoreCase(TYPE_APPEND)){
+			success = appendHandler(cmd);
+		} else if(type.equalsIgnoreCase(TYPE_CHUNK_FETCH)){
+			success = chunkFetchHandler(cmd);
+		} else if(type.equalsIgnoreCase(TYPE_CHUNKS)){
+			success = chunksHandler(cmd);
+		} else if(type.equalsIgnoreCase(TYPE_LISTEN)){
+			success = listenHandler();
+		}
+		return success;	
+	}
+	
+	/**
+	 * Serve the client until it closes the connection. It reads client commands
+	 * and dispatches them to their respective handlers.
+	 */
+	@Override
+	public void run() {
+		serve(true);
+	}
+
+	/**
+	 * Read client commands and dispatch them to their respective handlers.
+	 * The connection is cleaned up once it is closed.
+	 * @param untilClosed Whether to wait for further commands, or to return
+	 * as soon as no more command data has been read from the socket.
+	 * @return {@code true} if the connection is still open.
+	 */
+	boolean serve(boolean untilClosed) {
+		try {
+			//Establish connection socket streams
+			if (codec == null) {
+				fromClientSocket.setSoTimeout(TIME_OUT*5);
+				fromClientSocket.setTcpNoDelay(true);
+				codec = new ObjectCodec(
+						fromClientSocket.getOutputStream(),
+						fromClientSocket.getInputStream());
+				//The data that arrived may have been the stream header only
+				if (!untilClosed && codec.buffered() == 0) {
+					return true;
+				}
+			}
+			
+			//Looping for user commands.
+			Vector<String> cmd;
+			do {
+				try {
+					awaitCommand();
+				} catch (SocketTimeoutException e) {
+					//An idle client, for example between keep-alive rounds
+					continue;
+				}
+				cmd = readCommand();
+				if(cmd == null) {
+					System.out.println(name+": Invalid command from the other peer!");
+					continue;
+				}
+				dispatchCommand(cmd);
+			} while(!isClosed() && !fromClientSocket.isClosed() && 
+					(untilClosed || codec.buffered() > 0));
+			if (!isClosed() && !fromClientSocket.isClosed()) {
+				return true;
+			}
+		} catch (SocketException | EOFException e){
+			System.out.println(name+": connected was closed by the peer.");
+		} catch (IOException e) {
+			System.out.println(name+": Something went wrong - "+e.getMessage()+
+								". Please try again.");
+		}
+		finish();
+		return false;
+	}
+
+	/**
+	 * Close the connection and remove this session from the {@link ServerProcess}.
+	 */
+	void finish() {
+		try{
+			if(codec != null)codec.close();
+			fromClientSocket.close();
+		} catch (Exception e1){
+			System.out.println(name+": Something went wrong - "+e1.getMessage());
+		}
+		server.sessionFinished(this);
+	}
+
+}
\ No newline at end of file
@@ -0,0 +1,420 @@
+package syncpeer;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Set reconciliation of two folder manifests for {@link SyncProcess#FEATURE_RECONCILE}.<br>
+ * <br>
+ * Every {@link ManifestEntry} is keyed by a 64-bit hash of its name, size and
+ * content digest, so two entries have the same key only if they describe the
+ * same file. The keys are summed into invertible Bloom lookup tables: every key is
+ * added to one cell in each of {@link SetReconciler#HASHES} parts of the table, and
+ * a cell holds the number of keys in it, the XOR of the keys and the XOR of a check
+ * hash of each key. Subtracting the table of the other {@link Peer} cancels the
+ * keys both have, and the differing keys are peeled off the cells that hold only
+ * one of them.<br>
+ * <br>
+ * A table must have about twice as many cells as there are differences, so the client
+ * first sends a strata estimator: {@link SetReconciler#STRATA} small tables, where
+ * a key goes to stratum {@code i} with probability {@code 2^-(i+1)}. The server
+ * decodes the difference of the strata from the top, estimates the size of the
+ * difference from the first one that fails, and answers with a table of its keys
+ * of the right size. The client decodes the keys only it has and those only the
+ * server has, and sends the latter back ahead of its manifest. The differing entries
+ * are thus found in one round trip, whatever the size of the folders.<br>
+ * <br>
+ * If the difference is too large for a table of {@link SetReconciler#MAX_CELLS}
+ * cells, or the table cannot be decoded, both sides fall back to comparing
+ * manifests as before.
+ * @author Wenhao
+ *
+ */
+class SetReconciler {
+
+	public static final int HASHES = 4;
+	public static final int STRATA = 32;
+	public static final int STRATUM_CELLS = 48;
+	public static final int MIN_CELLS = 32;
+	public static final int MAX_CELLS = 1 << 20;
+	public static final int MAX_KEYS = 1 << 24;
+
+	public static final int RESULT_DECODED = 0;
+	public static final int RESULT_FAILED = 1;
+
+	private static final long STRATUM_SEED = 0x2545F4914F6CDD1DL;
+	private static final long CHECK_SEED = 0x9E3779B97F4A7C15L;
+	private static final long[] CELL_SEEDS = {
+		0x632BE59BD9B4E019L, 0x8CB92BA72F3D8DD7L, 0xD1B54A32D192ED03L, 0xA0761D6478BD642FL
+	};
+
+	private final long[] keys;
+	private final ManifestEntry[] entries;
+	private final Table[] strata;
+
+	/**
+	 * Key the entries of a manifest and sum them into the strata estimator.
+	 * @param manifest The entries of the local files.
+	 */
+	SetReconciler(Collection<ManifestEntry> manifest) {
+		entries = manifest.toArray(new ManifestEntry[manifest.size()]);
+		keys = new long[entries.length];
+		for (int i = 0; i < entries.length; ++i) {
+			keys[i] = key(entries[i]);
+		}
+		strata = sumStrata();
+	}
+
+	/**
+	 * Hash the name, size and content digest of an entry into its key.
+	 */
+	private static long key(ManifestEntry entry) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < entry.name.length(); ++i) {
+			h = (h ^ entry.name.charAt(i)) * 0x100000001b3L;
+		}
+		h = MerkleTree.mix(h ^ MerkleTree.mix(entry.size ^ CHECK_SEED));
+		if (entry.digest != null) {
+			long word = 0;
+			for (int i = 0; i < entry.digest.length; ++i) {
+				word = (word << 8) | (entry.digest[i] & 0xFF);
+				if (i % 8 == 7 || i == entry.digest.length - 1) {
+					h = MerkleTree.mix(h ^ word);
+					word = 0;
+				}
+			}
+		}
+		return h;
+	}
+
+	/**
+	 * Give the local entries with some keys. The differing keys are few, so one
+	 * pass over all keys is cheaper than sorting them for lookups.
+	 * @param wanted The keys.
+	 * @return The entries with the keys; keys no local entry has are left out.
+	 */
+	private List<ManifestEntry> entries(Collection<Long> wanted) {
+		Set<Long> set = new HashSet<Long>(wanted);
+		List<ManifestEntry> found = new ArrayList<ManifestEntry>();
+		for (int i = 0; i < keys.length && found.size() < set.size(); ++i) {
+			if (set.contains(keys[i])) {
+				found.add(entries[i]);
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Get the total number of entries.
+	 */
+	public int size() {
+		return entries.length;
+	}
+
+	/**
+	 * Give the number of table cells for an estimated number of differences.
+	 * @param estimate The estimated size of the difference.
+	 * @return A multiple of {@link SetReconciler#HASHES}, or {@code 0} if the
+	 * difference is too large for a table.
+	 */
+	static int cellsFor(long estimate) {
+		long cells = Math.max(MIN_CELLS, 2 * estimate + 8 * HASHES);
+		if (cells > MAX_CELLS) {
+			return 0;
+		}
+		return (int) ((cells + HASHES - 1) / HASHES * HASHES);
+	}
+
+	/**
+	 * Sum the local keys into a table.
+	 */
+	private Table table(int cells) {
+		Table table = new Table(cells);
+		for (long key : keys) {
+			table.add(key, 1);
+		}
+		return table;
+	}
+
+	/**
+	 * Sum the local keys into a strata estimator.
+	 */
+	private Table[] sumStrata() {
+		Table[] strata = new Table[STRATA];
+		for (int i = 0; i < STRATA; ++i) {
+			strata[i] = new Table(STRATUM_CELLS);
+		}
+		for (long key : keys) {
+			int stratum = Math.min(STRATA - 1, Long.numberOfTrailingZeros(MerkleTree.mix(key ^ STRATUM_SEED)));
+			strata[stratum].add(key, 1);
+		}
+		return strata;
+	}
+
+	/**
+	 * Estimate the size of the difference between two sets from their strata,
+	 * decoding from the sparsest stratum down. Once a stratum cannot be decoded,
+	 * the differences found so far are scaled by the share of keys above it.
+	 */
+	private static long estimate(Table[] local, Table[] remote) {
+		long found = 0;
+		for (int i = STRATA - 1; i >= 0; --i) {
+			Table diff = local[i].minus(remote[i]);
+			List<Long> mine = new ArrayList<Long>();
+			List<Long> theirs = new ArrayList<Long>();
+			if (!diff.decode(mine, theirs)) {
+				return Math.max(found, 1) << (i + 1);
+			}
+			found += mine.size() + theirs.size();
+		}
+		return found;
+	}
+
+	/**
+	 * Send the strata estimator of the local keys to the server. The strata are not flushed.
+	 * @param codec The connection to the server.
+	 * @throws IOException If the communication cannot be completed.
+	 */
+	public void writeStrata(WireCodec codec) throws IOException {
+		for (Table stratum : strata) {
+			stratum.write(codec);
+		}
+	}
+
+	/**
+	 * Read the strata estimator of the client and answer with a table of the
+	 * local keys sized to the estimated difference. A table of no cells means the
+	 * difference is too large. The answer is not flushed.
+	 * @param codec The connection to the client.
+	 * @return The estimated size of the difference.
+	 * @throws IOException If the communication cannot be completed or the strata are invalid.
+	 */
+	public long answerStrata(WireCodec codec) throws IOException {
+		Table[] remote = new Table[STRATA];
+		for (int i = 0; i < STRATA; ++i) {
+			remote[i] = Table.read(codec, STRATUM_CELLS);
+		}
+		long estimate = estimate(strata, remote);
+		int cells = cellsFor(estimate);
+		codec.writeVarLong(cells);
+		if (cells > 0) {
+			table(cells).write(codec);
+		}
+		return estimate;
+	}
+
+	/**
+	 * Read the table of the server and decode the difference.
+	 * @param codec The connection to the server.
+	 * @param remoteKeys The list the keys only the server has are added to.
+	 * @return The local entries the server does not have, or {@code null}
+	 * if the difference could not be decoded.
+	 * @throws IOException If the communication cannot be completed or the table is invalid.
+	 */
+	public List<ManifestEntry> readTable(WireCodec codec, List<Long> remoteKeys) throws IOException {
+		long cells = codec.readVarLong();
+		if (cells > MAX_CELLS || cells % HASHES != 0) {
+			throw new StreamCorruptedException("Invalid table of " + cells + " cells");
+		}
+		if (cells == 0) {
+			return null;
+		}
+		Table diff = table((int) cells).minus(Table.read(codec, (int) cells));
+		List<Long> localKeys = new ArrayList<Long>();
+		if (!diff.decode(localKeys, remoteKeys)) {
+			remoteKeys.clear();
+			return null;
+		}
+		List<ManifestEntry> differing = entries(localKeys);
+		if (differing.size() != localKeys.size()) {
+			//A key the client does not have, so the decoding went wrong
+			remoteKeys.clear();
+			return null;
+		}
+		return differing;
+	}
+
+	/**
+	 * Tell the server whether the difference was decoded, followed by the keys
+	 * only the server has. The result is not flushed.
+	 * @param codec The connection to the server.
+	 * @param remoteKeys The keys only the server has, or {@code null} if decoding failed.
+	 * @throws IOException If the communication cannot be completed.
+	 */
+	public void writeResult(WireCodec codec, List<Long> remoteKeys) throws IOException {
+		if (remoteKeys == null) {
+			codec.writeByte(RESULT_FAILED);
+			return;
+		}
+		codec.writeByte(RESULT_DECODED);
+		codec.writeVarLong(remoteKeys.size());
+		for (long key : remoteKeys) {
+			writeLong(codec, key);
+		}
+	}
+
+	/**
+	 * Read the result of the client.
+	 * @param codec The connection to the client.
+	 * @return The local entries the client does not have, or {@code null}
+	 * if the difference could not be decoded.
+	 * @throws IOException If the communication cannot be completed or the result is invalid.
+	 */
+	public List<ManifestEntry> readResult(WireCodec codec) throws IOException {
+		int result = codec.readUnsignedByte();
+		if (result == RESULT_FAILED) {
+			return null;
+		} else if (result != RESULT_DECODED) {
+			throw new StreamCorruptedException("Invalid reconciliation result " + result);
+		}
+		long count = codec.readVarLong();
+		if (count > MAX_KEYS) {
+			throw new StreamCorruptedException("Invalid reconciliation result of " + count + " keys");
+		}
+		List<Long> remoteKeys = new ArrayList<Long>();
+		for (long i = 0; i < count; ++i) {
+			remoteKeys.add(readLong(codec));
+		}
+		return entries(remoteKeys);
+	}
+
+	private static void writeLong(WireCodec codec, long value) throws IOException {
+		codec.writeInt((int) (value >>> 32));
+		codec.writeInt((int) value);
+	}
+
+	private static long readLong(WireCodec codec) throws IOException {
+		return ((long) codec.readInt() << 32) | (codec.readInt() & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * An invertible Bloom lookup table of keys.
+	 */
+	private static class Table {
+		final int[] counts;
+		final long[] keySums;
+		final int[] checkSums;
+
+		Table(int cells) {
+			counts = new int[cells];
+			keySums = new long[cells];
+			checkSums = new int[cells];
+		}
+
+		private static int check(long key) {
+			return (int) MerkleTree.mix(key ^ CHECK_SEED);
+		}
+
+		/**
+		 * Give the cell of a key in one part of the table.
+		 */
+		private int cell(long key, int part) {
+			int size = counts.length / HASHES;
+			return part * size + (int) ((MerkleTree.mix(key + CELL_SEEDS[part]) >>> 1) % size);
+		}
+
+		void add(long key, int sign) {
+			int check = check(key);
+			for (int part = 0; part < HASHES; ++part) {
+				int i = cell(key, part);
+				counts[i] += sign;
+				keySums[i] ^= key;
+				checkSums[i] ^= check;
+			}
+		}
+
+		Table minus(Table other) {
+			Table diff = new Table(counts.length);
+			for (int i = 0; i < counts.length; ++i) {
+				diff.counts[i] = counts[i] - other.counts[i];
+				diff.keySums[i] = keySums[i] ^ other.keySums[i];
+				diff.checkSums[i] = checkSums[i] ^ other.checkSums[i];
+			}
+			return diff;
+		}
+
+		private boolean isPure(int i) {
+			return (counts[i] == 1 || counts[i] == -1) && checkSums[i] == check(keySums[i]);
+		}
+
+		/**
+		 * Peel the keys off a difference table until no cell holds a single key.
+		 * The table is emptied on the way.
+		 * @param plus The list the keys counted positive are added to.
+		 * @param minus The list the keys counted negative are added to.
+		 * @return {@code true} if every key was recovered.
+		 */
+		boolean decode(List<Long> plus, List<Long> minus) {
+			Deque<Integer> pure = new ArrayDeque<Integer>();
+			for (int i = 0; i < counts.length; ++i) {
+				if (isPure(i)) {
+					pure.add(i);
+				}
+			}
+			while (!pure.isEmpty()) {
+				int i = pure.poll();
+				if (!isPure(i)) {
+					continue;
+				}
+				long key = keySums[i];
+				int sign = counts[i];
+				(sign > 0 ? plus : minus).add(key);
+				if (plus.size() + minus.size() > counts.length) {
+					return false;
+				}
+				add(key, -sign);
+				for (int part = 0; part < HASHES; ++part) {
+					int j = cell(key, part);
+					if (isPure(j)) {
+						pure.add(j);
+					}
+				}
+			}
+			for (int i = 0; i < counts.length; ++i) {
+				if (counts[i] != 0 || keySums[i] != 0 || checkSums[i] != 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Write the cells, leaving out the sums of empty cells.
+		 */
+		void write(WireCodec codec) throws IOException {
+			for (int i = 0; i < counts.length; ++i) {
+				boolean empty = keySums[i] == 0 && checkSums[i] == 0;
+				long zigzag = (counts[i] << 1) ^ (counts[i] >> 31);
+				codec.writeVarLong(((zigzag & 0xFFFFFFFFL) << 1) | (empty ? 0 : 1));
+				if (!empty) {
+					writeLong(codec, keySums[i]);
+					codec.writeInt(checkSums[i]);
+				}
+			}
+		}
+
+		static Table read(WireCodec codec, int cells) throws IOException {
+			Table table = new Table(cells);
+			for (int i = 0; i < cells; ++i) {
+				long header = codec.readVarLong();
+				long zigzag = header >>> 1;
+				if (zigzag > 0xFFFFFFFFL) {
+					throw new StreamCorruptedException("Invalid table cell");
+				}
+				table.counts[i] = (int) (zigzag >>> 1) ^ -(int) (zigzag & 1);
+				if ((header & 1) != 0) {
+					table.keySums[i] = readLong(codec);
+					table.checkSums[i] = codec.readInt();
+				}
+			}
+			return table;
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package syncpeer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A large file that is received in byte ranges over several connections at
+ * the same time, see {@link SyncOptions#stripeSize}.<br>
+ * <br>
+ * The new copy is preallocated in a temporary file and every range is written
+ * at its offset with positional {@link FileChannel} writes, so the connections
+ * do not share a file position. Once every byte has arrived, the copy is checked
+ * against the digest of the sender and only then replaces the old file. A range
+ * that arrives again is written again but counted once.
+ * @author Wenhao
+ *
+ */
+class StripedFile {
+
+	private final File target;
+	private final File temp;
+	private final long size;
+	private final byte[] digest;
+	private final RandomAccessFile raf;
+	private final FileChannel fc;
+	private final Set<Long> doneOffsets = new HashSet<Long>();
+	private long doneBytes;
+	private boolean closed;
+
+	/**
+	 * Create and preallocate the temporary copy.
+	 * @param target The file to be replaced once complete.
+	 * @param temp The temporary file the ranges are written to.
+	 * @param size The length of the complete file.
+	 * @param digest The content digest of the complete file.
+	 * @throws IOException If the temporary file cannot be created.
+	 */
+	StripedFile(File target, File temp, long size, byte[] digest) throws IOException {
+		this.target = target;
+		this.temp = temp;
+		this.size = size;
+		this.digest = digest;
+		this.raf = new RandomAccessFile(temp, "rw");
+		this.fc = raf.getChannel();
+		try {
+			raf.setLength(size);
+		} catch (IOException e) {
+			abort();
+			throw e;
+		}
+	}
+
+	/**
+	 * Check whether ranges of a file with the given length and digest belong here.
+	 */
+	public boolean matches(long otherSize, byte[] otherDigest) {
+		return size == otherSize && Arrays.equals(digest, otherDigest);
+	}
+
+	/**
+	 * Read one range from a codec and write it at its offset. If it cannot be
+	 * written to disk, the data is still read so the connection stays in step.
+	 * @param codec The codec the range data is read from.
+	 * @param offset The offset of the range in the file.
+	 * @param length The length of the range.
+	 * @return {@code true} if the range was written, {@code false} if it was skipped.
+	 * @throws IOException If the communication cannot be completed.
+	 */
+	public boolean write(WireCodec codec, long offset, long length) throws IOException {
+		byte[] buffer = new byte[SyncProcess.BUFFER_SIZE];
+		boolean written = offset >= 0 && length >= 0 && offset <= size - length;
+		long position = offset;
+		long remaining = length;
+		while (remaining > 0) {
+			int count = (int) Math.min(buffer.length, remaining);
+			codec.readFully(buffer, 0, count);
+			remaining -= count;
+			if (!written) continue;
+			try {
+				ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, count);
+				while (chunk.hasRemaining()) {
+					position += fc.write(chunk, position);
+				}
+			} catch (IOException e) {
+				System.out.println(target.getName() + ": " + e.getMessage());
+				written = false;
+			}
+		}
+		return written;
+	}
+
+	/**
+	 * Count a range as written.
+	 * @param offset The offset of the range in the file.
+	 * @param length The length of the range.
+	 * @return {@code true} if this range completed the file.
+	 */
+	public synchronized boolean rangeDone(long offset, long length) {
+		if (closed || !doneOffsets.add(offset)) {
+			return false;
+		}
+		doneBytes += length;
+		return doneBytes >= size;
+	}
+
+	/**
+	 * Check the complete copy against its digest and let it replace the old file.
+	 * @return {@code true} if the file was replaced, {@code false} if the copy does
+	 * not match or cannot be moved.
+	 */
+	public boolean finish() {
+		synchronized (this) {
+			if (closed) return false;
+			closed = true;
+		}
+		try {
+			fc.force(false);
+			raf.close();
+			if (!Arrays.equals(SyncProcess.digest(temp), digest)) {
+				System.out.println(target.getName() + ": received ranges do not match the digest");
+				return false;
+			}
+			SyncProcess.replaceFile(temp, target);
+			return true;
+		} catch (IOException e) {
+			System.out.println(target.getName() + ": " + e.getMessage());
+			return false;
+		} finally {
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Give up an incomplete copy and remove its temporary file.
+	 */
+	public void abort() {
+		synchronized (this) {
+			if (closed) return;
+			closed = true;
+		}
+		try {
+			raf.close();
+		} catch (IOException e) {
+			System.out.println(target.getName() + ": " + e.getMessage());
+		}
+		temp.delete();
+	}
+}
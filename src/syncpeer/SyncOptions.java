@@ -0,0 +1,322 @@
+package syncpeer;
+
+/**
+ * Optional behaviours of a {@link Peer} that can be switched on from the
+ * command line. Each option is given as {@code --<name>} or 
+ * {@code --<name>=<value>} after the sync folder and IP address.
+ * The same options object is shared by the {@link ServerProcess} and 
+ * every {@link ClientProcess} of a {@link Peer}.
+ * @author Wenhao
+ *
+ */
+class SyncOptions {
+
+	public static final String OPTION_PREFIX = "--";
+	public static final String VALUE_SEPARATOR = "=";
+
+	/* *********** OPTION NAMES *************** */
+	public static final String ZERO_COPY = "zero-copy";
+	public static final String PROTOCOL = "protocol";
+	public static final String PIPELINE = "pipeline";
+	public static final String BATCH = "batch";
+	public static final String MANIFEST = "manifest";
+	public static final String INDEX = "index";
+	public static final String SCAN_THREADS = "scan-threads";
+	public static final String DELTA = "delta";
+	public static final String MERKLE = "merkle";
+	public static final String RECONCILE = "reconcile";
+	public static final String SESSIONS = "sessions";
+	public static final String SELECTOR = "selector";
+	public static final String KEEP_ALIVE = "keep-alive";
+	public static final String CONNECTIONS = "connections";
+	public static final String STRIPE = "stripe";
+	public static final String RESUME = "resume";
+	public static final String COMPRESS = "compress";
+	public static final String DEDUP = "dedup";
+	public static final String CHUNK = "chunk";
+	public static final String WATCH = "watch";
+	public static final String RECURSIVE = "recursive";
+	public static final String LIVE = "live";
+	/* *****END OF OPTION NAMES *************** */
+
+	/*
+	 * Offer SyncProcess.FEATURE_RAW, so that file data is sent with
+	 * FileChannel.transferTo directly from the sync folder to the socket
+	 * instead of through the codec.
+	 */
+	public boolean zeroCopy = false;
+
+	/*
+	 * The highest protocol version offered to or accepted from the other peer.
+	 * Set to SyncProcess.PROTOCOL_LEGACY to stay on serialized Java objects.
+	 */
+	public int protocol = SyncProcess.PROTOCOL_BINARY;
+
+	/*
+	 * The number of file requests or pushes a client keeps in flight.
+	 * A window of 0 or 1 waits for every file before sending the next.
+	 */
+	public int pipelineWindow = 16;
+	public static final int MAX_PIPELINE_WINDOW = 1024;
+
+	/*
+	 * Files up to this many bytes are moved in bundles with one
+	 * acknowledgement per bundle. 0 moves every file on its own.
+	 */
+	public int batchThreshold = 64 * 1024;
+
+	/*
+	 * Compare files by size, modification time and content digest
+	 * instead of by name only, so changed files are synced as well.
+	 */
+	public boolean manifest = true;
+
+	/*
+	 * Find the differing part of the manifests by comparing hash trees
+	 * before exchanging entries, instead of sending the whole manifest.
+	 */
+	public boolean merkle = true;
+
+	/*
+	 * Find the differing manifest entries in one round trip by decoding the
+	 * difference of two invertible Bloom lookup tables, before trying the hash trees.
+	 */
+	public boolean reconcile = true;
+
+	/*
+	 * Keep file digests in an index file next to the sync folder
+	 * so unchanged files are not hashed again on every sync.
+	 */
+	public boolean index = true;
+
+	/*
+	 * The number of threads that stat and hash files while scanning the sync folder.
+	 */
+	public int scanThreads = Runtime.getRuntime().availableProcessors();
+	public static final int MAX_SCAN_THREADS = 256;
+
+	/*
+	 * Watch the sync folder for changes and only look at the changed
+	 * files in the next sync instead of scanning the whole folder.
+	 */
+	public boolean watch = true;
+
+	/*
+	 * Sync the subdirectories of the sync folder as well, by relative path.
+	 * Off syncs only the files directly under the folder, as earlier versions
+	 * did, so subdirectories are only shared on request.
+	 */
+	public boolean recursive = false;
+
+	/*
+	 * The number of clients the server serves at the same time.
+	 * With the selector engine, the number of clients whose commands
+	 * are handled at the same time.
+	 */
+	public int sessions = 32;
+	public static final int MAX_SESSIONS = 1024;
+
+	/*
+	 * Watch idle client connections with a single selector thread and
+	 * take a session worker only while commands are served. Off holds a
+	 * worker for the whole life of a connection, so keep-alive and live
+	 * clients can take up all of them.
+	 */
+	public boolean selector = true;
+
+	/*
+	 * Keep the client connected after a sync and sync again every this many
+	 * seconds, or on the next CONNECT to the same peer. 0 closes the connection.
+	 */
+	public int keepAlive = 0;
+	public static final int MAX_KEEP_ALIVE = 24 * 60 * 60;
+
+	/*
+	 * Keep the client connected and sync as soon as either folder changed, once
+	 * no change was seen for this many milliseconds. Needs the folder watch.
+	 * 0 only syncs on CONNECT and every keep-alive period.
+	 */
+	public int live = 0;
+	public static final int MAX_LIVE = 60 * 1000;
+
+	/*
+	 * The number of connections a client moves files over at the same time.
+	 */
+	public int connections = 1;
+	public static final int MAX_CONNECTIONS = 64;
+
+	/*
+	 * Files larger than this many bytes are moved in ranges of this size over
+	 * all connections at once. 0 moves every file over a single connection.
+	 */
+	public int stripeSize = 64 * 1024 * 1024;
+
+	/*
+	 * Changed files of at least this many bytes are sent as a delta against
+	 * the old copy of the other peer. 0 always sends whole files.
+	 */
+	public int deltaThreshold = 1024 * 1024;
+
+	/*
+	 * Before a file of at least this many bytes is pushed, the other peer is asked
+	 * for the part it kept from a broken transfer, and only the rest is sent.
+	 * Broken requests are resumed whatever their size. 0 always starts from the beginning.
+	 */
+	public int resumeThreshold = 1024 * 1024;
+
+	/*
+	 * Deflate file data at this level (1 = fastest, 9 = smallest) unless a sample
+	 * of the file does not compress. 0 does not ask the other peer for compression.
+	 */
+	public int compressLevel = 0;
+	public static final int MAX_COMPRESS_LEVEL = 9;
+
+	/*
+	 * Create a missing file from a local file with the same content digest,
+	 * for example after a rename, instead of transferring it.
+	 */
+	public boolean dedup = true;
+
+	/*
+	 * New files of at least this many bytes are sent by content-defined chunks,
+	 * and chunks found in other local files are not transferred. 0 always sends
+	 * whole files.
+	 */
+	public int chunkThreshold = 0;
+
+	/**
+	 * Check whether a command line argument is an option.
+	 * @param arg The command line argument.
+	 * @return {@code true} if the argument starts with {@link SyncOptions#OPTION_PREFIX}.
+	 */
+	public static boolean isOption(String arg) {
+		return arg != null && arg.startsWith(OPTION_PREFIX);
+	}
+
+	/**
+	 * Apply one command line option to this object.
+	 * @param arg The option in the form {@code --<name>} or {@code --<name>=<value>}.
+	 * @return A boolean value telling whether the option is 
+	 * recognised ({@code true}) or not ({@code false}).
+	 */
+	public boolean set(String arg) {
+		if (!isOption(arg)) {
+			return false;
+		}
+		String option = arg.substring(OPTION_PREFIX.length());
+		String value = null;
+		int separator = option.indexOf(VALUE_SEPARATOR);
+		if (separator >= 0) {
+			value = option.substring(separator + 1);
+			option = option.substring(0, separator);
+		}
+		try {
+			if (option.equalsIgnoreCase(ZERO_COPY)) {
+				zeroCopy = parseFlag(value);
+			} else if (option.equalsIgnoreCase(PROTOCOL)) {
+				protocol = parseInt(value, SyncProcess.PROTOCOL_LEGACY, SyncProcess.PROTOCOL_BINARY);
+			} else if (option.equalsIgnoreCase(PIPELINE)) {
+				pipelineWindow = parseInt(value, 0, MAX_PIPELINE_WINDOW);
+			} else if (option.equalsIgnoreCase(BATCH)) {
+				batchThreshold = parseInt(value, 0, Integer.MAX_VALUE);
+			} else if (option.equalsIgnoreCase(MANIFEST)) {
+				manifest = parseFlag(value);
+			} else if (option.equalsIgnoreCase(MERKLE)) {
+				merkle = parseFlag(value);
+			} else if (option.equalsIgnoreCase(RECONCILE)) {
+				reconcile = parseFlag(value);
+			} else if (option.equalsIgnoreCase(INDEX)) {
+				index = parseFlag(value);
+			} else if (option.equalsIgnoreCase(WATCH)) {
+				watch = parseFlag(value);
+			} else if (option.equalsIgnoreCase(RECURSIVE)) {
+				recursive = parseFlag(value);
+			} else if (option.equalsIgnoreCase(SCAN_THREADS)) {
+				scanThreads = parseInt(value, 1, MAX_SCAN_THREADS);
+			} else if (option.equalsIgnoreCase(SESSIONS)) {
+				sessions = parseInt(value, 1, MAX_SESSIONS);
+			} else if (option.equalsIgnoreCase(SELECTOR)) {
+				selector = parseFlag(value);
+			} else if (option.equalsIgnoreCase(KEEP_ALIVE)) {
+				keepAlive = parseInt(value, 0, MAX_KEEP_ALIVE);
+			} else if (option.equalsIgnoreCase(LIVE)) {
+				live = parseInt(value, 0, MAX_LIVE);
+			} else if (option.equalsIgnoreCase(CONNECTIONS)) {
+				connections = parseInt(value, 1, MAX_CONNECTIONS);
+			} else if (option.equalsIgnoreCase(STRIPE)) {
+				stripeSize = parseInt(value, 0, Integer.MAX_VALUE);
+			} else if (option.equalsIgnoreCase(DELTA)) {
+				deltaThreshold = parseInt(value, 0, Integer.MAX_VALUE);
+			} else if (option.equalsIgnoreCase(RESUME)) {
+				resumeThreshold = parseInt(value, 0, Integer.MAX_VALUE);
+			} else if (option.equalsIgnoreCase(COMPRESS)) {
+				compressLevel = parseInt(value, 0, MAX_COMPRESS_LEVEL);
+			} else if (option.equalsIgnoreCase(DEDUP)) {
+				dedup = parseFlag(value);
+			} else if (option.equalsIgnoreCase(CHUNK)) {
+				chunkThreshold = parseInt(value, 0, Integer.MAX_VALUE);
+			} else {
+				return false;
+			}
+			return true;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Usage text listing the supported options.
+	 * @return A multi-line {@link String}.
+	 */
+	public static String usage() {
+		return "    Options:\n"+
+			   "      --" + ZERO_COPY + "         send file data with FileChannel.transferTo\n"+
+			   "      --" + PROTOCOL + "=<n>      highest wire protocol version (1 = legacy, 2 = binary)\n"+
+			   "      --" + PIPELINE + "=<n>      files kept in flight per connection (0 = off, default 16)\n"+
+			   "      --" + BATCH + "=<bytes>     bundle files up to this size (0 = off, default 65536)\n"+
+			   "      --" + MANIFEST + "=<on|off> compare file content, not only names (default on)\n"+
+			   "      --" + MERKLE + "=<on|off>   exchange only the differing part of the manifest (default on)\n"+
+			   "      --" + RECONCILE + "=<on|off> find the differing entries in one round trip (default on)\n"+
+			   "      --" + INDEX + "=<on|off>    cache file digests next to the sync folder (default on)\n"+
+			   "      --" + SCAN_THREADS + "=<n>  threads scanning the sync folder (default: cores)\n"+
+			   "      --" + WATCH + "=<on|off>    rescan only files changed since the last sync (default on)\n"+
+			   "      --" + RECURSIVE + "=<on|off> sync subdirectories too (default off)\n"+
+			   "      --" + SESSIONS + "=<n>      clients served at the same time (default 32)\n"+
+			   "      --" + SELECTOR + "=<on|off> serve idle connections from one selector thread (default on)\n"+
+			   "      --" + KEEP_ALIVE + "=<s>    stay connected and sync every s seconds (0 = off)\n"+
+			   "      --" + LIVE + "=<ms>         sync changes once quiet for ms milliseconds (0 = off)\n"+
+			   "      --" + CONNECTIONS + "=<n>   connections files are moved over (default 1)\n"+
+			   "      --" + STRIPE + "=<bytes>    split larger files over the connections (0 = off, default 67108864)\n"+
+			   "      --" + DELTA + "=<bytes>     send changes to files from this size (0 = off, default 1048576)\n"+
+			   "      --" + RESUME + "=<bytes>    resume broken pushes from this size (0 = off, default 1048576)\n"+
+			   "      --" + COMPRESS + "=<level>  deflate compressible files at this level (0 = off, default 0)\n"+
+			   "      --" + DEDUP + "=<on|off>    copy files with the same content locally (default on)\n"+
+			   "      --" + CHUNK + "=<bytes>     send files from this size by chunks not found locally (0 = off)\n";
+	}
+
+	/**
+	 * Parse the value of a boolean option. A missing value means {@code true}.
+	 */
+	private static boolean parseFlag(String value) {
+		if (value == null || value.equalsIgnoreCase("true") || value.equalsIgnoreCase("on")) {
+			return true;
+		} else if (value.equalsIgnoreCase("false") || value.equalsIgnoreCase("off")) {
+			return false;
+		}
+		throw new IllegalArgumentException("Not a flag value: " + value);
+	}
+
+	/**
+	 * Parse the value of a numeric option within the given bounds.
+	 */
+	private static int parseInt(String value, int min, int max) {
+		if (value == null) {
+			throw new IllegalArgumentException("Missing value");
+		}
+		int number = Integer.parseInt(value.trim());
+		if (number < min || number > max) {
+			throw new IllegalArgumentException("Out of range: " + value);
+		}
+		return number;
+	}
+}
@@ -1,14 +1,35 @@
 package syncpeer;
 
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
+import java.util.zip.Deflater;
 
 /**
  * The abstract class for {@link ClientProcess} and {@link ServerProcess).
@@ -23,8 +44,28 @@ abstract class SyncProcess extends Thread {
 	/* *********** CONSTANTS FOR PROTOCOL *************** */
 	public static final String TYPE_REQUEST = "REQUEST";
 	public static final String TYPE_PUSH = "PUSH";
+	public static final String TYPE_PUSH_RAW = "PUSH_RAW";
 	public static final String TYPE_SYNC = "SYNC";
 	public static final String TYPE_ACK = "ACK";
+	public static final String TYPE_HELLO = "HELLO";
+	public static final String TYPE_PIPE_REQUEST = "PIPE_REQUEST";
+	public static final String TYPE_PIPE_PUSH = "PIPE_PUSH";
+	public static final String TYPE_NAK = "NAK";
+	public static final String TYPE_BATCH = "BATCH";
+	public static final String TYPE_FETCH = "FETCH";
+	public static final String TYPE_SIGNATURE = "SIGNATURE";
+	public static final String TYPE_DELTA = "DELTA";
+	public static final String TYPE_DELTA_PUSH = "DELTA_PUSH";
+	public static final String TYPE_RANGE = "RANGE";
+	public static final String TYPE_RANGE_PUSH = "RANGE_PUSH";
+	public static final String TYPE_RESUME = "RESUME";
+	public static final String TYPE_RESUME_PUSH = "RESUME_PUSH";
+	public static final String TYPE_APPEND = "APPEND";
+	public static final String TYPE_CHUNK_FETCH = "CHUNK_FETCH";
+	public static final String TYPE_CHUNKS = "CHUNKS";
+	public static final String TYPE_CHUNK_WANT = "CHUNK_WANT";
+	public static final String TYPE_LISTEN = "LISTEN";
+	public static final String TYPE_NOTIFY = "NOTIFY";
 	public static final String NIL = "";
 		
 	public static final int MSG_SIZE = 3;
@@ -35,6 +76,27 @@ abstract class SyncProcess extends Thread {
 	public static final int FILE_LIST_LENGTH = 2;
 	public static final int MISSING_FILE_LIST_INDEX = 0;
 	public static final int EXTRA_FILE_LIST_INDEX = 1;
+
+	public static final int PROTOCOL_LEGACY = 1;
+	public static final int PROTOCOL_BINARY = 2;
+
+	public static final String FEATURE_SEPARATOR = ",";
+	public static final String FEATURE_PIPELINE = "pipeline";
+	public static final String FEATURE_BATCH = "batch";
+	public static final String FEATURE_MANIFEST = "manifest";
+	public static final String FEATURE_DELTA = "delta";
+	public static final String FEATURE_MERKLE = "merkle";
+	public static final String FEATURE_RANGE = "range";
+	public static final String FEATURE_RESUME = "resume";
+	public static final String FEATURE_COMPRESS = "compress";
+	public static final String FEATURE_DEDUP = "dedup";
+	public static final String FEATURE_CHUNK = "chunk";
+	public static final String FEATURE_LIVE = "live";
+	public static final String FEATURE_TREE = "tree";
+	public static final String FEATURE_PAGED = "paged";
+	public static final String FEATURE_RECONCILE = "reconcile";
+	public static final String FEATURE_RAW = "raw";
+	public static final String PATH_SEPARATOR = "/";
 	/* *****END OF CONSTANTS FOR PROTOCOL *************** */
 	
 	/*
@@ -50,16 +112,30 @@ abstract class SyncProcess extends Thread {
 	}
 	
 	public static final int TIME_OUT = 300;
+	public static final int RECONNECT_ATTEMPTS = 10;
 	public static final int BUFFER_SIZE = 4096;
+	public static final String DIGEST_ALGORITHM = "SHA-256";
+	public static final String TEMP_PREFIX = ".syncpeer-";
+	public static final String TEMP_SUFFIX = ".tmp";
+	public static final String PART_SUFFIX = ".part";
+
+	/*
+	 * The partial files being written, shared by all processes, so that
+	 * transfers of the same file at the same time do not write into each other.
+	 */
+	private static final Set<File> CLAIMED_PARTS = new HashSet<File>();
 	
 	public String name;
 	protected int port;
 	protected File folder;
 	protected String ipAddr;
 	protected boolean isClosed;
+	protected SyncOptions options;
 
-	protected ObjectOutputStream oos;
-	protected ObjectInputStream ois;
+	protected WireCodec codec;
+	protected SocketChannel channel;
+	protected Set<String> features = new HashSet<String>();
+	private ChunkIndex chunkIndex;
 
 	/**
 	 * Inform the process to safely close all connections and exit.
@@ -88,23 +164,74 @@ abstract class SyncProcess extends Thread {
 	 * @throws ClassNotFoundException If the received acknowledgement is corrupted.
 	 */
 	protected boolean sendMsg(String type, String name, String length) throws IOException, ClassNotFoundException{
+		codec.writeMessage(makeMsg(type, name, length));
+		codec.flush();
+		return recvAck();
+	}
+	
+	/**
+	 * Build a message to be sent to the other {@link Peer}.
+	 * @param type The message type.
+	 * @param name The file name. Can be {@link SyncProcess#NIL}.
+	 * @param length The file length. Can be {@link SyncProcess#NIL}.
+	 * @return The message as a {@link Vector} of {@link SyncProcess#MSG_SIZE} strings.
+	 */
+	protected static Vector<String> makeMsg(String type, String name, String length){
 		Vector<String> message = new Vector<String>();
 		message.setSize(MSG_SIZE);
 		message.set(MSG_TYPE_INDEX, type);
 		message.set(MSG_NAME_INDEX, name);
 		message.set(MSG_LENGTH_INDEX, length);
-		oos.writeObject(message);
-		oos.flush();
-		return recvAck();
+		return message;
 	}
 	
+	/**
+	 * Check whether both {@link Peer}s agreed on an optional protocol feature
+	 * during {@link SyncProcess#TYPE_HELLO}.
+	 * @param feature The feature name.
+	 * @return {@code true} if the feature can be used on this connection.
+	 */
+	protected boolean hasFeature(String feature){
+		return features.contains(feature);
+	}
+
+	/**
+	 * Join feature names into the name field of a {@link SyncProcess#TYPE_HELLO} message.
+	 * @param featureSet The feature names.
+	 * @return The names separated by {@link SyncProcess#FEATURE_SEPARATOR}.
+	 */
+	protected static String joinFeatures(Set<String> featureSet){
+		StringBuilder sb = new StringBuilder();
+		for(String feature : featureSet){
+			if(sb.length() > 0) sb.append(FEATURE_SEPARATOR);
+			sb.append(feature);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Split the name field of a {@link SyncProcess#TYPE_HELLO} message into feature names.
+	 * @param field The name field.
+	 * @return A set of feature names, empty if none.
+	 */
+	protected static Set<String> splitFeatures(String field){
+		Set<String> featureSet = new HashSet<String>();
+		if(field == null) return featureSet;
+		for(String feature : field.split(FEATURE_SEPARATOR)){
+			if(!feature.trim().isEmpty()){
+				featureSet.add(feature.trim().toLowerCase());
+			}
+		}
+		return featureSet;
+	}
+
 	/**
 	 * Send an acknowledgement to the other {@link Peer}.
 	 * @throws IOException If the communication cannot be completed.
 	 */
 	protected void sendAck() throws IOException{
-		oos.writeObject(ACK);
-		oos.flush();
+		codec.writeMessage(ACK);
+		codec.flush();
 	}
 	
 	/**
@@ -115,9 +242,8 @@ abstract class SyncProcess extends Thread {
 	 * @throws IOException If the communication cannot be completed.
 	 * @throws ClassNotFoundException If the received acknowledgement is corrupted.
 	 */
-	@SuppressWarnings("unchecked")
 	protected boolean recvAck() throws ClassNotFoundException, IOException{
-		Vector<String> response = (Vector<String>) ois.readObject();
+		Vector<String> response = codec.readMessage();
 		if (response.size() != MSG_SIZE || 
 			!response.get(MSG_TYPE_INDEX).equalsIgnoreCase(TYPE_ACK)){
 			return false;
@@ -127,21 +253,44 @@ abstract class SyncProcess extends Thread {
 	}
 	
 	/**
-	 * Get a set of files under the folder to be synced.
+	 * Get a set of files under the folder to be synced. The entries are
+	 * checked in parallel by a {@link FolderScanner}, or taken from the
+	 * {@link FolderWatcher} of the folder unless {@link SyncOptions#watch} is off.
+	 * Files in subdirectories are left out unless {@link SyncProcess#FEATURE_TREE}
+	 * is agreed, since the other {@link Peer} could not store them.
 	 * @return A {@link Set} of {@link File}
 	 */
 	protected Set<File> getFileList() {
-		File[] listOfFiles = folder.listFiles();
-		Set<File> files = new HashSet<File>();
-
-		for (File file : listOfFiles) {
-			if (file.exists() && file.isFile()) {
-				files.add(file);
+		FolderWatcher watcher = getWatcher();
+		Set<File> files = watcher != null ? watcher.listFiles(getScanner()) : getScanner().listFiles();
+		if (!hasFeature(FEATURE_TREE)) {
+			Iterator<File> it = files.iterator();
+			while (it.hasNext()) {
+				if (relativeName(folder, it.next()).contains(PATH_SEPARATOR)) {
+					it.remove();
+				}
 			}
 		}
 		return files;
 	}
 
+	/**
+	 * Give the {@link FolderWatcher} of the sync folder if {@link SyncOptions#watch} is on.
+	 * @return The watcher, or {@code null} if the folder is scanned in full every round.
+	 */
+	protected FolderWatcher getWatcher() {
+		return options.watch ? FolderWatcher.forFolder(folder) : null;
+	}
+
+	/**
+	 * Give a {@link FolderScanner} for the sync folder configured by {@link SyncOptions}.
+	 * @return A new {@link FolderScanner}.
+	 */
+	protected FolderScanner getScanner() {
+		return new FolderScanner(folder, options.index ? FileIndex.forFolder(folder) : null, 
+				options.scanThreads, options.recursive);
+	}
+
 	/**
 	 * Extract a set of file names from a set of files.
 	 * @param files A {@link Set} of {@link File}.
@@ -150,11 +299,229 @@ abstract class SyncProcess extends Thread {
 	public Set<String> getFileNameList(Set<File> files) {
 		Set<String> fileNameList = new HashSet<String>();
 		for (File f : files) {
-			fileNameList.add(f.getName());
+			fileNameList.add(relativeName(folder, f));
 		}
 		return fileNameList;
 	}
 
+	/**
+	 * Give the relative names of a set of files in ascending order, as
+	 * {@link FileListTransfer} sends them.
+	 * @param files A {@link Set} of {@link File}.
+	 * @return A sorted array of file names.
+	 */
+	public String[] getSortedNames(Set<File> files) {
+		String[] names = new String[files.size()];
+		int i = 0;
+		for (File f : files) {
+			names[i++] = relativeName(folder, f);
+		}
+		Arrays.sort(names);
+		return names;
+	}
+
+	/**
+	 * Give the name a file in a sync folder is known by to the other {@link Peer}:
+	 * its path relative to the folder, with {@link SyncProcess#PATH_SEPARATOR}
+	 * between the directories.
+	 * @param folder The sync folder.
+	 * @param file A file in the folder or one of its subdirectories.
+	 * @return The relative name of the file.
+	 */
+	public static String relativeName(File folder, File file) {
+		String root = folder.getAbsolutePath();
+		if (!root.endsWith(File.separator)) {
+			root += File.separator;
+		}
+		String path = file.getAbsolutePath();
+		if (!path.startsWith(root) || path.length() == root.length()) {
+			return file.getName();
+		}
+		String relative = path.substring(root.length());
+		return File.separatorChar == '/' ? relative : relative.replace(File.separatorChar, '/');
+	}
+
+	/**
+	 * Check whether a relative name received from the other {@link Peer} stays
+	 * inside the sync folder: no empty, {@code .} or {@code ..} directories,
+	 * no leading separator and no backslash.
+	 * @param fileName The relative name.
+	 * @return {@code true} if the name is safe to be resolved against the folder.
+	 */
+	public static boolean isValidName(String fileName) {
+		if (fileName == null || fileName.isEmpty() || 
+			fileName.indexOf('\\') >= 0 || fileName.indexOf('\0') >= 0) {
+			return false;
+		}
+		for (String part : fileName.split(PATH_SEPARATOR, -1)) {
+			if (part.isEmpty() || part.equals(".") || part.equals("..")) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Resolve a relative name against the sync folder.
+	 * @param fileName The relative name, see {@link SyncProcess#relativeName(File, File)}.
+	 * @return The {@link File} in the folder or one of its subdirectories.
+	 * @throws IOException If the name would leave the folder.
+	 */
+	protected File localFile(String fileName) throws IOException {
+		if (!isValidName(fileName)) {
+			throw new IOException("Invalid file name " + fileName);
+		}
+		return new File(folder, File.separatorChar == '/' ? fileName : fileName.replace('/', File.separatorChar));
+	}
+
+	/**
+	 * Describe the files of the folder by name, size, modification time and content digest.
+	 * Unless {@link SyncOptions#index} is off, digests are taken from the 
+	 * {@link FileIndex} of the folder and only files whose stat data changed
+	 * are hashed again. Files are stat'ed and hashed in parallel by a
+	 * {@link FolderScanner} as it walks the folder, and the time to manifest is
+	 * reported. With a {@link FolderWatcher}, only the files that changed since
+	 * the last manifest are looked at. Files that cannot be read are left out, and
+	 * so are files in subdirectories unless {@link SyncProcess#FEATURE_TREE} is agreed.
+	 * @return A {@link Map} from file name to {@link ManifestEntry}.
+	 */
+	protected Map<String, ManifestEntry> getManifest() {
+		FolderScanner scanner = getScanner();
+		FolderWatcher watcher = getWatcher();
+		Map<String, ManifestEntry> manifest = watcher != null ? 
+				watcher.manifest(getFileList(), scanner) : scanner.manifest(hasFeature(FEATURE_TREE));
+		System.out.println(name + ": manifest of " + manifest.size() + " files in " + 
+				scanner.getLastScanMillis() + " ms (" + scanner.getLastHashed() + " hashed)");
+		return manifest;
+	}
+
+	/**
+	 * Compute the content digest of a file with {@link SyncProcess#DIGEST_ALGORITHM}.
+	 * @param file The file to be read.
+	 * @return The digest bytes.
+	 * @throws IOException If the file cannot be read.
+	 */
+	public static byte[] digest(File file) throws IOException {
+		return digest(file, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Compute the content digest of the beginning of a file with {@link SyncProcess#DIGEST_ALGORITHM}.
+	 * @param file The file to be read.
+	 * @param length The number of bytes to be read, or less if the file is shorter.
+	 * @return The digest bytes.
+	 * @throws IOException If the file cannot be read.
+	 */
+	public static byte[] digest(File file, long length) throws IOException {
+		MessageDigest md = newDigest();
+		try (FileInputStream fis = new FileInputStream(file)) {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			long remaining = length;
+			int count;
+			while (remaining > 0 && 
+				   (count = fis.read(buffer, 0, (int) Math.min(buffer.length, remaining))) > 0) {
+				md.update(buffer, 0, count);
+				remaining -= count;
+			}
+		}
+		return md.digest();
+	}
+
+	/**
+	 * Create a {@link MessageDigest} for {@link SyncProcess#DIGEST_ALGORITHM}.
+	 * @return A new digest.
+	 * @throws IOException If the algorithm is not available.
+	 */
+	public static MessageDigest newDigest() throws IOException {
+		try {
+			return MessageDigest.getInstance(DIGEST_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Give the entries of manifestA that manifestB should take over: files missing
+	 * in manifestB, and files whose content differs and whose copy in manifestA
+	 * is newer. When both copies have the same modification time, the copy in
+	 * manifestA is taken only if {@code winsTie} is set.
+	 * @param manifestA The first manifest.
+	 * @param manifestB The second manifest.
+	 * @param winsTie Whether manifestA wins between differing copies of the same age.
+	 * @return A list of entries from manifestA.
+	 */
+	public List<ManifestEntry> newerEntries(Map<String, ManifestEntry> manifestA, 
+			Map<String, ManifestEntry> manifestB, boolean winsTie) {
+		List<ManifestEntry> entries = new ArrayList<ManifestEntry>();
+		for (ManifestEntry a : manifestA.values()) {
+			ManifestEntry b = manifestB.get(a.name);
+			if (b == null ||
+				(!a.sameContent(b) && (a.mtime > b.mtime || (a.mtime == b.mtime && winsTie)))) {
+				entries.add(a);
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * Index manifest entries by their content digest, leaving out the given
+	 * files, which are about to be replaced.
+	 * @param entries The entries of the local files.
+	 * @param replaced The names of files that must not be used as a source.
+	 * @return A {@link Map} from digest to one entry with that digest.
+	 */
+	public static Map<ByteBuffer, ManifestEntry> digestIndex(Collection<ManifestEntry> entries, 
+			Set<String> replaced) {
+		Map<ByteBuffer, ManifestEntry> index = new HashMap<ByteBuffer, ManifestEntry>();
+		for (ManifestEntry entry : entries) {
+			if (entry.digest != null && !replaced.contains(entry.name)) {
+				index.put(ByteBuffer.wrap(entry.digest), entry);
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Create a file from a local file with the same content instead of
+	 * transferring it. The source is copied to {@link SyncProcess#tempFile(String)}
+	 * and hashed on the way, and the copy replaces the file only if it still has
+	 * the digest of the wanted entry. The copy takes the modification time of the entry.
+	 * @param wanted The manifest entry of the other {@link Peer}.
+	 * @param index The local files by digest, see {@link SyncProcess#digestIndex(Collection, Set)}.
+	 * @return {@code true} if the file was created, {@code false} if no local file has its content.
+	 */
+	protected boolean copyLocal(ManifestEntry wanted, Map<ByteBuffer, ManifestEntry> index) {
+		if (wanted.digest == null) return false;
+		ManifestEntry source = index.get(ByteBuffer.wrap(wanted.digest));
+		if (source == null || source.size != wanted.size || source.name.equals(wanted.name)) {
+			return false;
+		}
+		File temp = null;
+		try {
+			File fin = localFile(source.name);
+			File target = localFile(wanted.name);
+			temp = tempFile(wanted.name);
+			MessageDigest md = newDigest();
+			try (InputStream in = new DigestInputStream(new FileInputStream(fin), md)) {
+				Files.copy(in, temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			if (!Arrays.equals(md.digest(), wanted.digest)) {
+				return false;
+			}
+			if (wanted.mtime > 0) {
+				temp.setLastModified(wanted.mtime);
+			}
+			replaceFile(temp, target);
+			System.out.println(name + ": copy file " + source.name + " to " + wanted.name);
+			return true;
+		} catch (IOException e) {
+			System.out.println(name + ": " + e.getMessage());
+			return false;
+		} finally {
+			if (temp != null) temp.delete();
+		}
+	}
+
 	/**
 	 * Give a set of strings contained in setA but not setB.
 	 * @param setA The first input set.
@@ -162,25 +529,32 @@ abstract class SyncProcess extends Thread {
 	 * @return A set of strings.
 	 */
 	public Set<String> difference(Set<String> setA, Set<String> setB) {
-		Set<String> a = new HashSet<String>(setA);
-		Set<String> b = new HashSet<String>(setB);
-		a.removeAll(b);
+		Set<String> a = new HashSet<String>();
+		for (String s : setA) {
+			if (!setB.contains(s)) {
+				a.add(s);
+			}
+		}
 		return a;
 	}
 	
 	/**
-	 * Send a list of file names to the other {@link Peer}.
+	 * Send a list of file names to the other {@link Peer}. If {@link SyncProcess#FEATURE_PAGED}
+	 * is agreed, the names are sorted and sent by {@link FileListTransfer}.
 	 * @param list The list to be sent.
 	 * @return A boolean value telling whether the transfer is 
 	 * successful ({@code true}) or failed ({@code false}).
 	 */
 	protected boolean sendFileList(Set<String> list){
+		if(list == null){
+			return false;
+		}
+		if(hasFeature(FEATURE_PAGED)){
+			return sendFileList(FileListTransfer.sorted(list));
+		}
 		try{
-			if(list == null){
-				return false;
-			}
-			oos.writeObject(list);
-			oos.flush();
+			codec.writeList(list);
+			codec.flush();
 			if (!recvAck()) {
 				return false;
 			}		
@@ -192,13 +566,31 @@ abstract class SyncProcess extends Thread {
 	}
 	
 	/**
-	 * Block and receive a set of file names from the other {@link Peer}.
+	 * Send a sorted list of file names to the other {@link Peer} by {@link FileListTransfer}.
+	 * Needs {@link SyncProcess#FEATURE_PAGED}.
+	 * @param sorted The names in ascending order.
+	 * @return A boolean value telling whether the transfer is 
+	 * successful ({@code true}) or failed ({@code false}).
+	 */
+	protected boolean sendFileList(String[] sorted){
+		try{
+			FileListTransfer.write(codec, sorted);
+			codec.flush();
+			return recvAck();
+		} catch (IOException | ClassNotFoundException e){
+			System.out.println(name + ": " + e.getMessage());
+			return false;
+		}
+	}
+	
+	/**
+	 * Block and receive a set of file names from the other {@link Peer}. If
+	 * {@link SyncProcess#FEATURE_PAGED} is agreed, the names come in ascending order.
 	 * @return A set of strings representing file names.
 	 */
-	@SuppressWarnings("unchecked")
 	protected Set<String> receiveFileList(){
 		try{
-			Set<String> list = (Set<String>) ois.readObject();
+			Set<String> list = hasFeature(FEATURE_PAGED) ? FileListTransfer.read(codec) : codec.readList();
 			sendAck();
 			return list;
 		} catch (IOException | ClassNotFoundException e){
@@ -208,7 +600,52 @@ abstract class SyncProcess extends Thread {
 	}	
 
 	/**
-	 * Block and receive a file and write to disk.
+	 * Send a manifest to the other {@link Peer}.
+	 * @param entries The entries to be sent.
+	 * @return A boolean value telling whether the transfer is 
+	 * successful ({@code true}) or failed ({@code false}).
+	 */
+	protected boolean sendManifest(Collection<ManifestEntry> entries){
+		try{
+			codec.writeManifest(entries);
+			codec.flush();
+			return recvAck();
+		} catch (IOException | ClassNotFoundException e){
+			System.out.println(name + ": " + e.getMessage());
+			return false;
+		}
+	}
+	
+	/**
+	 * Block and receive a manifest from the other {@link Peer}.
+	 * @return A {@link Map} from file name to {@link ManifestEntry}, 
+	 * or {@code null} if the transfer failed.
+	 */
+	protected Map<String, ManifestEntry> receiveManifest(){
+		try{
+			Map<String, ManifestEntry> manifest = new HashMap<String, ManifestEntry>();
+			for (ManifestEntry entry : codec.readManifest()) {
+				manifest.put(entry.name, entry);
+			}
+			sendAck();
+			return manifest;
+		} catch (IOException | ClassNotFoundException e){
+			System.out.println(name + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Block and receive a file and write to disk. The file data is read
+	 * in chunks of {@link SyncProcess#BUFFER_SIZE} bytes and written out
+	 * as it arrives, so memory use does not depend on the file size.
+	 * The data is written to the file given by {@link SyncProcess#claimPart(String)},
+	 * which replaces the file once complete. An incomplete part is kept if the
+	 * transfer fails, so it can be resumed. A file header with an invalid length
+	 * is answered with a {@link SyncProcess#TYPE_NAK} instead of an acknowledgement.<br>
+	 * A {@link SyncProcess#TYPE_PUSH_RAW} message, sent once {@link SyncProcess#FEATURE_RAW}
+	 * is agreed, is followed by the raw file bytes on the socket, which are moved to disk with 
+	 * {@link FileChannel#transferFrom(java.nio.channels.ReadableByteChannel, long, long)}.
 	 * @param msg The command sent from the other {@link Peer}.
 	 * @return A boolean value telling whether the transfer is 
 	 * successful ({@code true}) or failed ({@code false}).
@@ -221,19 +658,36 @@ abstract class SyncProcess extends Thread {
 				return false;
 			}
 			
-			long size = Long.valueOf(msg.get(MSG_LENGTH_INDEX));
+			String fileName = msg.get(MSG_NAME_INDEX);
+			long size;
+			try {
+				size = Long.parseLong(msg.get(MSG_LENGTH_INDEX));
+			} catch (NumberFormatException e) {
+				size = -1;
+			}
+			if (size < 0) {
+				//Refused before any data is sent, so the connection stays in step
+				System.out.println(name + ": Invalid file length " + msg.get(MSG_LENGTH_INDEX));
+				codec.writeMessage(makeMsg(TYPE_NAK, fileName, NIL));
+				codec.flush();
+				return false;
+			}
 
 			sendAck();
 			
-			//Read from the other Peer
-			byte[] bytes = new byte[(int) size];
-			ois.read(bytes);
-			
-			//Write to a file on disk
-			File fout = new File(folder.getPath() + File.separator + msg.get(MSG_NAME_INDEX));
-			FileOutputStream fos = new FileOutputStream(fout);
-			fos.write(bytes);
-			fos.close();
+			File part = claimPart(fileName);
+			try {
+				if (msg.get(MSG_TYPE_INDEX).equalsIgnoreCase(TYPE_PUSH_RAW)) {
+					receiveRawData(part, size);
+				} else if (!receiveStreamData(part, size)) {
+					codec.writeMessage(makeMsg(TYPE_NAK, fileName, NIL));
+					codec.flush();
+					return false;
+				}
+				replaceFile(part, localFile(fileName));
+			} finally {
+				releasePart(part);
+			}
 			
 			sendAck();
 			return true;
@@ -244,7 +698,95 @@ abstract class SyncProcess extends Thread {
 	}
 
 	/**
-	 * Send a file to the other {@link Peer}.
+	 * Read file data from the codec and write to a file on disk chunk by chunk.
+	 * If the file cannot be created or written, the rest of the data is still
+	 * read, so the connection stays in step.
+	 * @param fout The file to be written.
+	 * @param size The number of bytes to be read.
+	 * @return {@code true} if all data was written, {@code false} if it was skipped.
+	 * @throws IOException If the communication cannot be completed.
+	 */
+	private boolean receiveStreamData(File fout, long size) throws IOException {
+		FileSink sink = new FileSink(fout);
+		try {
+			readStreamData(sink, size);
+		} finally {
+			sink.close();
+		}
+		if (sink.failure != null) {
+			System.out.println(name + ": " + sink.failure.getMessage());
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Read file data from the codec chunk by chunk. If {@link SyncProcess#FEATURE_COMPRESS}
+	 * is agreed, the data starts with the mode byte of {@link CompressedTransfer}.
+	 * @param out The stream the file data is written to.
+	 * @param size The number of bytes of file data.
+	 * @throws IOException If the communication or the file writing cannot be completed.
+	 */
+	private void readStreamData(OutputStream out, long size) throws IOException {
+		if (hasFeature(FEATURE_COMPRESS)) {
+			int mode = codec.readUnsignedByte();
+			if (mode == CompressedTransfer.MODE_DEFLATED) {
+				CompressedTransfer.read(codec, out, size);
+				return;
+			} else if (mode != CompressedTransfer.MODE_STORED) {
+				throw new IOException("Unknown data mode " + mode);
+			}
+		}
+		byte[] buffer = new byte[BUFFER_SIZE];
+		long remaining = size;
+		while (remaining > 0) {
+			int count = (int) Math.min(buffer.length, remaining);
+			codec.readFully(buffer, 0, count);
+			out.write(buffer, 0, count);
+			remaining -= count;
+		}
+	}
+
+	/**
+	 * Move raw file data from the socket channel to a file on disk.
+	 * @param fout The file to be written.
+	 * @param size The number of bytes to be read.
+	 * @throws IOException If the communication or the file writing cannot be completed.
+	 */
+	private void receiveRawData(File fout, long size) throws IOException {
+		if (channel == null) {
+			throw new IOException("Raw transfer needs a socket channel!");
+		}
+		try (RandomAccessFile raf = new RandomAccessFile(fout, "rw");
+			 FileChannel fc = raf.getChannel()) {
+			fc.truncate(0);
+			long position = 0;
+			
+			//Take over whatever the codec has already read past the message
+			int buffered = (int) Math.min(codec.buffered(), size);
+			if (buffered > 0) {
+				byte[] bytes = new byte[buffered];
+				codec.readFully(bytes, 0, buffered);
+				position += fc.write(ByteBuffer.wrap(bytes), position);
+			}
+			
+			while (position < size) {
+				long count = fc.transferFrom(channel, position, size - position);
+				if (count <= 0) {
+					throw new EOFException("Connection closed while receiving " + fout.getName() + "!");
+				}
+				position += count;
+			}
+		}
+	}
+
+	/**
+	 * Send a file to the other {@link Peer}. The file is streamed from disk
+	 * in chunks of {@link SyncProcess#BUFFER_SIZE} bytes instead of being
+	 * loaded into memory as a whole. If {@link SyncProcess#FEATURE_RAW} is agreed,
+	 * the file is sent as a {@link SyncProcess#TYPE_PUSH_RAW} message and its
+	 * data is handed to the socket with 
+	 * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}.
 	 * @param fileName The name of the file to be sent.
 	 * @return A boolean value telling whether the transfer is 
 	 * successful ({@code true}) or failed ({@code false}).
@@ -252,23 +794,26 @@ abstract class SyncProcess extends Thread {
 	protected boolean pushFile(String fileName){
 		try{
 			//Validate the file on disk
-			File fin = new File(folder.getPath() + File.separator + fileName);
+			File fin = localFile(fileName);
 			if (!fin.exists()) {
 				throw new IOException("File " + fin.getName() + " not found!");
 			}
 			long size = fin.length();			
+			boolean raw = rawData();
 			
 			//Sending file information to the other peer
 			boolean success = false;
-			success = sendMsg(TYPE_PUSH, fileName, String.valueOf(size));
+			success = sendMsg(raw ? TYPE_PUSH_RAW : TYPE_PUSH, fileName, String.valueOf(size));
 			if(!success) return false;
 			
-			//Load the file from disk
-			byte[] bytes = Files.readAllBytes(fin.toPath());
-			
-			//Send the file data to the other peer
-			oos.write(bytes);
-			oos.flush();
+			//Send the file data from disk to the other peer
+			if (raw) {
+				try (FileInputStream fis = new FileInputStream(fin)) {
+					pushRawData(fis.getChannel(), fin, size);
+				}
+			} else {
+				pushStreamData(fin, size);
+			}
 
 			return recvAck();
 		} catch (IOException | ClassNotFoundException e) {
@@ -276,5 +821,884 @@ abstract class SyncProcess extends Thread {
 			return false;
 		}
 	}
+
+	/**
+	 * Stream file data from disk to the codec chunk by chunk. If
+	 * {@link SyncProcess#FEATURE_COMPRESS} is agreed, the data is deflated
+	 * unless a sample of the file shows it does not compress.
+	 * @param fin The file to be sent.
+	 * @param size The number of bytes to be sent.
+	 * @throws IOException If the communication or the file reading cannot be completed.
+	 */
+	private void pushStreamData(File fin, long size) throws IOException {
+		try (FileInputStream fis = new FileInputStream(fin)) {
+			pushStreamData(fis, fin, size);
+		}
+	}
+
+	/**
+	 * Stream file data from an opened file to the codec chunk by chunk, see
+	 * {@link SyncProcess#pushStreamData(File, long)}. Data that is not compressed
+	 * is handed to the socket with {@link SyncProcess#pushRawData(FileChannel, File, long)}
+	 * if {@link SyncProcess#FEATURE_RAW} is agreed, which the other {@link Peer}
+	 * reads like any other data.
+	 * @param fis The opened file.
+	 * @param fin The file to be sent.
+	 * @param size The number of bytes to be sent.
+	 * @throws IOException If the communication or the file reading cannot be completed.
+	 */
+	private void pushStreamData(FileInputStream fis, File fin, long size) throws IOException {
+		if (hasFeature(FEATURE_COMPRESS)) {
+			int level = compressionLevel();
+			if (CompressedTransfer.worthCompressing(fin, level)) {
+				codec.writeByte(CompressedTransfer.MODE_DEFLATED);
+				CompressedTransfer.write(codec, fis, size, level);
+				codec.flush();
+				return;
+			}
+			codec.writeByte(CompressedTransfer.MODE_STORED);
+		}
+		if (rawData()) {
+			codec.flush();
+			pushRawData(fis.getChannel(), fin, size);
+			return;
+		}
+		byte[] buffer = new byte[BUFFER_SIZE];
+		long remaining = size;
+		while (remaining > 0) {
+			int count = fis.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+			if (count < 0) {
+				throw new EOFException("File " + fin.getName() + " was truncated while sending!");
+			}
+			codec.write(buffer, 0, count);
+			remaining -= count;
+		}
+		codec.flush();
+	}
+
+	/**
+	 * Give the {@link Deflater} level for file data sent by this
+	 * {@link Peer}. A peer that did not set {@link SyncOptions#compressLevel} itself
+	 * but agreed to compression uses the default level.
+	 * @return The compression level.
+	 */
+	protected int compressionLevel() {
+		return options.compressLevel > 0 ? options.compressLevel : Deflater.DEFAULT_COMPRESSION;
+	}
+
+	/**
+	 * Tell whether file data may be handed to the socket channel directly, which
+	 * needs {@link SyncProcess#FEATURE_RAW} to be agreed.
+	 * @return {@code true} if raw file data can be sent on this connection.
+	 */
+	protected boolean rawData() {
+		return hasFeature(FEATURE_RAW) && channel != null;
+	}
+
+	/**
+	 * Hand file data from disk to the socket channel without copying it
+	 * through the Java heap. The codec must be flushed before.
+	 * @param fc The opened file, which the caller closes.
+	 * @param fin The file to be sent.
+	 * @param size The number of bytes to be sent from the start of the file.
+	 * @throws IOException If the communication or the file reading cannot be completed.
+	 */
+	private void pushRawData(FileChannel fc, File fin, long size) throws IOException {
+		long position = 0;
+		while (position < size) {
+			long count = fc.transferTo(position, size - position, channel);
+			if (count <= 0) {
+				throw new EOFException("File " + fin.getName() + " was truncated while sending!");
+			}
+			position += count;
+		}
+	}
+	
+	/**
+	 * Stream one byte range of a file from disk to the codec with positional
+	 * reads, so several connections can send ranges of the same file at once.
+	 * @param fin The file to be sent.
+	 * @param offset The offset of the range in the file.
+	 * @param length The number of bytes to be sent.
+	 * @throws IOException If the communication or the file reading cannot be completed.
+	 */
+	protected void sendRangeData(File fin, long offset, long length) throws IOException {
+		try (FileInputStream fis = new FileInputStream(fin);
+			 FileChannel fc = fis.getChannel()) {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			long position = offset;
+			long end = offset + length;
+			while (position < end) {
+				int count = fc.read(ByteBuffer.wrap(buffer, 0, (int) Math.min(buffer.length, end - position)), position);
+				if (count < 0) {
+					throw new EOFException("File " + fin.getName() + " was truncated while sending!");
+				}
+				codec.write(buffer, 0, count);
+				position += count;
+			}
+		}
+	}
 	
+	/**
+	 * Send a file header followed directly by the file data, without waiting
+	 * for any acknowledgement. Used by the pipelined mode where the other
+	 * {@link Peer} answers in order once the data has arrived. The file is
+	 * opened before the header is written. Once the header is out, the other
+	 * {@link Peer} waits for the announced bytes, so a file that cannot be
+	 * read to the end leaves the connection unusable.
+	 * @param type {@link SyncProcess#TYPE_PUSH} for a reply to 
+	 * {@link SyncProcess#TYPE_PIPE_REQUEST}, or {@link SyncProcess#TYPE_PIPE_PUSH}.
+	 * @param fileName The name of the file to be sent.
+	 * @return {@code true} if the file was sent, {@code false} if it cannot be
+	 * opened, in which case a reply is a {@link SyncProcess#TYPE_NAK} instead.
+	 * @throws IOException If the communication cannot be completed or the file
+	 * could not be read after its header was sent.
+	 */
+	protected boolean sendPipelinedFile(String type, String fileName) throws IOException{
+		File fin;
+		FileInputStream fis;
+		try {
+			fin = localFile(fileName);
+			fis = new FileInputStream(fin);
+		} catch (IOException e) {
+			System.out.println(name + ": " + e.getMessage());
+			if (type.equalsIgnoreCase(TYPE_PUSH)) {
+				codec.writeMessage(makeMsg(TYPE_NAK, fileName, NIL));
+			}
+			return false;
+		}
+		try {
+			long size = fis.getChannel().size();
+			codec.writeMessage(makeMsg(type, fileName, String.valueOf(size)));
+			pushStreamData(fis, fin, size);
+		} finally {
+			fis.close();
+		}
+		return true;
+	}
+
+	/**
+	 * Receive the data following a pipelined file header and write it to disk
+	 * through {@link SyncProcess#claimPart(String)}.
+	 * No acknowledgement is sent. If the file cannot be created or written, its
+	 * data is skipped so the connection stays in step.
+	 * @param msg The file header sent from the other {@link Peer}.
+	 * @return A boolean value telling whether the file is 
+	 * written ({@code true}) or skipped ({@code false}).
+	 * @throws IOException If the communication cannot be completed or the header
+	 * is invalid, after which the connection is out of step.
+	 */
+	protected boolean receivePipelinedFile(Vector<String> msg) throws IOException{
+		long size;
+		try {
+			size = Long.parseLong(msg.get(MSG_LENGTH_INDEX));
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid file length " + msg.get(MSG_LENGTH_INDEX));
+		}
+		if (size < 0) {
+			throw new IOException("Invalid file length " + size);
+		}
+		String fileName = msg.get(MSG_NAME_INDEX);
+		File part;
+		try {
+			part = claimPart(fileName);
+		} catch (IOException e) {
+			System.out.println(name + ": " + e.getMessage());
+			skipStreamData(size);
+			return false;
+		}
+		try {
+			if (!receiveStreamData(part, size)) {
+				return false;
+			}
+			replaceFile(part, localFile(fileName));
+			return true;
+		} catch (IOException e) {
+			System.out.println(name + ": " + e.getMessage());
+			return false;
+		} finally {
+			releasePart(part);
+		}
+	}
+
+	/**
+	 * Read and discard file data sent by {@link SyncProcess#pushStreamData(File, long)}.
+	 * @param size The number of bytes of file data.
+	 * @throws IOException If the communication cannot be completed.
+	 */
+	private void skipStreamData(long size) throws IOException {
+		readStreamData(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		}, size);
+	}
+
+	/**
+	 * Read and discard file data from the codec.
+	 * @param size The number of bytes to be skipped.
+	 * @throws IOException If the communication cannot be completed.
+	 */
+	protected void skipData(long size) throws IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		long remaining = size;
+		while (remaining > 0) {
+			int count = (int) Math.min(buffer.length, remaining);
+			codec.readFully(buffer, 0, count);
+			remaining -= count;
+		}
+	}
+	
+	/**
+	 * Send a bundle of files as one {@link SyncProcess#TYPE_BATCH} frame: a header
+	 * with the number of records, then each file as a pipelined file header and
+	 * its data. A file that disappeared is sent as a {@link SyncProcess#TYPE_NAK}
+	 * record. The bundle is flushed once at the end and not acknowledged here.
+	 * @param fileNames The names of the files to be bundled.
+	 * @throws IOException If the communication cannot be completed.
+	 */
+	protected void sendBatch(Collection<String> fileNames) throws IOException{
+		codec.writeMessage(makeMsg(TYPE_BATCH, NIL, String.valueOf(fileNames.size())));
+		for(String fileName : fileNames){
+			sendPipelinedFile(TYPE_PUSH, fileName);
+		}
+		codec.flush();
+	}
+
+	/**
+	 * Receive the records of a {@link SyncProcess#TYPE_BATCH} frame and write
+	 * the files to disk. The bundle is not acknowledged here.
+	 * @param header The {@link SyncProcess#TYPE_BATCH} header.
+	 * @return The names of the files written.
+	 * @throws IOException If the communication cannot be completed.
+	 * @throws ClassNotFoundException If a received record is corrupted.
+	 */
+	protected Set<String> receiveBatch(Vector<String> header) throws IOException, ClassNotFoundException{
+		long count;
+		try {
+			count = Long.parseLong(header.get(MSG_LENGTH_INDEX));
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid batch size " + header.get(MSG_LENGTH_INDEX));
+		}
+		Set<String> received = new HashSet<String>();
+		for(long i = 0; i < count; ++i){
+			Vector<String> record = codec.readMessage();
+			if(record == null || record.size() != MSG_SIZE){
+				throw new IOException("Invalid batch record");
+			}
+			String fileName = record.get(MSG_NAME_INDEX);
+			if(record.get(MSG_TYPE_INDEX).equalsIgnoreCase(TYPE_PUSH)){
+				System.out.println(name + ": receive file " + fileName);
+				if(receivePipelinedFile(record)){
+					received.add(fileName);
+				}
+			} else {
+				System.out.println(name + ": file " + fileName + " was not sent");
+			}
+		}
+		return received;
+	}
+
+	/**
+	 * Get the temporary file a new copy of a file is written to before it
+	 * replaces the old one. The name is unique to the current thread, so
+	 * sessions receiving the same file do not write into each other.
+	 * The temporary file is in the directory of the file, which is created if needed.
+	 * @param fileName The name of the file.
+	 * @return A hidden {@link File} in the sync folder.
+	 * @throws IOException If the name is invalid.
+	 */
+	protected File tempFile(String fileName) throws IOException {
+		File target = localFile(fileName);
+		target.getParentFile().mkdirs();
+		return new File(target.getParentFile(), TEMP_PREFIX + target.getName() + 
+						"." + Thread.currentThread().getId() + TEMP_SUFFIX);
+	}
+
+	/**
+	 * Get the partial file a received file is written to before it replaces the
+	 * old one. Unlike {@link SyncProcess#tempFile(String)}, the name is the same for
+	 * every transfer of the file, so a later transfer can resume where a broken one stopped.
+	 * @param fileName The name of the file.
+	 * @return A hidden {@link File} in the sync folder.
+	 * @throws IOException If the name is invalid.
+	 */
+	protected File partFile(String fileName) throws IOException {
+		File target = localFile(fileName);
+		target.getParentFile().mkdirs();
+		return new File(target.getParentFile(), TEMP_PREFIX + target.getName() + PART_SUFFIX);
+	}
+
+	/**
+	 * Claim the partial file of a received file, see {@link SyncProcess#partFile(String)}.
+	 * If another transfer is writing it, a {@link SyncProcess#tempFile(String)} is
+	 * given instead, which cannot be resumed but leaves the other transfer alone.
+	 * To be given back by {@link SyncProcess#releasePart(File)}.
+	 * @param fileName The name of the file.
+	 * @return The file the received data is to be written to.
+	 * @throws IOException If the name is invalid.
+	 */
+	protected File claimPart(String fileName) throws IOException {
+		File part = partFile(fileName).getAbsoluteFile();
+		synchronized (CLAIMED_PARTS) {
+			if (CLAIMED_PARTS.add(part)) {
+				return part;
+			}
+		}
+		return tempFile(fileName);
+	}
+
+	/**
+	 * Give back a file from {@link SyncProcess#claimPart(String)}. A part is kept
+	 * to be resumed, while a temporary file left over from a failure is removed.
+	 * @param file The claimed file.
+	 */
+	protected static void releasePart(File file) {
+		synchronized (CLAIMED_PARTS) {
+			if (CLAIMED_PARTS.remove(file)) {
+				return;
+			}
+		}
+		file.delete();
+	}
+
+	/**
+	 * Check whether another transfer is writing the partial file of a file.
+	 * @param part The partial file.
+	 * @return {@code true} if the part is claimed.
+	 */
+	private static boolean isClaimed(File part) {
+		synchronized (CLAIMED_PARTS) {
+			return CLAIMED_PARTS.contains(part.getAbsoluteFile());
+		}
+	}
+
+	/**
+	 * Check whether a file is a temporary or partial file of a transfer.
+	 * @param file The file to be checked.
+	 * @return {@code true} if the file must not be synchronized.
+	 */
+	public static boolean isTempFile(File file){
+		String fileName = file.getName();
+		return fileName.startsWith(TEMP_PREFIX) && 
+			   (fileName.endsWith(TEMP_SUFFIX) || fileName.endsWith(PART_SUFFIX));
+	}
+
+	/**
+	 * Replace a file by its new copy in one step, so the file is never seen half written.
+	 * @param source The new copy.
+	 * @param target The file to be replaced.
+	 * @throws IOException If the file cannot be replaced.
+	 */
+	protected static void replaceFile(File source, File target) throws IOException{
+		FolderWatcher.expect(target);
+		try {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Describe the local copy of a file to the other {@link Peer} with a
+	 * {@link SyncProcess#TYPE_SIGNATURE} message carrying the block size,
+	 * followed by the block checksums. The other {@link Peer} answers with a
+	 * {@link SyncProcess#TYPE_DELTA} against this copy.
+	 * @param fileName The name of the file.
+	 * @return The block size used.
+	 * @throws IOException If the communication or the file reading cannot be completed.
+	 */
+	protected int sendSignature(String fileName) throws IOException{
+		File base = localFile(fileName);
+		int blockSize = DeltaTransfer.blockSizeFor(base.length());
+		DeltaTransfer.Signature sig = DeltaTransfer.signature(base, blockSize);
+		codec.writeMessage(makeMsg(TYPE_SIGNATURE, fileName, String.valueOf(blockSize)));
+		DeltaTransfer.writeSignature(codec, sig);
+		codec.flush();
+		return blockSize;
+	}
+
+	/**
+	 * Read the block checksums following a {@link SyncProcess#TYPE_SIGNATURE} message.
+	 * @param msg The {@link SyncProcess#TYPE_SIGNATURE} message.
+	 * @return The signature of the other copy.
+	 * @throws IOException If the communication cannot be completed or the signature is invalid.
+	 */
+	protected DeltaTransfer.Signature receiveSignature(Vector<String> msg) throws IOException{
+		int blockSize;
+		try {
+			blockSize = Integer.parseInt(msg.get(MSG_LENGTH_INDEX));
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid block size " + msg.get(MSG_LENGTH_INDEX));
+		}
+		return DeltaTransfer.readSignature(codec, blockSize);
+	}
+
+	/**
+	 * Send the local copy of a file as a {@link SyncProcess#TYPE_DELTA} against
+	 * the copy of the other {@link Peer} described by a signature. The file is
+	 * opened first, so nothing is sent if it cannot be read.
+	 * @param fileName The name of the file.
+	 * @param sig The signature of the other copy.
+	 * @return {@code true} if the delta was sent, {@code false} if the file cannot be opened.
+	 * @throws IOException If the communication or the file reading cannot be completed,
+	 * after which the connection is out of step.
+	 */
+	protected boolean sendDelta(String fileName, DeltaTransfer.Signature sig) throws IOException{
+		FileInputStream fis;
+		try {
+			fis = new FileInputStream(localFile(fileName));
+		} catch (IOException e) {
+			System.out.println(name + ": " + e.getMessage());
+			return false;
+		}
+		try {
+			codec.writeMessage(makeMsg(TYPE_DELTA, fileName, String.valueOf(fis.getChannel().size())));
+			DeltaTransfer.writeDelta(codec, fis, sig);
+		} finally {
+			fis.close();
+		}
+		codec.flush();
+		return true;
+	}
+
+	/**
+	 * Rebuild a file from the local copy and the delta following a 
+	 * {@link SyncProcess#TYPE_DELTA} message. The new copy is written to
+	 * {@link SyncProcess#tempFile(String)} and replaces the local copy only
+	 * if its digest matches the one sent with the delta. If the new copy cannot
+	 * be written, the delta is still read, so the connection stays in step.
+	 * @param fileName The name of the file.
+	 * @param blockSize The block size of the signature the delta was built for.
+	 * @return A boolean value telling whether the file was 
+	 * rebuilt ({@code true}) or not ({@code false}).
+	 * @throws IOException If the communication cannot be completed.
+	 */
+	protected boolean receiveDelta(String fileName, int blockSize) throws IOException{
+		File base = localFile(fileName);
+		File temp = tempFile(fileName);
+		try {
+			if (!DeltaTransfer.readDelta(codec, base, blockSize, temp)) {
+				System.out.println(name + ": changes to " + fileName + " could not be applied");
+				return false;
+			}
+			try {
+				replaceFile(temp, base);
+			} catch (IOException e) {
+				//The delta was read in full, only the local copy is not replaced
+				System.out.println(name + ": " + e.getMessage());
+				return false;
+			}
+			return true;
+		} finally {
+			temp.delete();
+		}
+	}
+	
+
+	/**
+	 * Describe the partial copy of a file to the other {@link Peer} with a
+	 * {@link SyncProcess#TYPE_RESUME} message carrying its length, followed by
+	 * the digest of the part. It requests the rest of a file, or answers a
+	 * {@link SyncProcess#TYPE_RESUME_PUSH}. A part another transfer is writing
+	 * is described as empty.
+	 * @param fileName The name of the file.
+	 * @throws IOException If the communication or the file reading cannot be completed.
+	 */
+	protected void sendResume(String fileName) throws IOException{
+		File part = partFile(fileName);
+		long offset = part.isFile() && !isClaimed(part) ? part.length() : 0;
+		codec.writeMessage(makeMsg(TYPE_RESUME, fileName, String.valueOf(offset)));
+		codec.writeBytes(offset > 0 ? digest(part, offset) : new byte[0]);
+		codec.flush();
+	}
+
+	/**
+	 * Read the digest following a {@link SyncProcess#TYPE_RESUME} message and
+	 * find where the transfer of the local copy can resume.
+	 * @param msg The {@link SyncProcess#TYPE_RESUME} message.
+	 * @return The length of the partial copy of the other {@link Peer} if it matches
+	 * the beginning of the local copy, or 0 if the whole file must be sent.
+	 * @throws IOException If the communication cannot be completed.
+	 */
+	protected long receiveResume(Vector<String> msg) throws IOException{
+		long offset;
+		try {
+			offset = Long.parseLong(msg.get(MSG_LENGTH_INDEX));
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid resume point " + msg.get(MSG_LENGTH_INDEX));
+		}
+		byte[] partDigest = codec.readBytes(BinaryCodec.MAX_DIGEST_BYTES);
+		File fin = localFile(msg.get(MSG_NAME_INDEX));
+		if (offset <= 0 || !fin.isFile() || offset > fin.length() ||
+			!Arrays.equals(digest(fin, offset), partDigest)) {
+			return 0;
+		}
+		return offset;
+	}
+
+	/**
+	 * Send the rest of a file from an offset as a {@link SyncProcess#TYPE_APPEND}
+	 * message carrying the number of bytes, followed by the offset and the data.
+	 * @param fileName The name of the file.
+	 * @param offset The length of the partial copy of the other {@link Peer}.
+	 * @throws IOException If the communication or the file reading cannot be completed.
+	 */
+	protected void sendAppend(String fileName, long offset) throws IOException{
+		File fin = localFile(fileName);
+		long length = fin.length() - offset;
+		codec.writeMessage(makeMsg(TYPE_APPEND, fileName, String.valueOf(length)));
+		codec.writeVarLong(offset);
+		sendRangeData(fin, offset, length);
+		codec.flush();
+	}
+
+	/**
+	 * Receive the data following a {@link SyncProcess#TYPE_APPEND} message. The
+	 * partial copy is cut to the offset, the data is written after it, and the
+	 * completed copy replaces the file. If the part is shorter than the offset,
+	 * is being written by another transfer or cannot be written, the data is
+	 * skipped so the connection stays in step.
+	 * @param msg The {@link SyncProcess#TYPE_APPEND} message.
+	 * @return A boolean value telling whether the file is 
+	 * written ({@code true}) or skipped ({@code false}).
+	 * @throws IOException If the communication cannot be completed.
+	 */
+	protected boolean receiveAppend(Vector<String> msg) throws IOException{
+		long length;
+		try {
+			length = Long.parseLong(msg.get(MSG_LENGTH_INDEX));
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid file length " + msg.get(MSG_LENGTH_INDEX));
+		}
+		if (length < 0) {
+			throw new IOException("Invalid file length " + length);
+		}
+		long offset = codec.readVarLong();
+		String fileName = msg.get(MSG_NAME_INDEX);
+		File part = claimPart(fileName);
+		try {
+			if (offset > (part.isFile() ? part.length() : 0)) {
+				System.out.println(name + ": no part of " + fileName + " to resume from byte " + offset);
+				skipData(length);
+				return false;
+			}
+			try (RandomAccessFile raf = new RandomAccessFile(part, "rw")) {
+				raf.setLength(offset);
+				raf.seek(offset);
+				byte[] buffer = new byte[BUFFER_SIZE];
+				long remaining = length;
+				while (remaining > 0) {
+					int count = (int) Math.min(buffer.length, remaining);
+					codec.readFully(buffer, 0, count);
+					raf.write(buffer, 0, count);
+					remaining -= count;
+				}
+			} catch (FileNotFoundException e) {
+				System.out.println(name + ": " + e.getMessage());
+				skipData(length);
+				return false;
+			}
+			try {
+				replaceFile(part, localFile(fileName));
+				return true;
+			} catch (IOException e) {
+				System.out.println(name + ": " + e.getMessage());
+				return false;
+			}
+		} finally {
+			releasePart(part);
+		}
+	}
+
+	/**
+	 * Give the {@link ChunkIndex} of the sync folder. It is brought up to date
+	 * with the folder on first use after {@link SyncProcess#forgetChunkIndex()}.
+	 * @return The chunk index.
+	 */
+	protected ChunkIndex chunkIndex(){
+		if (chunkIndex == null) {
+			chunkIndex = ChunkIndex.forFolder(folder);
+			chunkIndex.update(getFileList());
+		}
+		return chunkIndex;
+	}
+
+	/**
+	 * Let the next {@link SyncProcess#chunkIndex()} check the folder for changes
+	 * again. To be called when a synchronization round starts.
+	 */
+	protected void forgetChunkIndex(){
+		chunkIndex = null;
+	}
+
+	/**
+	 * Describe a file by its chunks with a {@link SyncProcess#TYPE_CHUNKS} message
+	 * carrying the file length, followed by the chunk list.
+	 * @param fileName The name of the file.
+	 * @return The chunk list sent.
+	 * @throws IOException If the communication or the file reading cannot be completed.
+	 */
+	protected ChunkedTransfer.ChunkList sendChunkList(String fileName) throws IOException{
+		File fin = localFile(fileName);
+		ChunkedTransfer.ChunkList list = ChunkIndex.forFolder(folder).chunks(fin);
+		codec.writeMessage(makeMsg(TYPE_CHUNKS, fileName, String.valueOf(list.length())));
+		ChunkedTransfer.writeList(codec, list);
+		codec.flush();
+		return list;
+	}
+
+	/**
+	 * Read the chunk list following a {@link SyncProcess#TYPE_CHUNKS} message.
+	 * @param msg The {@link SyncProcess#TYPE_CHUNKS} message.
+	 * @return The chunk list of the file of the other {@link Peer}.
+	 * @throws IOException If the communication cannot be completed or the list is invalid.
+	 */
+	protected ChunkedTransfer.ChunkList receiveChunkList(Vector<String> msg) throws IOException{
+		long size;
+		try {
+			size = Long.parseLong(msg.get(MSG_LENGTH_INDEX));
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid file length " + msg.get(MSG_LENGTH_INDEX));
+		}
+		return ChunkedTransfer.readList(codec, size);
+	}
+
+	/**
+	 * Ask for the chunks of a list that are neither in the {@link ChunkIndex} nor
+	 * earlier in the list with a {@link SyncProcess#TYPE_CHUNK_WANT} message
+	 * carrying their number, followed by their indexes.
+	 * @param fileName The name of the file.
+	 * @param list The chunk list of the other {@link Peer}.
+	 * @return The indexes of the chunks asked for.
+	 * @throws IOException If the communication cannot be completed.
+	 */
+	protected BitSet sendWanted(String fileName, ChunkedTransfer.ChunkList list) throws IOException{
+		ChunkIndex index = chunkIndex();
+		BitSet wanted = new BitSet(list.size());
+		Set<ByteBuffer> seen = new HashSet<ByteBuffer>();
+		for (int i = 0; i < list.size(); ++i) {
+			if (seen.add(ByteBuffer.wrap(list.digests[i])) && index.find(list.digests[i]) == null) {
+				wanted.set(i);
+			}
+		}
+		codec.writeMessage(makeMsg(TYPE_CHUNK_WANT, fileName, String.valueOf(wanted.cardinality())));
+		ChunkedTransfer.writeWanted(codec, wanted);
+		codec.flush();
+		return wanted;
+	}
+
+	/**
+	 * Read the chunk indexes following a {@link SyncProcess#TYPE_CHUNK_WANT} message.
+	 * @param msg The {@link SyncProcess#TYPE_CHUNK_WANT} message.
+	 * @param list The chunk list the indexes refer to.
+	 * @return The indexes of the chunks to be sent.
+	 * @throws IOException If the communication cannot be completed or the indexes are invalid.
+	 */
+	protected BitSet receiveWanted(Vector<String> msg, ChunkedTransfer.ChunkList list) throws IOException{
+		long count;
+		try {
+			count = Long.parseLong(msg.get(MSG_LENGTH_INDEX));
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid chunk count " + msg.get(MSG_LENGTH_INDEX));
+		}
+		return ChunkedTransfer.readWanted(codec, count, list);
+	}
+
+	/**
+	 * Send the data of the wanted chunks of a file in list order.
+	 * @param fileName The name of the file.
+	 * @param list The chunk list sent for the file.
+	 * @param wanted The indexes of the chunks to be sent.
+	 * @throws IOException If the communication or the file reading cannot be completed.
+	 */
+	protected void sendChunks(String fileName, ChunkedTransfer.ChunkList list, BitSet wanted) throws IOException{
+		File fin = localFile(fileName);
+		long offset = 0;
+		for (int i = 0; i < list.size(); ++i) {
+			if (wanted.get(i)) {
+				sendRangeData(fin, offset, list.lengths[i]);
+			}
+			offset += list.lengths[i];
+		}
+		codec.flush();
+	}
+
+	/**
+	 * Rebuild a file from its chunk list. The wanted chunks are read from the codec,
+	 * a chunk seen earlier in the list is copied from the new copy, and the others
+	 * from the local files listed in the {@link ChunkIndex}. The new copy is written
+	 * to {@link SyncProcess#tempFile(String)} and replaces the file only if it
+	 * matches the digest of the list. The wanted data is read in full even if a
+	 * local chunk cannot be read or the new copy cannot be written, so the
+	 * connection stays in step.
+	 * @param fileName The name of the file.
+	 * @param list The chunk list of the other {@link Peer}.
+	 * @param wanted The indexes of the chunks sent by the other {@link Peer}.
+	 * @return A boolean value telling whether the file was 
+	 * rebuilt ({@code true}) or not ({@code false}).
+	 * @throws IOException If the communication cannot be completed.
+	 */
+	protected boolean receiveChunks(String fileName, ChunkedTransfer.ChunkList list, BitSet wanted) throws IOException{
+		ChunkIndex index = chunkIndex();
+		File temp = tempFile(fileName);
+		Map<String, RandomAccessFile> sources = new HashMap<String, RandomAccessFile>();
+		Map<ByteBuffer, Long> written = new HashMap<ByteBuffer, Long>();
+		MessageDigest whole = newDigest();
+		byte[] buffer = new byte[ChunkedTransfer.MAX_CHUNK];
+		boolean complete = true;
+		long copied = 0;
+		RandomAccessFile out = null;
+		try {
+			try {
+				out = new RandomAccessFile(temp, "rw");
+				out.setLength(0);
+			} catch (IOException e) {
+				System.out.println(name + ": " + e.getMessage());
+				complete = false;
+			}
+			long offset = 0;
+			for (int i = 0; i < list.size(); ++i) {
+				int length = list.lengths[i];
+				ByteBuffer key = ByteBuffer.wrap(list.digests[i]);
+				if (wanted.get(i)) {
+					codec.readFully(buffer, 0, length);
+				} else if (complete) {
+					try {
+						Long earlier = written.get(key);
+						if (earlier != null) {
+							out.seek(earlier);
+							out.readFully(buffer, 0, length);
+						} else {
+							ChunkIndex.Location location = index.find(list.digests[i]);
+							if (location == null || location.length != length) {
+								throw new IOException("chunk " + i + " of " + fileName + " not found");
+							}
+							RandomAccessFile source = sources.get(location.name);
+							if (source == null) {
+								source = new RandomAccessFile(localFile(location.name), "r");
+								sources.put(location.name, source);
+							}
+							source.seek(location.offset);
+							source.readFully(buffer, 0, length);
+						}
+						copied += length;
+					} catch (IOException e) {
+						System.out.println(name + ": " + e.getMessage());
+						complete = false;
+					}
+				}
+				if (complete) {
+					try {
+						out.seek(offset);
+						out.write(buffer, 0, length);
+					} catch (IOException e) {
+						//The rest of the wanted chunks is still read
+						System.out.println(name + ": " + e.getMessage());
+						complete = false;
+					}
+					whole.update(buffer, 0, length);
+					if (!written.containsKey(key)) {
+						written.put(key, offset);
+					}
+				}
+				offset += length;
+			}
+			if (!complete) {
+				return false;
+			}
+			if (!Arrays.equals(whole.digest(), list.fileDigest)) {
+				System.out.println(name + ": chunks of " + fileName + " do not match its digest");
+				return false;
+			}
+			//All chunks are read, so local failures from here on leave the connection in step
+			try {
+				out.close();
+				replaceFile(temp, localFile(fileName));
+			} catch (IOException e) {
+				System.out.println(name + ": " + e.getMessage());
+				return false;
+			}
+			System.out.println(name + ": " + copied + " of " + list.length() + 
+					" bytes of " + fileName + " taken from local chunks");
+			return true;
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					//Already failed or closed
+				}
+			}
+			for (RandomAccessFile source : sources.values()) {
+				try {
+					source.close();
+				} catch (IOException e) {
+					//Only read from
+				}
+			}
+			temp.delete();
+		}
+	}
+
+	/**
+	 * A stream to a file on disk that stops writing at the first failure instead
+	 * of throwing, so the rest of the file data can still be read from the codec.
+	 */
+	static class FileSink extends OutputStream {
+		private FileOutputStream out;
+		private IOException failure;
+
+		FileSink(File file) {
+			try {
+				out = new FileOutputStream(file);
+			} catch (FileNotFoundException e) {
+				failure = e;
+			}
+		}
+
+		@Override
+		public void write(int b) {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			if (failure != null) return;
+			try {
+				out.write(b, off, len);
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+
+		/**
+		 * Stop writing because of a failure outside the stream, such as a
+		 * source of the data that cannot be read.
+		 */
+		void fail(IOException e) {
+			if (failure == null) failure = e;
+		}
+
+		/**
+		 * Give the first failure, or {@code null} if all data was written.
+		 */
+		IOException failure() {
+			return failure;
+		}
+
+		@Override
+		public void close() {
+			if (out == null) return;
+			try {
+				out.close();
+			} catch (IOException e) {
+				if (failure == null) failure = e;
+			}
+		}
+	}
 }
\ No newline at end of file
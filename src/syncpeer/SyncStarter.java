@@ -1,6 +1,9 @@
 package syncpeer;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
 import syncpeer.Peer;
 
 /**
@@ -12,14 +15,29 @@ public class SyncStarter {
 
 	public static final int PORT = 14210;
 
-	public static void main(String[] args) {
+	public static void main(String[] rawArgs) {
+	
+		//Separate options from the folder name and IP address.
+		final SyncOptions options = new SyncOptions();
+		List<String> argList = new ArrayList<String>();
+		for(String arg : rawArgs){
+			if(SyncOptions.isOption(arg)){
+				if(!options.set(arg)){
+					System.out.println("Unknown option "+arg+" is ignored.");
+				}
+			} else {
+				argList.add(arg);
+			}
+		}
+		String[] args = argList.toArray(new String[argList.size()]);
 	
 		if(args.length == 0){
 			System.out.println("Welcome to SyncPeer!\n"+
 							   "Usage: \n"+
 					           "    Start the peer by specifying the folder to be synced\n"+
 							   "      and/or the IP address of the other peer.\n"+
-							   "    java SyncStarter <folder name> [<ip addr>]");
+							   "    java SyncStarter <folder name> [<ip addr>] [<options>]\n"+
+							   SyncOptions.usage());
 			return;
 		}
 		
@@ -53,7 +71,7 @@ public class SyncStarter {
 
 				@Override
 				public void run() {
-					Peer peer = new Peer(folder, PORT, ipAddr);
+					Peer peer = new Peer(folder, PORT, ipAddr, options);
 					peer.start();
 				}
 				
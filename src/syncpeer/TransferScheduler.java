@@ -0,0 +1,139 @@
+package syncpeer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Spreads the file transfers of a synchronization round over several data
+ * connections, see {@link SyncOptions#connections}.<br>
+ * <br>
+ * Every connection has its own queue. The transfers are sorted by size and
+ * handed out largest first, each to the queue with the fewest bytes so far, so
+ * the large files start early and the queues end at about the same time. A
+ * connection takes from the front of its own queue, which is its largest
+ * remaining file. Once its queue is empty, it steals from the back of the queue
+ * with the most bytes left, which is that queue's smallest file, so small files
+ * fill the gaps. Pulls and pushes share the queues and run side by side, and
+ * the ranges of a striped file are spread like separate files.
+ * @author Wenhao
+ *
+ */
+class TransferScheduler {
+
+	/**
+	 * One file, or one byte range of a large file, to be requested from or
+	 * pushed to the server.
+	 */
+	static class Transfer {
+		final String name;
+		final long offset;
+		final long size;
+		final boolean push;
+		final boolean range;
+
+		Transfer(String name, long size, boolean push) {
+			this(name, 0, size, push, false);
+		}
+
+		Transfer(String name, long offset, long size, boolean push, boolean range) {
+			this.name = name;
+			this.offset = offset;
+			this.size = size;
+			this.push = push;
+			this.range = range;
+		}
+	}
+
+	private final List<Deque<Transfer>> queues;
+	private final long[] queuedBytes;
+	private int running;
+
+	/**
+	 * @param transfers The transfers of the round.
+	 * @param slots The number of data connections.
+	 */
+	TransferScheduler(List<Transfer> transfers, int slots) {
+		queues = new ArrayList<Deque<Transfer>>(slots);
+		queuedBytes = new long[slots];
+		running = slots;
+		for (int i = 0; i < slots; ++i) {
+			queues.add(new ArrayDeque<Transfer>());
+		}
+		
+		List<Transfer> sorted = new ArrayList<Transfer>(transfers);
+		Collections.sort(sorted, new Comparator<Transfer>() {
+			@Override
+			public int compare(Transfer a, Transfer b) {
+				return a.size > b.size ? -1 : (a.size < b.size ? 1 : 0);
+			}
+		});
+		for (Transfer transfer : sorted) {
+			int lightest = 0;
+			for (int i = 1; i < slots; ++i) {
+				if (queuedBytes[i] < queuedBytes[lightest]) {
+					lightest = i;
+				}
+			}
+			queues.get(lightest).addLast(transfer);
+			queuedBytes[lightest] += transfer.size;
+		}
+	}
+
+	/**
+	 * Get the number of data connections.
+	 */
+	public int slots() {
+		return queues.size();
+	}
+
+	/**
+	 * Take the next transfer for a data connection.
+	 * @param slot The index of the connection.
+	 * @return The next transfer, or {@code null} if all transfers were taken.
+	 */
+	public synchronized Transfer take(int slot) {
+		Transfer transfer = queues.get(slot).pollFirst();
+		if (transfer != null) {
+			queuedBytes[slot] -= transfer.size;
+			return transfer;
+		}
+		
+		//Steal the smallest file of the queue with the most bytes left
+		int victim = -1;
+		for (int i = 0; i < queues.size(); ++i) {
+			if (!queues.get(i).isEmpty() && (victim < 0 || queuedBytes[i] > queuedBytes[victim])) {
+				victim = i;
+			}
+		}
+		if (victim < 0) {
+			return null;
+		}
+		transfer = queues.get(victim).pollLast();
+		queuedBytes[victim] -= transfer.size;
+		return transfer;
+	}
+
+	/**
+	 * Note that a data connection is done with its transfers, or failed.
+	 */
+	public synchronized void finished() {
+		running--;
+		notifyAll();
+	}
+
+	/**
+	 * Wait until every data connection is done with its transfers. A connection
+	 * stays open until then, since the server gives up a striped file once no
+	 * connection that pushed ranges of it is left.
+	 * @throws InterruptedException If the thread is interrupted while waiting.
+	 */
+	public synchronized void awaitFinished() throws InterruptedException {
+		while (running > 0) {
+			wait();
+		}
+	}
+}
@@ -0,0 +1,186 @@
+package syncpeer;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.Vector;
+
+/**
+ * The encoding used on a connection between two {@link Peer}s. A codec turns
+ * protocol messages and file name lists into bytes on the socket and back, and
+ * carries the file data in between. {@link SyncProcess} talks to the other 
+ * {@link Peer} only through its codec, so the wire format can be switched once
+ * both sides agreed on a protocol version.
+ * @author Wenhao
+ *
+ */
+abstract class WireCodec {
+
+	/**
+	 * Write a protocol message. The message is not flushed.
+	 * @param message A message of {@link SyncProcess#MSG_SIZE} strings.
+	 * @throws IOException If the communication cannot be completed.
+	 */
+	public abstract void writeMessage(Vector<String> message) throws IOException;
+
+	/**
+	 * Block and read a protocol message.
+	 * @return The message received.
+	 * @throws IOException If the communication cannot be completed.
+	 * @throws ClassNotFoundException If the received message is corrupted.
+	 */
+	public abstract Vector<String> readMessage() throws IOException, ClassNotFoundException;
+
+	/**
+	 * Write a list of file names. The list is not flushed.
+	 * @param list The list to be sent.
+	 * @throws IOException If the communication cannot be completed.
+	 */
+	public abstract void writeList(Set<String> list) throws IOException;
+
+	/**
+	 * Block and read a list of file names.
+	 * @return The list received.
+	 * @throws IOException If the communication cannot be completed.
+	 * @throws ClassNotFoundException If the received list is corrupted.
+	 */
+	public abstract Set<String> readList() throws IOException, ClassNotFoundException;
+
+	/**
+	 * Write a list of {@link ManifestEntry}. The list is not flushed.
+	 * @param entries The entries to be sent.
+	 * @throws IOException If the communication cannot be completed.
+	 */
+	public abstract void writeManifest(Collection<ManifestEntry> entries) throws IOException;
+
+	/**
+	 * Block and read a list of {@link ManifestEntry}.
+	 * @return The entries received.
+	 * @throws IOException If the communication cannot be completed.
+	 * @throws ClassNotFoundException If the received list is corrupted.
+	 */
+	public abstract List<ManifestEntry> readManifest() throws IOException, ClassNotFoundException;
+
+	/**
+	 * Write a chunk of file data.
+	 * @throws IOException If the communication cannot be completed.
+	 */
+	public abstract void write(byte[] buffer, int offset, int length) throws IOException;
+
+	/**
+	 * Block until a chunk of file data is completely read.
+	 * @throws IOException If the communication cannot be completed.
+	 */
+	public abstract void readFully(byte[] buffer, int offset, int length) throws IOException;
+
+	/**
+	 * Write a single byte of protocol data.
+	 * @throws IOException If the communication cannot be completed.
+	 */
+	public abstract void writeByte(int value) throws IOException;
+
+	/**
+	 * Block and read a single byte of protocol data.
+	 * @return The byte as an unsigned value.
+	 * @throws IOException If the communication cannot be completed.
+	 */
+	public abstract int readUnsignedByte() throws IOException;
+
+	/**
+	 * Write a 32-bit number of protocol data.
+	 * @throws IOException If the communication cannot be completed.
+	 */
+	public abstract void writeInt(int value) throws IOException;
+
+	/**
+	 * Block and read a 32-bit number of protocol data.
+	 * @throws IOException If the communication cannot be completed.
+	 */
+	public abstract int readInt() throws IOException;
+
+	/**
+	 * Write a non-negative number in 7-bit groups, lowest group first.
+	 * @throws IOException If the communication cannot be completed.
+	 */
+	public void writeVarLong(long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		writeByte((int) value);
+	}
+
+	/**
+	 * Block and read a number written by {@link WireCodec#writeVarLong(long)}.
+	 * Negative numbers are never written, so they are rejected here and every
+	 * size or count read from the other {@link Peer} only needs an upper bound.
+	 * @throws IOException If the communication cannot be completed or the number is malformed.
+	 */
+	public long readVarLong() throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				if (value < 0) {
+					throw new StreamCorruptedException("Negative varint");
+				}
+				return value;
+			}
+		}
+		throw new StreamCorruptedException("Malformed varint");
+	}
+
+	/**
+	 * Write a byte array prefixed with its varint length.
+	 * @throws IOException If the communication cannot be completed.
+	 */
+	public void writeBytes(byte[] bytes) throws IOException {
+		writeVarLong(bytes.length);
+		write(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Block and read a byte array written by {@link WireCodec#writeBytes(byte[])}.
+	 * @param maxLength The largest length accepted.
+	 * @throws IOException If the communication cannot be completed.
+	 */
+	public byte[] readBytes(int maxLength) throws IOException {
+		long length = readVarLong();
+		if (length > maxLength) {
+			throw new StreamCorruptedException("Field of " + length + " bytes is too long");
+		}
+		byte[] bytes = new byte[(int) length];
+		readFully(bytes, 0, bytes.length);
+		return bytes;
+	}
+
+	/**
+	 * Block until the next byte arrives, without consuming it. A socket time out
+	 * thrown here leaves the stream intact, unlike one thrown in the middle of a message.
+	 * @throws IOException If the socket times out or the connection is closed.
+	 */
+	public abstract void awaitData() throws IOException;
+
+	/**
+	 * Number of bytes already read from the socket but not yet consumed.
+	 * These bytes must be taken with {@link WireCodec#readFully(byte[], int, int)}
+	 * before reading from the socket channel directly.
+	 * @return The number of buffered bytes.
+	 */
+	public abstract int buffered();
+
+	/**
+	 * Send everything written so far to the other {@link Peer}.
+	 * @throws IOException If the communication cannot be completed.
+	 */
+	public abstract void flush() throws IOException;
+
+	/**
+	 * Close the underlying streams.
+	 * @throws IOException If the streams cannot be closed.
+	 */
+	public abstract void close() throws IOException;
+}